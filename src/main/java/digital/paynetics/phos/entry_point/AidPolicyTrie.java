@@ -0,0 +1,113 @@
+package digital.paynetics.phos.entry_point;
+
+/**
+ * Maps AID prefixes (RID or RID + PIX prefix, hex) to {@link KernelPolicy}. The longest matching prefix wins.
+ * <p>
+ * Immutable. Lookup walks at most one node per hex digit of the AID (i.e. max 32) and does not allocate.
+ */
+public final class AidPolicyTrie {
+    public static final AidPolicyTrie DEFAULT = new Builder(KernelPolicy.DEFAULT)
+            .put("A000000004", KernelPolicy.MASTERCARD)
+            .put("B012345678", KernelPolicy.MASTERCARD) // Mastercard test AID
+            .build();
+
+    private final Node root;
+    private final KernelPolicy defaultPolicy;
+
+
+    private AidPolicyTrie(Node root, KernelPolicy defaultPolicy) {
+        this.root = root;
+        this.defaultPolicy = defaultPolicy;
+    }
+
+
+    /**
+     * @param aid AID as hex string
+     * @return policy of the longest matching prefix or the default policy if no prefix matches
+     */
+    public KernelPolicy lookup(String aid) {
+        KernelPolicy ret = defaultPolicy;
+        Node node = root;
+        for (int i = 0; i < aid.length(); i++) {
+            int digit = Character.digit(aid.charAt(i), 16);
+            if (digit < 0) {
+                break;
+            }
+
+            node = node.children[digit];
+            if (node == null) {
+                break;
+            }
+
+            if (node.policy != null) {
+                ret = node.policy;
+            }
+        }
+
+        return ret;
+    }
+
+
+    private static final class Node {
+        final Node[] children = new Node[16];
+        KernelPolicy policy;
+    }
+
+
+    public static final class Builder {
+        private final Node root = new Node();
+        private final KernelPolicy defaultPolicy;
+        private boolean built;
+
+
+        /**
+         * @param defaultPolicy policy for AIDs that do not match any prefix
+         */
+        public Builder(KernelPolicy defaultPolicy) {
+            if (defaultPolicy == null) {
+                throw new NullPointerException("defaultPolicy is null");
+            }
+            this.defaultPolicy = defaultPolicy;
+        }
+
+
+        /**
+         * @param aidPrefix hex string, e.g. RID "A000000003"
+         */
+        public Builder put(String aidPrefix, KernelPolicy policy) {
+            if (built) {
+                throw new IllegalStateException("Already built");
+            }
+
+            if (aidPrefix.isEmpty()) {
+                throw new IllegalArgumentException("Empty AID prefix");
+            }
+
+            if (policy == null) {
+                throw new NullPointerException("policy is null");
+            }
+
+            Node node = root;
+            for (int i = 0; i < aidPrefix.length(); i++) {
+                int digit = Character.digit(aidPrefix.charAt(i), 16);
+                if (digit < 0) {
+                    throw new IllegalArgumentException("Not a hex AID prefix: " + aidPrefix);
+                }
+
+                if (node.children[digit] == null) {
+                    node.children[digit] = new Node();
+                }
+                node = node.children[digit];
+            }
+            node.policy = policy;
+
+            return this;
+        }
+
+
+        public AidPolicyTrie build() {
+            built = true;
+            return new AidPolicyTrie(root, defaultPolicy);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import digital.paynetics.phos.kernel.common.emv.entry_point.EntryPointConfiguration;
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.PreprocessedApplication;
+
+
+/**
+ * Pre-processing result of a single application configuration for every possible amount.
+ * <p>
+ * Requirements 3.1.1.3 - 3.1.1.12 only compare the amount with a few fixed values (zero, single unit and the
+ * configured limits), so the amount axis is split at those values into ranges with identical outcome. The indicators
+ * raised for each range are computed once, at compile time, and at transaction time the range is found with a binary
+ * search.
+ * <p>
+ * The indicators and the TTQ of a {@link PreprocessedApplication} are mutable, so a new one is created on each lookup
+ * from the flags of the range.
+ */
+final class AmountDecisionTable {
+    final int singleUnit;
+    final KernelPolicy policy;
+    private final CardAppConfiguration cac;
+    private final EntryPointConfiguration epc;
+    private final KernelType kernelType;
+
+    /**
+     * Sorted amounts at which the outcome may change. Range <code>i</code> is [breakpoints[i - 1], breakpoints[i])
+     */
+    private final int[] breakpoints;
+    private final int[] flags; // EntryPointPreprocessorImpl2.FLAG_* of each range
+
+
+    private AmountDecisionTable(int singleUnit,
+                                KernelPolicy policy,
+                                CardAppConfiguration cac,
+                                EntryPointConfiguration epc,
+                                KernelType kernelType,
+                                int[] breakpoints,
+                                int[] flags) {
+
+        this.singleUnit = singleUnit;
+        this.policy = policy;
+        this.cac = cac;
+        this.epc = epc;
+        this.kernelType = kernelType;
+        this.breakpoints = breakpoints;
+        this.flags = flags;
+    }
+
+
+    static AmountDecisionTable compile(CardAppConfiguration cac,
+                                       EntryPointConfiguration epc,
+                                       KernelPolicy policy,
+                                       KernelType kernelType,
+                                       int singleUnit) {
+
+        boolean readerLimitsApply = policy.isReaderLimitsApply();
+        kernelType = policy.resolveKernelType(kernelType);
+
+        TreeSet<Integer> points = new TreeSet<>();
+
+        // Req 3.1.1.3, amount == single unit
+        if (epc.statusCheckSupported) {
+            addEqualityBreakpoints(points, singleUnit);
+        }
+
+        // Req 3.1.1.4, amount == 0
+        addEqualityBreakpoints(points, 0);
+
+        if (readerLimitsApply) {
+            // Req 3.1.1.5, amount >= limit
+            if (epc.readerContactlessTransactionLimit >= 0) {
+                points.add(epc.readerContactlessTransactionLimit);
+            }
+
+            // Req 3.1.1.6 and 3.1.1.7, amount > limit
+            if (epc.readerContactlessFloorLimit >= 0) {
+                addGreaterThanBreakpoint(points, epc.readerContactlessFloorLimit);
+            } else if (epc.terminalFloorLimit >= 0) {
+                addGreaterThanBreakpoint(points, epc.terminalFloorLimit);
+            }
+        }
+
+        // Req 3.1.1.8, amount >= limit
+        if (epc.readerCvmRequiredLimit >= 0) {
+            points.add(epc.readerCvmRequiredLimit);
+        }
+
+        int[] breakpoints = new int[points.size()];
+        int i = 0;
+        for (Integer point : points) {
+            breakpoints[i++] = point;
+        }
+
+        int[] flags = new int[breakpoints.length + 1];
+        flags[0] = EntryPointPreprocessorImpl2.checkAmount(epc, readerLimitsApply, Integer.MIN_VALUE, singleUnit);
+        for (i = 0; i < breakpoints.length; i++) {
+            flags[i + 1] = EntryPointPreprocessorImpl2.checkAmount(epc, readerLimitsApply, breakpoints[i], singleUnit);
+        }
+
+        return new AmountDecisionTable(singleUnit, policy, cac, epc, kernelType, breakpoints, flags);
+    }
+
+
+    /**
+     * @return new pre-processing result, not shared with other transactions
+     */
+    PreprocessedApplication lookup(int amountAuthorized) {
+        int pos = Arrays.binarySearch(breakpoints, amountAuthorized);
+        return EntryPointPreprocessorImpl2.createPreprocessedApplication(cac,
+                epc,
+                kernelType,
+                flags[pos >= 0 ? pos + 1 : -(pos + 1)]);
+    }
+
+
+    private static void addEqualityBreakpoints(TreeSet<Integer> points, int value) {
+        points.add(value);
+        addGreaterThanBreakpoint(points, value);
+    }
+
+
+    private static void addGreaterThanBreakpoint(TreeSet<Integer> points, int value) {
+        if (value < Integer.MAX_VALUE) {
+            points.add(value + 1);
+        }
+    }
+}
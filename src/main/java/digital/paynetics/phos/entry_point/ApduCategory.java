@@ -0,0 +1,13 @@
+package digital.paynetics.phos.entry_point;
+
+/**
+ * Kinds of command-response pairs aggregated by {@link NfcRoundTripStats}
+ */
+public enum ApduCategory {
+    SELECT_PPSE,
+    SELECT_AID,
+    GPO,
+    READ_RECORD,
+    GENERATE_AC,
+    OTHER
+}
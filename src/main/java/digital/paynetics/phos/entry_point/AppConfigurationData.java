@@ -0,0 +1,181 @@
+package digital.paynetics.phos.entry_point;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.zip.CRC32;
+
+import digital.paynetics.phos.kernel.common.emv.entry_point.EntryPointConfiguration;
+import digital.paynetics.phos.kernel.common.emv.kernel.common.TlvMap;
+import digital.paynetics.phos.kernel.common.emv.kernel.common.TlvMapImpl;
+import digital.paynetics.phos.kernel.common.emv.tag.EmvTag;
+import digital.paynetics.phos.kernel.common.emv.tag.Tlv;
+import digital.paynetics.phos.kernel.common.emv.tag.TlvException;
+import digital.paynetics.phos.kernel.common.misc.TtqConfiguration;
+
+
+/**
+ * Entry point related values of an application configuration, decoded from its TLVs. The TTQ configuration is kept
+ * as JSON, it is parsed by {@link #toEntryPointConfiguration()}.
+ */
+final class AppConfigurationData {
+    private static final org.slf4j.Logger logger = LoggerFactory.getLogger(AppConfigurationData.class);
+
+    private static final Gson gson = new Gson();
+
+    final boolean statusCheckEnabled;
+    final boolean zeroAmountAllowed;
+    final boolean extendedSelectionSupported;
+    final int readerContactlessTransactionLimit;
+    final int readerContactlessFloorLimit;
+    final int terminalFloorLimit;
+    final int readerCvmLimit;
+    final String ttqJson;
+
+
+    AppConfigurationData(boolean statusCheckEnabled,
+                         boolean zeroAmountAllowed,
+                         boolean extendedSelectionSupported,
+                         int readerContactlessTransactionLimit,
+                         int readerContactlessFloorLimit,
+                         int terminalFloorLimit,
+                         int readerCvmLimit,
+                         String ttqJson) {
+
+        this.statusCheckEnabled = statusCheckEnabled;
+        this.zeroAmountAllowed = zeroAmountAllowed;
+        this.extendedSelectionSupported = extendedSelectionSupported;
+        this.readerContactlessTransactionLimit = readerContactlessTransactionLimit;
+        this.readerContactlessFloorLimit = readerContactlessFloorLimit;
+        this.terminalFloorLimit = terminalFloorLimit;
+        this.readerCvmLimit = readerCvmLimit;
+        this.ttqJson = ttqJson;
+    }
+
+
+    /**
+     * @return decoded values or null if some value cannot be extracted
+     */
+    static AppConfigurationData decode(List<Tlv> tlvConfigData) {
+        TlvMap tlvMap = new TlvMapImpl(tlvConfigData);
+
+        boolean statusCheckEnabled = false;
+        if (tlvMap.isTagPresentAndNonEmpty(EmvTag.PHOS_STATUS_CHECK_ENABLED)) {
+            statusCheckEnabled = tlvMap.get(EmvTag.PHOS_STATUS_CHECK_ENABLED).getValueBytes()[0] != 0;
+        }
+
+        boolean zeroAmountAllowed = false;
+        if (tlvMap.isTagPresentAndNonEmpty(EmvTag.PHOS_ZERO_AMOUNT_ALLOWED)) {
+            zeroAmountAllowed = tlvMap.get(EmvTag.PHOS_ZERO_AMOUNT_ALLOWED).getValueBytes()[0] != 0;
+        }
+
+        boolean extendedSelectionSupported = false;
+        if (tlvMap.isTagPresentAndNonEmpty(EmvTag.PHOS_EXTENDED_SELECTION_SUPPRORTED)) {
+            extendedSelectionSupported = tlvMap.get(EmvTag.PHOS_EXTENDED_SELECTION_SUPPRORTED).getValueBytes()[0] != 0;
+        }
+
+        int readerContactlessTransactionLimit = -1;
+        int readerContactlessTransactionLimitOdCvm = -1;
+        int terminalFloorLimit = -1;
+        int readerCvmLimit = -1;
+        int readerContactlessFloorLimit = -1;
+
+
+        try {
+            if (tlvMap.isTagPresentAndNonEmpty(EmvTag.READER_CONTACTLESS_TRANSACTION_LIMIT_NO_OD_CVM)) {
+                readerContactlessTransactionLimit = tlvMap.get(EmvTag.READER_CONTACTLESS_TRANSACTION_LIMIT_NO_OD_CVM).
+                        getValueAsBcdInt();
+            }
+
+            if (tlvMap.isTagPresentAndNonEmpty(EmvTag.READER_CONTACTLESS_TRANSACTION_LIMIT_OD_CVM)) {
+                readerContactlessTransactionLimitOdCvm = tlvMap.get(EmvTag.READER_CONTACTLESS_TRANSACTION_LIMIT_OD_CVM).
+                        getValueAsBcdInt();
+            }
+
+            if (tlvMap.isTagPresentAndNonEmpty(EmvTag.TERMINAL_FLOOR_LIMIT)) {
+                terminalFloorLimit = tlvMap.get(EmvTag.TERMINAL_FLOOR_LIMIT).getValueAsBcdInt();
+            }
+
+            if (tlvMap.isTagPresentAndNonEmpty(EmvTag.READER_CVM_REQUIRED_LIMIT)) {
+                readerCvmLimit = tlvMap.get(EmvTag.READER_CVM_REQUIRED_LIMIT).getValueAsBcdInt();
+            }
+
+            if (tlvMap.isTagPresentAndNonEmpty(EmvTag.READER_CONTACTLESS_FLOOR_LIMIT)) {
+                readerContactlessFloorLimit = tlvMap.get(EmvTag.READER_CONTACTLESS_FLOOR_LIMIT).getValueAsBcdInt();
+            }
+
+        } catch (TlvException e) {
+            logger.error("Cannot extract value: {}", e.getMessage());
+            return null;
+        }
+
+        String ttqJson = null;
+        if (tlvMap.isTagPresentAndNonEmpty(EmvTag.PHOS_TTQ_CONFIGURATION)) {
+            ttqJson = tlvMap.get(EmvTag.PHOS_TTQ_CONFIGURATION).getValueAsString();
+        }
+
+        int finalReaderContactlessTransactionLimit;
+        if (readerContactlessTransactionLimitOdCvm != -1 &&
+                readerContactlessTransactionLimitOdCvm > readerContactlessTransactionLimit) {
+            finalReaderContactlessTransactionLimit = readerContactlessTransactionLimitOdCvm;
+        } else {
+            finalReaderContactlessTransactionLimit = readerContactlessTransactionLimit;
+        }
+
+        return new AppConfigurationData(statusCheckEnabled,
+                zeroAmountAllowed,
+                extendedSelectionSupported,
+                finalReaderContactlessTransactionLimit,
+                readerContactlessFloorLimit,
+                terminalFloorLimit,
+                readerCvmLimit,
+                ttqJson);
+    }
+
+
+    /**
+     * @return configuration or null if the TTQ configuration cannot be parsed
+     */
+    EntryPointConfiguration toEntryPointConfiguration() {
+        TtqConfiguration ttqConfiguration = null;
+        if (ttqJson != null) {
+            try {
+                ttqConfiguration = gson.fromJson(ttqJson, TtqConfiguration.class);
+            } catch (JsonSyntaxException e) {
+                logger.error("{}", ttqJson);
+                logger.error("Cannot extract TtqConfiguration: {}", e.getMessage());
+                return null;
+            }
+        }
+
+        return new EntryPointConfiguration(statusCheckEnabled,
+                zeroAmountAllowed,
+                readerContactlessTransactionLimit,
+                readerContactlessFloorLimit,
+                terminalFloorLimit,
+                readerCvmLimit,
+                extendedSelectionSupported,
+                ttqConfiguration
+        );
+    }
+
+
+    /**
+     * @return checksum of the TLVs (tags and values), used to detect that the decoded values are stale
+     */
+    static int checksum(List<Tlv> tlvConfigData) {
+        CRC32 crc = new CRC32();
+        for (Tlv tlv : tlvConfigData) {
+            crc.update(tlv.getTag().getTagBytes());
+            byte[] value = tlv.getValueBytes();
+            crc.update(value.length >>> 8);
+            crc.update(value.length);
+            crc.update(value);
+        }
+
+        return (int) crc.getValue();
+    }
+}
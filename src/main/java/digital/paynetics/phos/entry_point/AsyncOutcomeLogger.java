@@ -0,0 +1,228 @@
+package digital.paynetics.phos.entry_point;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import digital.paynetics.phos.kernel.common.emv.Outcome;
+import digital.paynetics.phos.kernel.common.emv.tag.EmvTag;
+import digital.paynetics.phos.kernel.common.emv.tag.Tlv;
+import digital.paynetics.phos.kernel.common.emv.ui.UserInterfaceRequest;
+import digital.paynetics.phos.kernel.mastercard.misc.MastercardErrorIndication;
+import digital.paynetics.phos.kernel.mastercard.misc.OutcomePresenter;
+
+import static digital.paynetics.phos.kernel.mastercard.MastercardKernelImpl.logOutcome;
+
+
+/**
+ * Logs outcomes, intermediate outcomes and UI messages on a background thread, so delivering the outcome does not
+ * wait for string formatting and logger I/O.
+ * <p>
+ * Events are passed through a bounded, lock-free multi-producer ring buffer of preallocated slots (no allocation per
+ * event). If the consumer falls behind and the buffer is full, events are dropped and counted, producers never block.
+ * <p>
+ * The consumer thread is started on the first event and stopped by {@link #close()}, which logs the remaining events
+ * first.
+ */
+final class AsyncOutcomeLogger {
+    static final int OUTCOME = 1;
+    static final int INTERMEDIATE_OUTCOME = 2;
+    static final int UI_MESSAGE = 3;
+    /**
+     * Only the Mastercard error indication in the discretionary data of the outcome is logged
+     */
+    static final int ERROR_INDICATION = 4;
+
+    private final org.slf4j.Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final boolean dontLogDataRecord;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final Event[] events;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long head; // consumer only
+
+    private volatile Thread consumer;
+    private volatile boolean isClosed;
+
+
+    /**
+     * @param capacity power of 2
+     */
+    AsyncOutcomeLogger(int capacity, boolean dontLogDataRecord) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be power of 2: " + capacity);
+        }
+
+        this.dontLogDataRecord = dontLogDataRecord;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.events = new Event[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+            events[i] = new Event();
+        }
+    }
+
+
+    /**
+     * @param kind    one of the constants
+     * @param payload {@link Outcome} or {@link UserInterfaceRequest}
+     * @return false if the event is dropped because the buffer is full
+     */
+    boolean log(int kind, Object payload) {
+        if (isClosed) {
+            present(kind, payload);
+            return true;
+        }
+
+        long pos;
+        while (true) {
+            pos = tail.get();
+            long seq = sequences.get((int) pos & mask);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (seq < pos) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+
+        Event e = events[(int) pos & mask];
+        e.kind = kind;
+        e.payload = payload;
+        sequences.lazySet((int) pos & mask, pos + 1); // publish
+
+        Thread t = getConsumer();
+        LockSupport.unpark(t);
+
+        return true;
+    }
+
+
+    /**
+     * @return number of events dropped because the buffer was full
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+
+    /**
+     * Logs the events in the buffer and stops the consumer thread. Must be called when no more events are logged
+     * concurrently, events logged after that are logged on the caller's thread.
+     */
+    void close() {
+        Thread t;
+        synchronized (this) {
+            isClosed = true;
+            t = consumer;
+        }
+
+        if (t == null) {
+            return;
+        }
+
+        LockSupport.unpark(t);
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void consume() {
+        while (true) {
+            int i = (int) head & mask;
+            if (sequences.get(i) != head + 1) {
+                if (isClosed) {
+                    // re-read after the flag, an event published before close() is visible now
+                    if (sequences.get(i) != head + 1) {
+                        return;
+                    }
+                    continue;
+                }
+                LockSupport.park(this);
+                continue;
+            }
+
+            Event e = events[i];
+            int kind = e.kind;
+            Object payload = e.payload;
+            e.payload = null;
+            sequences.lazySet(i, head + mask + 1); // free the slot
+            head++;
+
+            try {
+                present(kind, payload);
+            } catch (RuntimeException ex) {
+                logger.warn("Cannot log event: {}", ex.getMessage());
+            }
+        }
+    }
+
+
+    private void present(int kind, Object payload) {
+        switch (kind) {
+            case OUTCOME:
+            case INTERMEDIATE_OUTCOME:
+                logOutcome(logger, (Outcome) payload, dontLogDataRecord);
+                break;
+            case UI_MESSAGE:
+                logger.debug("(outc) Message: \n    {}", OutcomePresenter.present((UserInterfaceRequest) payload));
+                break;
+            case ERROR_INDICATION:
+                List<Tlv> ddTlvs = ((Outcome) payload).getDiscretionaryData();
+                if (ddTlvs != null) {
+                    for (Tlv tlv : ddTlvs) {
+                        if (tlv.getTag() == EmvTag.ERROR_INDICATION) {
+                            MastercardErrorIndication mei = MastercardErrorIndication.fromBytes(tlv.getValueBytes());
+                            if (mei.hasError()) {
+                                logger.debug("Error indication: {}", mei);
+                            }
+                            break;
+                        }
+                    }
+                }
+                break;
+            default:
+                logger.warn("Unknown event kind: {}", kind);
+        }
+    }
+
+
+    private Thread getConsumer() {
+        Thread t = consumer;
+        if (t == null) {
+            synchronized (this) {
+                t = consumer;
+                if (t == null && !isClosed) {
+                    t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            consume();
+                        }
+                    }, "outcome logger");
+                    t.setDaemon(true);
+                    t.start();
+                    consumer = t;
+                }
+            }
+        }
+
+        return t;
+    }
+
+
+    private static final class Event {
+        int kind;
+        Object payload;
+    }
+}
@@ -0,0 +1,54 @@
+package digital.paynetics.phos.entry_point;
+
+/**
+ * Cancellation of a card session (from the tag detection to the outcome), either by the STOP signal or because the
+ * tap time budget is exceeded. Created only when a session is cancelled.
+ *
+ * @see EntryPointStateMachine#stop(Reason, long)
+ */
+final class CancellationToken {
+    private final long session;
+    private final Reason reason;
+    private final long cancelledAt; // System.nanoTime()
+
+    private boolean isLatencyMeasured = false; // processing thread only
+
+
+    CancellationToken(long session, Reason reason) {
+        this.session = session;
+        this.reason = reason;
+        this.cancelledAt = System.nanoTime();
+    }
+
+
+    long getSession() {
+        return session;
+    }
+
+
+    /**
+     * @return reason of the first cancellation of the session
+     */
+    Reason getReason() {
+        return reason;
+    }
+
+
+    /**
+     * @return microseconds from the cancellation till now, -1 if already measured
+     */
+    long takeCancellationLatencyMicros() {
+        if (isLatencyMeasured) {
+            return -1;
+        }
+        isLatencyMeasured = true;
+
+        return (System.nanoTime() - cancelledAt) / 1000;
+    }
+
+
+    enum Reason {
+        STOP_SIGNAL,
+        TAP_TIME_BUDGET_EXCEEDED
+    }
+}
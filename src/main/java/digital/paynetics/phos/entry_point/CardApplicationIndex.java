@@ -0,0 +1,152 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+
+
+/**
+ * Immutable index of the card applications (by AID) and of the application configurations (by transaction type)
+ * of a {@link PosChangeableConfiguration}. Built once per configuration so it is not rebuilt on each transaction.
+ */
+public final class CardApplicationIndex {
+    public static final CardApplicationIndex EMPTY = build(Collections.<TransactionType>emptyList(),
+            Collections.<CardApplication>emptyList(),
+            Collections.<CardAppConfiguration>emptyList());
+
+    private final List<CardApplication> cardApplications;
+    private final Map<String, CardApplication> applications;
+    private final Map<TransactionType, List<CardAppConfiguration>> transactionAppConfigs;
+
+
+    private CardApplicationIndex(List<CardApplication> cardApplications,
+                                 Map<String, CardApplication> applications,
+                                 Map<TransactionType, List<CardAppConfiguration>> transactionAppConfigs) {
+
+        this.cardApplications = cardApplications;
+        this.applications = applications;
+        this.transactionAppConfigs = transactionAppConfigs;
+    }
+
+
+    /**
+     * @param cardApplications must not be modified after the index is built, preferably an unmodifiable list
+     */
+    public static CardApplicationIndex build(List<TransactionType> supportedTransactionTypes,
+                                             List<CardApplication> cardApplications,
+                                             List<CardAppConfiguration> cardAppConfigurations) {
+
+        final Map<String, CardApplication> applications = new HashMap<>();
+        for (final CardApplication app : cardApplications) {
+            applications.put(app.applicationId, app);
+        }
+
+        final Map<TransactionType, List<CardAppConfiguration>> groups = new EnumMap<>(TransactionType.class);
+        for (final TransactionType tt : supportedTransactionTypes) {
+            groups.put(tt, new ArrayList<CardAppConfiguration>());
+        }
+
+        for (final CardAppConfiguration cac : cardAppConfigurations) {
+            final List<CardAppConfiguration> list = groups.get(cac.getTransactionType());
+            if (list != null) {
+                list.add(cac);
+            }
+        }
+
+        final Map<TransactionType, List<CardAppConfiguration>> transactionAppConfigs =
+                new EnumMap<>(TransactionType.class);
+        for (final Map.Entry<TransactionType, List<CardAppConfiguration>> e : groups.entrySet()) {
+            transactionAppConfigs.put(e.getKey(), Collections.unmodifiableList(e.getValue()));
+        }
+
+        return new CardApplicationIndex(cardApplications,
+                Collections.unmodifiableMap(applications),
+                Collections.unmodifiableMap(transactionAppConfigs));
+    }
+
+
+    /**
+     * Builds a new index reusing the unaffected parts of this one
+     *
+     * @param cardApplications      the new applications, must not be modified after the index is built
+     * @param putApplications       added or replaced applications
+     * @param removedApplications   AIDs of removed applications
+     * @param cardAppConfigurations the new configurations
+     * @param affected              transaction types whose configurations are changed
+     */
+    CardApplicationIndex update(List<CardApplication> cardApplications,
+                                Map<String, CardApplication> putApplications,
+                                Set<String> removedApplications,
+                                List<CardAppConfiguration> cardAppConfigurations,
+                                Set<TransactionType> affected) {
+
+        final Map<String, CardApplication> newApplications = new HashMap<>(applications);
+        for (final String applicationId : removedApplications) {
+            newApplications.remove(applicationId);
+        }
+        newApplications.putAll(putApplications);
+
+        final Map<TransactionType, List<CardAppConfiguration>> newTransactionAppConfigs =
+                new EnumMap<>(TransactionType.class);
+        newTransactionAppConfigs.putAll(transactionAppConfigs);
+        for (final TransactionType tt : affected) {
+            if (!newTransactionAppConfigs.containsKey(tt)) {
+                continue;
+            }
+
+            final List<CardAppConfiguration> list = new ArrayList<>();
+            for (final CardAppConfiguration cac : cardAppConfigurations) {
+                if (cac.getTransactionType() == tt) {
+                    list.add(cac);
+                }
+            }
+            newTransactionAppConfigs.put(tt, Collections.unmodifiableList(list));
+        }
+
+        return new CardApplicationIndex(cardApplications,
+                Collections.unmodifiableMap(newApplications),
+                Collections.unmodifiableMap(newTransactionAppConfigs));
+    }
+
+
+    /**
+     * @return true if this index was built from <code>cardApplications</code> (this very instance)
+     */
+    public boolean isIndexOf(List<CardApplication> cardApplications) {
+        return this.cardApplications == cardApplications;
+    }
+
+
+    public List<CardApplication> getCardApplications() {
+        return cardApplications;
+    }
+
+
+    /**
+     * @return application with <code>applicationId</code> or null if there is no such
+     */
+    public CardApplication getApplication(String applicationId) {
+        return applications.get(applicationId);
+    }
+
+
+    /**
+     * @return configurations for <code>transactionType</code> or null if the transaction type is not supported
+     */
+    public List<CardAppConfiguration> getAppConfigurations(TransactionType transactionType) {
+        return transactionAppConfigs.get(transactionType);
+    }
+
+
+    public Map<TransactionType, List<CardAppConfiguration>> getTransactionAppConfigs() {
+        return transactionAppConfigs;
+    }
+}
@@ -0,0 +1,19 @@
+package digital.paynetics.phos.entry_point;
+
+import digital.paynetics.phos.kernel.common.nfc.transceiver.Transceiver;
+
+
+/**
+ * Identifies the card behind a transceiver, used to recognize the same card tapped again after a tag loss
+ *
+ * @see EntryPointImpl#setSelectionResume(CardFingerprinter, long)
+ */
+public interface CardFingerprinter {
+    /**
+     * Must return the same value for the same card on each tap (cards with random UIDs cannot be recognized by the
+     * UID). Called also after the tag is lost, so it must not communicate with the card.
+     *
+     * @return fingerprint or null if the card cannot be identified
+     */
+    byte[] getFingerprint(Transceiver transceiver);
+}
@@ -0,0 +1,74 @@
+package digital.paynetics.phos.entry_point;
+
+import digital.paynetics.phos.kernel.common.emv.entry_point.EntryPointConfiguration;
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.PreprocessedApplication;
+
+
+/**
+ * Pre-processing data of a single {@link CardAppConfiguration} prepared in advance
+ *
+ * @see CompiledAppConfigurations
+ */
+public final class CompiledAppConfiguration {
+    private final CardAppConfiguration appConfig;
+    private final EntryPointConfiguration entryPointConfiguration;
+    private final KernelType kernelType;
+
+    /**
+     * Compiled lazily because it depends on the single unit of the transaction currency and on the kernel policy
+     */
+    private volatile AmountDecisionTable decisionTable;
+
+
+    CompiledAppConfiguration(CardAppConfiguration appConfig,
+                             EntryPointConfiguration entryPointConfiguration,
+                             KernelType kernelType) {
+
+        this.appConfig = appConfig;
+        this.entryPointConfiguration = entryPointConfiguration;
+        this.kernelType = kernelType;
+    }
+
+
+    public CardAppConfiguration getAppConfig() {
+        return appConfig;
+    }
+
+
+    /**
+     * @return decoded configuration or null if the configuration cannot be decoded
+     */
+    public EntryPointConfiguration getEntryPointConfiguration() {
+        return entryPointConfiguration;
+    }
+
+
+    public KernelType getKernelType() {
+        return kernelType;
+    }
+
+
+    /**
+     * @return new pre-processing result for <code>amountAuthorized</code> or null if the configuration cannot be
+     * decoded
+     */
+    public PreprocessedApplication preProcess(int amountAuthorized, int singleUnit, KernelPolicy policy) {
+        if (entryPointConfiguration == null) {
+            return null;
+        }
+
+        AmountDecisionTable table = decisionTable;
+        if (table == null || table.singleUnit != singleUnit || table.policy != policy) {
+            table = AmountDecisionTable.compile(appConfig,
+                    entryPointConfiguration,
+                    policy,
+                    kernelType,
+                    singleUnit);
+            decisionTable = table;
+        }
+
+        return table.lookup(amountAuthorized);
+    }
+}
@@ -0,0 +1,124 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import digital.paynetics.phos.kernel.common.emv.entry_point.EntryPointConfiguration;
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.emv.tag.Tlv;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+
+
+/**
+ * Holds the {@link CompiledAppConfiguration} of each {@link CardAppConfiguration}, so pre-processing at transaction
+ * time does not have to parse TLVs, decode BCD limits, run Gson over the TTQ configuration or evaluate the limits.
+ * <p>
+ * Entries are keyed by configuration identity: a new {@link PosChangeableConfiguration} means new
+ * {@code CardAppConfiguration} instances and therefore a new, separately compiled instance of this class.
+ */
+public final class CompiledAppConfigurations {
+    public static final CompiledAppConfigurations EMPTY =
+            new CompiledAppConfigurations(new IdentityHashMap<CardAppConfiguration, CompiledAppConfiguration>());
+
+    private final Map<CardAppConfiguration, CompiledAppConfiguration> configurations;
+
+
+    private CompiledAppConfigurations(Map<CardAppConfiguration, CompiledAppConfiguration> configurations) {
+        this.configurations = Collections.unmodifiableMap(configurations);
+    }
+
+
+    public static CompiledAppConfigurations compile(CardApplicationIndex cardApplicationIndex,
+                                                    List<CardAppConfiguration> cardAppConfigurations) {
+
+        return compile(cardApplicationIndex, cardAppConfigurations, null);
+    }
+
+
+    /**
+     * @param image pre-decoded configurations, may be null. Configurations missing from the image or changed since
+     *              the image was written are decoded from their TLVs.
+     */
+    public static CompiledAppConfigurations compile(CardApplicationIndex cardApplicationIndex,
+                                                    List<CardAppConfiguration> cardAppConfigurations,
+                                                    ConfigurationImage image) {
+
+        final Map<CardAppConfiguration, CompiledAppConfiguration> map = new IdentityHashMap<>();
+        for (final CardAppConfiguration cac : cardAppConfigurations) {
+            final CardApplication app = cardApplicationIndex.getApplication(cac.getApplicationId());
+            map.put(cac, new CompiledAppConfiguration(cac,
+                    entryPointConfiguration(cac, image),
+                    app != null ? app.kernelType : null));
+        }
+
+        return new CompiledAppConfigurations(map);
+    }
+
+
+    /**
+     * Compiles <code>cardAppConfigurations</code> reusing the already compiled ones. Only configurations not compiled
+     * yet are decoded.
+     */
+    CompiledAppConfigurations update(CardApplicationIndex cardApplicationIndex,
+                                     List<CardAppConfiguration> cardAppConfigurations) {
+
+        final Map<CardAppConfiguration, CompiledAppConfiguration> map = new IdentityHashMap<>();
+        for (final CardAppConfiguration cac : cardAppConfigurations) {
+            final CardApplication app = cardApplicationIndex.getApplication(cac.getApplicationId());
+            final KernelType kernelType = app != null ? app.kernelType : null;
+
+            CompiledAppConfiguration compiled = configurations.get(cac);
+            if (compiled == null) {
+                compiled = new CompiledAppConfiguration(cac,
+                        extractEntryPointConfiguration(cac.getTlvConfigData()),
+                        kernelType);
+            } else if (compiled.getKernelType() != kernelType) {
+                // application replaced with one with different kernel
+                compiled = new CompiledAppConfiguration(cac, compiled.getEntryPointConfiguration(), kernelType);
+            }
+            map.put(cac, compiled);
+        }
+
+        return new CompiledAppConfigurations(map);
+    }
+
+
+    /**
+     * @return compiled configuration or null if <code>cac</code> (this very instance) was not compiled
+     */
+    public CompiledAppConfiguration get(CardAppConfiguration cac) {
+        return configurations.get(cac);
+    }
+
+
+    public int size() {
+        return configurations.size();
+    }
+
+
+    private static EntryPointConfiguration entryPointConfiguration(CardAppConfiguration cac, ConfigurationImage image) {
+        if (image != null) {
+            final int index = image.indexOf(cac.getApplicationId(), cac.getTransactionType());
+            if (index >= 0 && image.getChecksum(index) == AppConfigurationData.checksum(cac.getTlvConfigData())) {
+                final AppConfigurationData data = image.getData(index);
+                return data != null ? data.toEntryPointConfiguration() : null;
+            }
+        }
+
+        return extractEntryPointConfiguration(cac.getTlvConfigData());
+    }
+
+
+    /**
+     * Decodes entry point related TLVs of an application configuration
+     *
+     * @return decoded configuration or null if some value cannot be extracted
+     */
+    public static EntryPointConfiguration extractEntryPointConfiguration(List<Tlv> tlvConfigData) {
+        AppConfigurationData data = AppConfigurationData.decode(tlvConfigData);
+        return data != null ? data.toEntryPointConfiguration() : null;
+    }
+}
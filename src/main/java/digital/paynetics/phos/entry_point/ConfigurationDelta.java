@@ -0,0 +1,139 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import digital.paynetics.phos.kernel.common.emv.cert.CaRidDbReadOnly;
+import digital.paynetics.phos.kernel.common.emv.cert.CertificateRevocationListReadOnly;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+
+
+/**
+ * Set of changes to be applied to a {@link PosChangeableConfiguration}
+ *
+ * @see PosChangeableConfiguration#apply(ConfigurationDelta)
+ */
+public final class ConfigurationDelta {
+    final Map<String, CardApplication> putApplications;
+    final Set<String> removedApplications;
+    final Map<String, CardAppConfiguration> putAppConfigurations;
+    final Set<String> removedAppConfigurations;
+    final CaRidDbReadOnly caRidDb;
+    final CertificateRevocationListReadOnly crl;
+
+
+    private ConfigurationDelta(Builder b) {
+        this.putApplications = Collections.unmodifiableMap(new LinkedHashMap<>(b.putApplications));
+        this.removedApplications = Collections.unmodifiableSet(new LinkedHashSet<>(b.removedApplications));
+        this.putAppConfigurations = Collections.unmodifiableMap(new LinkedHashMap<>(b.putAppConfigurations));
+        this.removedAppConfigurations = Collections.unmodifiableSet(new LinkedHashSet<>(b.removedAppConfigurations));
+        this.caRidDb = b.caRidDb;
+        this.crl = b.crl;
+    }
+
+
+    public boolean isEmpty() {
+        return putApplications.isEmpty() && removedApplications.isEmpty() && putAppConfigurations.isEmpty() &&
+                removedAppConfigurations.isEmpty() && caRidDb == null && crl == null;
+    }
+
+
+    static String appConfigurationKey(String applicationId, TransactionType transactionType) {
+        return applicationId + "/" + transactionType.name();
+    }
+
+
+    static String applicationIdOf(String appConfigurationKey) {
+        return appConfigurationKey.substring(0, appConfigurationKey.lastIndexOf('/'));
+    }
+
+
+    static TransactionType transactionTypeOf(String appConfigurationKey) {
+        return TransactionType.valueOf(appConfigurationKey.substring(appConfigurationKey.lastIndexOf('/') + 1));
+    }
+
+
+    @Override
+    public String toString() {
+        return "put applications: " + putApplications.keySet() +
+                ", removed applications: " + removedApplications +
+                ", put configurations: " + putAppConfigurations.keySet() +
+                ", removed configurations: " + removedAppConfigurations +
+                ", CA RID DB replaced: " + (caRidDb != null) +
+                ", CRL replaced: " + (crl != null);
+    }
+
+
+    public static final class Builder {
+        private final Map<String, CardApplication> putApplications = new LinkedHashMap<>();
+        private final Set<String> removedApplications = new LinkedHashSet<>();
+        private final Map<String, CardAppConfiguration> putAppConfigurations = new LinkedHashMap<>();
+        private final Set<String> removedAppConfigurations = new LinkedHashSet<>();
+        private CaRidDbReadOnly caRidDb;
+        private CertificateRevocationListReadOnly crl;
+
+
+        /**
+         * Adds the application or replaces the one with the same AID
+         */
+        public Builder putApplication(CardApplication app) {
+            removedApplications.remove(app.applicationId);
+            putApplications.put(app.applicationId, app);
+            return this;
+        }
+
+
+        public Builder removeApplication(String applicationId) {
+            putApplications.remove(applicationId);
+            removedApplications.add(applicationId);
+            return this;
+        }
+
+
+        /**
+         * Adds the configuration or replaces the one(s) with the same AID and transaction type
+         */
+        public Builder putAppConfiguration(CardAppConfiguration cac) {
+            String key = appConfigurationKey(cac.getApplicationId(), cac.getTransactionType());
+            removedAppConfigurations.remove(key);
+            putAppConfigurations.put(key, cac);
+            return this;
+        }
+
+
+        public Builder removeAppConfiguration(String applicationId, TransactionType transactionType) {
+            String key = appConfigurationKey(applicationId, transactionType);
+            putAppConfigurations.remove(key);
+            removedAppConfigurations.add(key);
+            return this;
+        }
+
+
+        /**
+         * Replaces the CA RID DB
+         */
+        public Builder caRidDb(CaRidDbReadOnly caRidDb) {
+            this.caRidDb = caRidDb;
+            return this;
+        }
+
+
+        /**
+         * Replaces the certificate revocation list
+         */
+        public Builder crl(CertificateRevocationListReadOnly crl) {
+            this.crl = crl;
+            return this;
+        }
+
+
+        public ConfigurationDelta build() {
+            return new ConfigurationDelta(this);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package digital.paynetics.phos.entry_point;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import digital.paynetics.phos.kernel.common.emv.tag.Tlv;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+
+
+/**
+ * SHA-256 over a canonical encoding of the content of a {@link PosChangeableConfiguration}.
+ * <p>
+ * Encoding: supported transaction types (names), then each card application (AID, kernel type, all its fields as
+ * serialized by Gson, with the object members sorted by name), then each application configuration (AID,
+ * transaction type, tag and value of each TLV). Lists are prefixed with their size and strings and byte arrays with
+ * their length, so different contents cannot encode to the same bytes. Nothing depends on hash codes or field
+ * order, so the fingerprint is the same in every JVM. CA keys and the CRL are not included, same as in
+ * {@link PosChangeableConfiguration#equals(Object)}, they are fingerprinted separately by {@link #computeOf}.
+ */
+final class ConfigurationFingerprint {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Gson GSON = new Gson();
+    private static final byte[] NOT_SERIALIZABLE = new byte[0];
+
+
+    private ConfigurationFingerprint() {
+    }
+
+
+    static byte[] compute(List<TransactionType> supportedTransactionTypes,
+                          List<CardApplication> cardApplications,
+                          List<CardAppConfiguration> cardAppConfigurations) {
+
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is mandatory for every Java platform
+            throw new IllegalStateException(e);
+        }
+
+        putInt(md, supportedTransactionTypes.size());
+        for (final TransactionType tt : supportedTransactionTypes) {
+            putString(md, tt.name());
+        }
+
+        putInt(md, cardApplications.size());
+        for (final CardApplication app : cardApplications) {
+            putString(md, app.applicationId);
+            putString(md, app.kernelType != null ? app.kernelType.name() : null);
+            putJson(md, GSON.toJsonTree(app));
+        }
+
+        putInt(md, cardAppConfigurations.size());
+        for (final CardAppConfiguration cac : cardAppConfigurations) {
+            putString(md, cac.getApplicationId());
+            putString(md, cac.getTransactionType().name());
+
+            final List<Tlv> tlvs = cac.getTlvConfigData();
+            putInt(md, tlvs.size());
+            for (final Tlv tlv : tlvs) {
+                putBytes(md, tlv.getTag().getTagBytes());
+                putBytes(md, tlv.getValueBytes());
+            }
+        }
+
+        return md.digest();
+    }
+
+
+    /**
+     * Fingerprint of objects without a canonical encoding (terminal configuration, CA keys, CRL): all their fields as
+     * serialized by Gson, with the object members sorted by name, same as for the card applications in
+     * {@link #compute}.
+     *
+     * @param objects may contain nulls
+     * @return SHA-256 or an empty array if some of the objects cannot be serialized by Gson, see {@link #isSame}
+     */
+    static byte[] computeOf(Object... objects) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        putInt(md, objects.length);
+        for (final Object o : objects) {
+            final JsonElement e;
+            try {
+                e = GSON.toJsonTree(o);
+            } catch (RuntimeException ex) {
+                // e.g. a proxy or a class with fields Gson cannot access
+                return NOT_SERIALIZABLE;
+            }
+            putString(md, o != null ? o.getClass().getName() : null);
+            putJson(md, e);
+        }
+
+        return md.digest();
+    }
+
+
+    /**
+     * @return if both fingerprints are computed by {@link #computeOf} and equal
+     */
+    static boolean isSame(byte[] fingerprint, byte[] otherFingerprint) {
+        return fingerprint.length != 0 && Arrays.equals(fingerprint, otherFingerprint);
+    }
+
+
+    private static void putJson(MessageDigest md, JsonElement e) {
+        if (e == null || e.isJsonNull()) {
+            md.update((byte) 'n');
+        } else if (e.isJsonPrimitive()) {
+            JsonPrimitive p = e.getAsJsonPrimitive();
+            md.update((byte) (p.isString() ? 's' : p.isBoolean() ? 'b' : 'd'));
+            putString(md, p.getAsString());
+        } else if (e.isJsonArray()) {
+            JsonArray a = e.getAsJsonArray();
+            md.update((byte) 'a');
+            putInt(md, a.size());
+            for (JsonElement item : a) {
+                putJson(md, item);
+            }
+        } else {
+            JsonObject o = e.getAsJsonObject();
+            List<String> names = new ArrayList<>();
+            for (Map.Entry<String, JsonElement> member : o.entrySet()) {
+                names.add(member.getKey());
+            }
+            Collections.sort(names);
+
+            md.update((byte) 'o');
+            putInt(md, names.size());
+            for (String name : names) {
+                putString(md, name);
+                putJson(md, o.get(name));
+            }
+        }
+    }
+
+
+    private static void putInt(MessageDigest md, int value) {
+        md.update((byte) (value >>> 24));
+        md.update((byte) (value >>> 16));
+        md.update((byte) (value >>> 8));
+        md.update((byte) value);
+    }
+
+
+    private static void putString(MessageDigest md, String value) {
+        putBytes(md, value != null ? value.getBytes(UTF_8) : null);
+    }
+
+
+    private static void putBytes(MessageDigest md, byte[] value) {
+        if (value == null) {
+            putInt(md, -1);
+        } else {
+            putInt(md, value.length);
+            md.update(value);
+        }
+    }
+}
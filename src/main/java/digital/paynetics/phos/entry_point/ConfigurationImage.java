@@ -0,0 +1,314 @@
+package digital.paynetics.phos.entry_point;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+
+
+/**
+ * Compact binary image of the application configurations with their entry point values already decoded. Meant to be
+ * written once, when a new configuration is received, and memory-mapped on start-up so the configurations can be
+ * compiled without decoding TLVs and BCD limits. Entries are read lazily, only when looked up. The image replaces only
+ * the decoding done by {@link CompiledAppConfigurations#compile}, the {@link PosChangeableConfiguration} it was written
+ * from must still be loaded as usual.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * header:  int magic, short format version, short reserved, int entry count, int data offset, int data length
+ * entries: sorted by key (AID + '/' + transaction type), each:
+ *          int key offset, short key length, byte flags, byte reserved, int TLV checksum,
+ *          int contactless transaction limit, int contactless floor limit, int terminal floor limit,
+ *          int CVM required limit, int TTQ JSON offset, int TTQ JSON length
+ * data:    UTF-8 keys and TTQ configuration JSONs, offsets are relative to the data offset
+ * </pre>
+ * Each entry carries a checksum of the TLVs it was decoded from, so a stale image is detected per entry and such
+ * entries are decoded from the TLVs as usual.
+ */
+public final class ConfigurationImage {
+    static final int MAGIC = 0x50484349; // "PHCI"
+    static final short FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 20;
+    private static final int ENTRY_SIZE = 36;
+
+    private static final int FLAG_DECODED = 1;
+    private static final int FLAG_STATUS_CHECK = 1 << 1;
+    private static final int FLAG_ZERO_AMOUNT = 1 << 2;
+    private static final int FLAG_EXTENDED_SELECTION = 1 << 3;
+    private static final int FLAG_TTQ = 1 << 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int entryCount;
+    private final int dataOffset;
+
+
+    private ConfigurationImage(ByteBuffer buffer, int entryCount, int dataOffset) {
+        this.buffer = buffer;
+        this.entryCount = entryCount;
+        this.dataOffset = dataOffset;
+    }
+
+
+    /**
+     * Memory-maps the image read only
+     */
+    public static ConfigurationImage map(File file) throws IOException, InvalidConfigurationException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the channel is closed
+            return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+
+    public static ConfigurationImage wrap(ByteBuffer buffer) throws InvalidConfigurationException {
+        if (buffer.limit() < HEADER_SIZE) {
+            throw new InvalidConfigurationException("Configuration image too short");
+        }
+
+        if (buffer.getInt(0) != MAGIC) {
+            throw new InvalidConfigurationException("Not a configuration image");
+        }
+
+        short version = buffer.getShort(4);
+        if (version != FORMAT_VERSION) {
+            throw new InvalidConfigurationException("Unsupported configuration image version: " + version);
+        }
+
+        int entryCount = buffer.getInt(8);
+        int dataOffset = buffer.getInt(12);
+        int dataLength = buffer.getInt(16);
+        if (entryCount < 0 || dataOffset != HEADER_SIZE + (long) entryCount * ENTRY_SIZE ||
+                dataLength < 0 || (long) dataOffset + dataLength > buffer.limit()) {
+
+            throw new InvalidConfigurationException("Corrupted configuration image");
+        }
+
+        return new ConfigurationImage(buffer, entryCount, dataOffset);
+    }
+
+
+    /**
+     * Converts the application configurations of <code>configuration</code> to an image
+     */
+    public static void write(PosChangeableConfiguration configuration, File file) throws IOException {
+        ByteBuffer image = toImage(configuration.getCardAppConfigurations());
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            FileChannel channel = fos.getChannel();
+            while (image.hasRemaining()) {
+                channel.write(image);
+            }
+            channel.force(true);
+        }
+    }
+
+
+    static ByteBuffer toImage(List<CardAppConfiguration> cardAppConfigurations) {
+        List<Entry> entries = new ArrayList<>();
+        for (CardAppConfiguration cac : cardAppConfigurations) {
+            entries.add(new Entry(key(cac.getApplicationId(), cac.getTransactionType()),
+                    AppConfigurationData.decode(cac.getTlvConfigData()),
+                    AppConfigurationData.checksum(cac.getTlvConfigData())));
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return compareKeys(o1.key, o2.key);
+            }
+        });
+
+        int dataLength = 0;
+        for (Entry e : entries) {
+            dataLength += e.key.length + (e.ttqJson != null ? e.ttqJson.length : 0);
+        }
+
+        int dataOffset = HEADER_SIZE + entries.size() * ENTRY_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(dataOffset + dataLength);
+        buffer.putInt(MAGIC);
+        buffer.putShort(FORMAT_VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(entries.size());
+        buffer.putInt(dataOffset);
+        buffer.putInt(dataLength);
+
+        int dataPos = 0;
+        for (Entry e : entries) {
+            AppConfigurationData d = e.data;
+            int flags = 0;
+            if (d != null) {
+                flags |= FLAG_DECODED;
+                flags |= d.statusCheckEnabled ? FLAG_STATUS_CHECK : 0;
+                flags |= d.zeroAmountAllowed ? FLAG_ZERO_AMOUNT : 0;
+                flags |= d.extendedSelectionSupported ? FLAG_EXTENDED_SELECTION : 0;
+                flags |= d.ttqJson != null ? FLAG_TTQ : 0;
+            }
+
+            buffer.putInt(dataPos);
+            buffer.putShort((short) e.key.length);
+            buffer.put((byte) flags);
+            buffer.put((byte) 0);
+            buffer.putInt(e.checksum);
+            buffer.putInt(d != null ? d.readerContactlessTransactionLimit : -1);
+            buffer.putInt(d != null ? d.readerContactlessFloorLimit : -1);
+            buffer.putInt(d != null ? d.terminalFloorLimit : -1);
+            buffer.putInt(d != null ? d.readerCvmLimit : -1);
+            dataPos += e.key.length;
+            buffer.putInt(dataPos);
+            buffer.putInt(e.ttqJson != null ? e.ttqJson.length : 0);
+            dataPos += e.ttqJson != null ? e.ttqJson.length : 0;
+        }
+
+        for (Entry e : entries) {
+            buffer.put(e.key);
+            if (e.ttqJson != null) {
+                buffer.put(e.ttqJson);
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+
+    public int size() {
+        return entryCount;
+    }
+
+
+    /**
+     * @return index of the entry or -1 if there is no such
+     */
+    int indexOf(String applicationId, TransactionType transactionType) {
+        byte[] key = key(applicationId, transactionType);
+
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareKey(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+
+    int getChecksum(int index) {
+        return buffer.getInt(entryPos(index) + 8);
+    }
+
+
+    /**
+     * @return decoded values or null if the TLVs of the entry could not be decoded when the image was written
+     */
+    AppConfigurationData getData(int index) {
+        int pos = entryPos(index);
+        int flags = buffer.get(pos + 6);
+        if ((flags & FLAG_DECODED) == 0) {
+            return null;
+        }
+
+        String ttqJson = null;
+        if ((flags & FLAG_TTQ) != 0) {
+            ttqJson = new String(readData(buffer.getInt(pos + 28), buffer.getInt(pos + 32)), UTF_8);
+        }
+
+        return new AppConfigurationData((flags & FLAG_STATUS_CHECK) != 0,
+                (flags & FLAG_ZERO_AMOUNT) != 0,
+                (flags & FLAG_EXTENDED_SELECTION) != 0,
+                buffer.getInt(pos + 12),
+                buffer.getInt(pos + 16),
+                buffer.getInt(pos + 20),
+                buffer.getInt(pos + 24),
+                ttqJson);
+    }
+
+
+    private int entryPos(int index) {
+        if (index < 0 || index >= entryCount) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+
+        return HEADER_SIZE + index * ENTRY_SIZE;
+    }
+
+
+    private int compareKey(int index, byte[] key) {
+        int pos = entryPos(index);
+        int keyPos = dataOffset + buffer.getInt(pos);
+        int keyLength = buffer.getShort(pos + 4) & 0xffff;
+
+        int len = Math.min(keyLength, key.length);
+        for (int i = 0; i < len; i++) {
+            int cmp = (buffer.get(keyPos + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+
+        return keyLength - key.length;
+    }
+
+
+    private byte[] readData(int offset, int length) {
+        byte[] ret = new byte[length];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(dataOffset + offset);
+        dup.get(ret);
+        return ret;
+    }
+
+
+    private static byte[] key(String applicationId, TransactionType transactionType) {
+        return (applicationId + "/" + transactionType.name()).getBytes(UTF_8);
+    }
+
+
+    private static int compareKeys(byte[] k1, byte[] k2) {
+        int len = Math.min(k1.length, k2.length);
+        for (int i = 0; i < len; i++) {
+            int cmp = (k1[i] & 0xff) - (k2[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+
+        return k1.length - k2.length;
+    }
+
+
+    private static final class Entry {
+        final byte[] key;
+        final AppConfigurationData data;
+        final int checksum;
+        final byte[] ttqJson;
+
+
+        Entry(byte[] key, AppConfigurationData data, int checksum) {
+            this.key = key;
+            this.data = data;
+            this.checksum = checksum;
+            this.ttqJson = data != null && data.ttqJson != null ? data.ttqJson.getBytes(UTF_8) : null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package digital.paynetics.phos.entry_point;
+
+import digital.paynetics.phos.kernel.common.misc.CertificateData;
+import digital.paynetics.phos.kernel.common.misc.TerminalConfig;
+
+
+/**
+ * Immutable, versioned set of the configuration used by a transaction. A transaction pins the snapshot that was
+ * current when it started and uses it until its end, regardless of newer snapshots published meanwhile.
+ *
+ * @see ConfigurationSnapshotHolder
+ */
+public final class ConfigurationSnapshot {
+    private final long version;
+    private final TerminalConfig terminalConfig;
+    private final CertificateData certificateData;
+    private final PosChangeableConfiguration posChangeableConfiguration;
+    private volatile byte[] terminalFingerprint;
+
+
+    ConfigurationSnapshot(long version,
+                          TerminalConfig terminalConfig,
+                          CertificateData certificateData,
+                          PosChangeableConfiguration posChangeableConfiguration) {
+
+        this.version = version;
+        this.terminalConfig = terminalConfig;
+        this.certificateData = certificateData;
+        this.posChangeableConfiguration = posChangeableConfiguration;
+    }
+
+
+    public long getVersion() {
+        return version;
+    }
+
+
+    public TerminalConfig getTerminalConfig() {
+        return terminalConfig;
+    }
+
+
+    public CertificateData getCertificateData() {
+        return certificateData;
+    }
+
+
+    /**
+     * @return application configuration or null if applications are given per transaction
+     */
+    public PosChangeableConfiguration getPosChangeableConfiguration() {
+        return posChangeableConfiguration;
+    }
+
+
+    /**
+     * @return fingerprint of the terminal configuration and the certificate data, computed once
+     * @see ConfigurationFingerprint#computeOf(Object...)
+     */
+    byte[] getTerminalFingerprint() {
+        byte[] ret = terminalFingerprint;
+        if (ret == null) {
+            ret = ConfigurationFingerprint.computeOf(terminalConfig, certificateData);
+            terminalFingerprint = ret;
+        }
+
+        return ret;
+    }
+
+
+    @Override
+    public String toString() {
+        return "version: " + version + ", " + posChangeableConfiguration;
+    }
+}
@@ -0,0 +1,87 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import digital.paynetics.phos.kernel.common.misc.CertificateData;
+import digital.paynetics.phos.kernel.common.misc.TerminalConfig;
+
+
+/**
+ * Holds the current {@link ConfigurationSnapshot}. A new snapshot is published atomically (copy-on-write), readers
+ * never block and never see a partially updated configuration.
+ */
+public final class ConfigurationSnapshotHolder {
+    private final AtomicReference<ConfigurationSnapshot> current = new AtomicReference<>();
+
+
+    /**
+     * @return current snapshot or null if nothing is published yet
+     */
+    public ConfigurationSnapshot current() {
+        return current.get();
+    }
+
+
+    /**
+     * Publishes a new snapshot. Transactions in progress keep using the snapshot they started with.
+     *
+     * If nothing is changed (terminal config, certificate data and configuration with the same content, see
+     * {@link ConfigurationFingerprint#computeOf} and {@link PosChangeableConfiguration#isSameAs}) the current snapshot
+     * is kept, so transactions keep using the already compiled configuration. Otherwise the application
+     * configurations are compiled on the calling thread before the new snapshot is published, see
+     * {@link EntryPointImpl#installConfiguration}.
+     *
+     * @param posChangeableConfiguration may be null if applications are given per transaction
+     * @return the published snapshot or the current one if nothing is changed
+     */
+    public ConfigurationSnapshot publish(TerminalConfig terminalConfig,
+                                         CertificateData certificateData,
+                                         PosChangeableConfiguration posChangeableConfiguration) {
+
+        if (terminalConfig == null) {
+            throw new NullPointerException("terminalConfig is null");
+        }
+
+        if (certificateData == null) {
+            throw new NullPointerException("certificateData is null");
+        }
+
+        while (true) {
+            ConfigurationSnapshot prev = current.get();
+            if (prev != null && isUnchanged(prev, terminalConfig, certificateData, posChangeableConfiguration)) {
+                return prev;
+            }
+
+            if (posChangeableConfiguration != null) {
+                // compiled before the swap, so the snapshot and its compiled configurations are published together
+                // and no transaction compiles them
+                posChangeableConfiguration.getCompiledAppConfigurations();
+            }
+
+            ConfigurationSnapshot next = new ConfigurationSnapshot(prev != null ? prev.getVersion() + 1 : 1,
+                    terminalConfig,
+                    certificateData,
+                    posChangeableConfiguration);
+
+            if (current.compareAndSet(prev, next)) {
+                return next;
+            }
+        }
+    }
+
+
+    private static boolean isUnchanged(ConfigurationSnapshot snapshot,
+                                       TerminalConfig terminalConfig,
+                                       CertificateData certificateData,
+                                       PosChangeableConfiguration posChangeableConfiguration) {
+
+        if ((snapshot.getTerminalConfig() != terminalConfig || snapshot.getCertificateData() != certificateData) &&
+                !ConfigurationFingerprint.isSame(snapshot.getTerminalFingerprint(),
+                        ConfigurationFingerprint.computeOf(terminalConfig, certificateData))) {
+            return false;
+        }
+
+        PosChangeableConfiguration pcc = snapshot.getPosChangeableConfiguration();
+        return pcc == null ? posChangeableConfiguration == null : pcc.isSameAs(posChangeableConfiguration);
+    }
+}
@@ -0,0 +1,193 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+
+
+/**
+ * Validates the content of a {@link PosChangeableConfiguration}. Runs in linear time: each list is walked once and
+ * the lookups are done in sets.
+ */
+public final class ConfigurationValidator {
+    private ConfigurationValidator() {
+    }
+
+
+    /**
+     * @throws InvalidConfigurationException with all the violations found, if any
+     */
+    public static void validate(List<TransactionType> supportedTransactionTypes,
+                                List<CardApplication> cardApplications,
+                                List<CardAppConfiguration> cardAppConfigurations)
+            throws InvalidConfigurationException {
+
+        final List<ConfigurationViolation> violations = check(supportedTransactionTypes,
+                cardApplications,
+                cardAppConfigurations);
+
+        if (!violations.isEmpty()) {
+            throw new InvalidConfigurationException(violations);
+        }
+    }
+
+
+    /**
+     * @return all the violations found or empty list if the configuration is valid
+     */
+    public static List<ConfigurationViolation> check(List<TransactionType> supportedTransactionTypes,
+                                                     List<CardApplication> cardApplications,
+                                                     List<CardAppConfiguration> cardAppConfigurations) {
+
+        final Set<TransactionType> supported = EnumSet.noneOf(TransactionType.class);
+        supported.addAll(supportedTransactionTypes);
+
+        List<ConfigurationViolation> violations = null;
+
+        final Set<String> caIds = new HashSet<>(cardApplications.size() * 2);
+        int i = 0;
+        for (final CardApplication ca : cardApplications) {
+            if (!caIds.add(ca.applicationId)) {
+                violations = add(violations, new ConfigurationViolation(
+                        ConfigurationViolation.Kind.DUPLICATE_APPLICATION, i, ca.applicationId, null));
+            }
+            i++;
+        }
+
+        i = 0;
+        for (final CardAppConfiguration cac : cardAppConfigurations) {
+            if (!supported.contains(cac.getTransactionType())) {
+                violations = add(violations, new ConfigurationViolation(
+                        ConfigurationViolation.Kind.UNSUPPORTED_TRANSACTION_TYPE,
+                        i,
+                        cac.getApplicationId(),
+                        cac.getTransactionType()));
+            }
+
+            if (!caIds.contains(cac.getApplicationId())) {
+                violations = add(violations, new ConfigurationViolation(
+                        ConfigurationViolation.Kind.UNKNOWN_APPLICATION,
+                        i,
+                        cac.getApplicationId(),
+                        cac.getTransactionType()));
+            }
+            i++;
+        }
+
+        return violations != null ? Collections.unmodifiableList(violations) :
+                Collections.<ConfigurationViolation>emptyList();
+    }
+
+
+    /**
+     * Validates only the entries changed by <code>delta</code>, the rest of the configuration was validated when it
+     * was created
+     *
+     * @param index                    index of the configuration the delta is applied to
+     * @param newAppConfigurations     application configurations with the delta applied
+     * @param removedAppConfigurations keys of the application configurations removed by the delta, the other removals
+     *                                 of the delta are of configurations that do not exist
+     * @throws InvalidConfigurationException with all the violations found, if any
+     */
+    static void validate(CardApplicationIndex index,
+                         ConfigurationDelta delta,
+                         List<CardAppConfiguration> newAppConfigurations,
+                         Set<String> removedAppConfigurations)
+            throws InvalidConfigurationException {
+
+        final List<ConfigurationViolation> violations = check(index,
+                delta,
+                newAppConfigurations,
+                removedAppConfigurations);
+
+        if (!violations.isEmpty()) {
+            throw new InvalidConfigurationException(violations);
+        }
+    }
+
+
+    /**
+     * @return all the violations found or empty list if the changed entries are valid
+     * @see #validate(CardApplicationIndex, ConfigurationDelta, List, Set)
+     */
+    static List<ConfigurationViolation> check(CardApplicationIndex index,
+                                              ConfigurationDelta delta,
+                                              List<CardAppConfiguration> newAppConfigurations,
+                                              Set<String> removedAppConfigurations) {
+
+        List<ConfigurationViolation> violations = null;
+
+        int i = 0;
+        for (final String applicationId : delta.removedApplications) {
+            if (index.getApplication(applicationId) == null) {
+                violations = add(violations, new ConfigurationViolation(
+                        ConfigurationViolation.Kind.NO_SUCH_APPLICATION, i, applicationId, null));
+            }
+            i++;
+        }
+
+        i = 0;
+        for (final String key : delta.removedAppConfigurations) {
+            if (!removedAppConfigurations.contains(key)) {
+                violations = add(violations, new ConfigurationViolation(
+                        ConfigurationViolation.Kind.NO_SUCH_APPLICATION_CONFIGURATION,
+                        i,
+                        ConfigurationDelta.applicationIdOf(key),
+                        ConfigurationDelta.transactionTypeOf(key)));
+            }
+            i++;
+        }
+
+        if (!delta.removedApplications.isEmpty() || !delta.putAppConfigurations.isEmpty()) {
+            i = 0;
+            for (final CardAppConfiguration cac : newAppConfigurations) {
+                final boolean isPut = !delta.putAppConfigurations.isEmpty() &&
+                        delta.putAppConfigurations.get(ConfigurationDelta.appConfigurationKey(cac.getApplicationId(),
+                                cac.getTransactionType())) == cac;
+
+                if (isPut && index.getAppConfigurations(cac.getTransactionType()) == null) {
+                    violations = add(violations, new ConfigurationViolation(
+                            ConfigurationViolation.Kind.UNSUPPORTED_TRANSACTION_TYPE,
+                            i,
+                            cac.getApplicationId(),
+                            cac.getTransactionType()));
+                }
+
+                // configuration left for a removed application or put for an application that does not exist
+                if (delta.removedApplications.contains(cac.getApplicationId()) ||
+                        (isPut && !delta.putApplications.containsKey(cac.getApplicationId()) &&
+                                index.getApplication(cac.getApplicationId()) == null)) {
+
+                    violations = add(violations, new ConfigurationViolation(
+                            ConfigurationViolation.Kind.UNKNOWN_APPLICATION,
+                            i,
+                            cac.getApplicationId(),
+                            cac.getTransactionType()));
+                }
+                i++;
+            }
+        }
+
+        return violations != null ? Collections.unmodifiableList(violations) :
+                Collections.<ConfigurationViolation>emptyList();
+    }
+
+
+    private static List<ConfigurationViolation> add(List<ConfigurationViolation> violations,
+                                                    ConfigurationViolation violation) {
+
+        if (violations == null) {
+            violations = new ArrayList<>();
+        }
+        violations.add(violation);
+
+        return violations;
+    }
+}
@@ -0,0 +1,85 @@
+package digital.paynetics.phos.entry_point;
+
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+
+
+/**
+ * Single problem found by {@link ConfigurationValidator}
+ */
+public final class ConfigurationViolation {
+    public enum Kind {
+        /**
+         * More than one card application with the same AID
+         */
+        DUPLICATE_APPLICATION,
+        /**
+         * Application configuration for a transaction type that is not supported
+         */
+        UNSUPPORTED_TRANSACTION_TYPE,
+        /**
+         * Application configuration for an AID without card application
+         */
+        UNKNOWN_APPLICATION,
+        /**
+         * Removal of a card application that is not in the configuration, see {@link ConfigurationDelta}
+         */
+        NO_SUCH_APPLICATION,
+        /**
+         * Removal of an application configuration that is not in the configuration, see {@link ConfigurationDelta}
+         */
+        NO_SUCH_APPLICATION_CONFIGURATION
+    }
+
+
+    private final Kind kind;
+    private final int index;
+    private final String applicationId;
+    private final TransactionType transactionType;
+
+
+    ConfigurationViolation(final Kind kind,
+                           final int index,
+                           final String applicationId,
+                           final TransactionType transactionType) {
+
+        this.kind = kind;
+        this.index = index;
+        this.applicationId = applicationId;
+        this.transactionType = transactionType;
+    }
+
+
+    public Kind getKind() {
+        return kind;
+    }
+
+
+    /**
+     * @return position of the offending element in the card applications list (for
+     * {@link Kind#DUPLICATE_APPLICATION}), in the removals of the delta (for {@link Kind#NO_SUCH_APPLICATION} and
+     * {@link Kind#NO_SUCH_APPLICATION_CONFIGURATION}) or in the application configurations list (for the other kinds)
+     */
+    public int getIndex() {
+        return index;
+    }
+
+
+    public String getApplicationId() {
+        return applicationId;
+    }
+
+
+    /**
+     * @return transaction type of the offending configuration or null for {@link Kind#DUPLICATE_APPLICATION} and
+     * {@link Kind#NO_SUCH_APPLICATION}
+     */
+    public TransactionType getTransactionType() {
+        return transactionType;
+    }
+
+
+    @Override
+    public String toString() {
+        return kind + " at " + index + ": " + applicationId + (transactionType != null ? "/" + transactionType : "");
+    }
+}
@@ -0,0 +1,155 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+
+/**
+ * View of a list that copies it on the first modification, so the viewed list is never modified. Used to hand the
+ * resident torn transaction log to the kernel: most taps do not touch the log and then nothing is copied, the log
+ * before the kernel is the resident list itself. The elements added and removed are tracked (by identity), so the
+ * changes are known without comparing the lists.
+ * <p>
+ * The view is reused, see {@link #reset(List)}. The copy and the lists of the changes are new each time, so they can be
+ * kept after the view is reset. Not thread-safe.
+ */
+final class CopyOnFirstWriteList<E> extends AbstractList<E> implements RandomAccess {
+    private List<E> base;
+    private ArrayList<E> copy;
+    private ArrayList<E> added;
+    private ArrayList<E> removed;
+
+
+    CopyOnFirstWriteList() {
+        reset(new ArrayList<E>());
+    }
+
+
+    /**
+     * Makes this a view of <code>base</code>, the copy of the previous one (if any) is dropped
+     */
+    void reset(List<E> base) {
+        this.base = base;
+        copy = null;
+        added = null;
+        removed = null;
+        modCount++;
+    }
+
+
+    /**
+     * @return the viewed list if not modified, the modified copy otherwise
+     */
+    List<E> getCurrent() {
+        return copy != null ? copy : base;
+    }
+
+
+    /**
+     * @return elements added since {@link #reset(List)} and still present
+     */
+    List<E> getAdded() {
+        return added != null ? added : Collections.<E>emptyList();
+    }
+
+
+    /**
+     * @return elements of the viewed list removed since {@link #reset(List)}
+     */
+    List<E> getRemoved() {
+        return removed != null ? removed : Collections.<E>emptyList();
+    }
+
+
+    @Override
+    public E get(int index) {
+        return getCurrent().get(index);
+    }
+
+
+    @Override
+    public int size() {
+        return getCurrent().size();
+    }
+
+
+    @Override
+    public E set(int index, E element) {
+        E ret = copy().set(index, element);
+        onRemoved(ret);
+        onAdded(element);
+
+        return ret;
+    }
+
+
+    @Override
+    public void add(int index, E element) {
+        copy().add(index, element);
+        onAdded(element);
+        modCount++;
+    }
+
+
+    @Override
+    public E remove(int index) {
+        E ret = copy().remove(index);
+        onRemoved(ret);
+        modCount++;
+
+        return ret;
+    }
+
+
+    @Override
+    public void clear() {
+        ArrayList<E> c = copy();
+        for (int i = c.size() - 1; i >= 0; i--) {
+            onRemoved(c.get(i));
+        }
+        c.clear();
+        modCount++;
+    }
+
+
+    private ArrayList<E> copy() {
+        if (copy == null) {
+            copy = new ArrayList<>(base);
+            added = new ArrayList<>();
+            removed = new ArrayList<>();
+        }
+
+        return copy;
+    }
+
+
+    private void onAdded(E element) {
+        // added back after it was removed
+        if (!removeByIdentity(removed, element)) {
+            added.add(element);
+        }
+    }
+
+
+    private void onRemoved(E element) {
+        // removed after it was added
+        if (!removeByIdentity(added, element)) {
+            removed.add(element);
+        }
+    }
+
+
+    private static <E> boolean removeByIdentity(List<E> list, E element) {
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (list.get(i) == element) {
+                list.remove(i);
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
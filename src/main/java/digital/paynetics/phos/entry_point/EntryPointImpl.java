@@ -3,15 +3,25 @@ package digital.paynetics.phos.entry_point;
 
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.TimeZone;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 
+import digital.paynetics.phos.entry_point.EntryPointStateMachine.State;
 import digital.paynetics.phos.kernel.common.crypto.EncDec;
 import digital.paynetics.phos.kernel.common.emv.Outcome;
 import digital.paynetics.phos.kernel.common.emv.entry_point.EntryPoint;
@@ -28,7 +38,6 @@ import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
 import digital.paynetics.phos.kernel.common.emv.kernel.common.TlvMap;
 import digital.paynetics.phos.kernel.common.emv.kernel.common.TlvMapImpl;
 import digital.paynetics.phos.kernel.common.emv.kernel.common.TlvMapReadOnly;
-import digital.paynetics.phos.kernel.common.emv.tag.EmvTag;
 import digital.paynetics.phos.kernel.common.emv.tag.Tlv;
 import digital.paynetics.phos.kernel.common.emv.tag.TlvException;
 import digital.paynetics.phos.kernel.common.emv.ui.ContactlessTransactionStatus;
@@ -57,16 +66,57 @@ import digital.paynetics.phos.kernel.mastercard.misc.OutcomePresenter;
 import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLog;
 import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
 import digital.paynetics.phos.kernel.visa.VisaKernel;
-import hirondelle.date4j.DateTime;
 import java8.util.Optional;
 
-import static digital.paynetics.phos.kernel.mastercard.MastercardKernelImpl.logOutcome;
 
 
-public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
+public class EntryPointImpl implements EntryPoint, NfcManager.Listener, Closeable {
+    private static final UserInterfaceRequest UI_PRESENT_CARD = new UserInterfaceRequest(StandardMessages.PRESENT_CARD,
+            ContactlessTransactionStatus.READY_TO_READ, 0, null, null, 0, null);
+    private static final UserInterfaceRequest UI_PRESENT_CARD_AGAIN = new UserInterfaceRequest(
+            StandardMessages.PRESENT_CARD_AGAIN, ContactlessTransactionStatus.READY_TO_READ, 0, null, null, 0, null);
+    private static final UserInterfaceRequest UI_TRY_ANOTHER_CARD = new UserInterfaceRequest(
+            StandardMessages.TRY_ANOTHER_CARD, ContactlessTransactionStatus.NOT_READY, 13, null, null, 0, null);
+
+    // outcomes without per-transaction data are preallocated
+    private static final Outcome OUTCOME_SELECTION_TAG_LOST = Outcome.createTryAgainOutcome(
+            Collections.singletonList(MastercardErrorIndication.createL1Error(
+                    MastercardErrorIndication.L1Error.TIME_OUT,
+                    MastercardMessageIdentifier.NOT_AVAILABLE).asErrorIndicationTlv()));
+    private static final Outcome OUTCOME_SELECTION_PARSING_ERROR =
+            createSelectionErrorOutcome(MastercardErrorIndication.L2Error.PARSING_ERROR);
+    private static final Outcome OUTCOME_EMPTY_CANDIDATE_LIST =
+            createSelectionErrorOutcome(MastercardErrorIndication.L2Error.EMPTY_CANDIDATE_LIST);
+    private static final MastercardErrorIndication EI_L1_TIME_OUT_TRY_AGAIN = MastercardErrorIndication.createL1Error(
+            MastercardErrorIndication.L1Error.TIME_OUT, MastercardMessageIdentifier.TRY_AGAIN);
+    private static final Outcome OUTCOME_TAP_TIME_BUDGET_EXCEEDED = createTapTimeBudgetExceededOutcome();
+    private static final Outcome OUTCOME_PROCESSING_FAILED = createProcessingFailedOutcome();
+
+    private static final TransactionPhase[] PHASES = TransactionPhase.values();
+    private static final EntryPointStateMachine.StopHandler<Transceiver, Kernel> STOP_HANDLER =
+            new EntryPointStateMachine.StopHandler<Transceiver, Kernel>() {
+                @Override
+                public void close(Transceiver tag) {
+                    tag.close();
+                }
+
+
+                @Override
+                public boolean stop(Kernel kernel) {
+                    return kernel.stopSignal();
+                }
+            };
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
     private final org.slf4j.Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private final EntryPointPreprocessor entryPointPreprocessor;
+    private final SpeculativePreprocessor speculativePreprocessor;
     private final Provider<ApplicationSelector> applicationSelectorProvider;
     private final TimeProvider timeProvider;
 
@@ -78,40 +128,72 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
     private EntryPointUiRequester entryPointUiRequester;
     private NfcManager nfcManager;
 
-    private final Provider<MastercardKernel> mastercardKernelProvider;
-    private final Provider<VisaKernel> visaKernelProvider;
-    private final MastercardMagstripeFailedCounter mastercardMagstripeFailedCounter;
+    private final KernelPool kernelPool;
     private final IntermediateOutcomeStore intermediateOutcomeStore;
     private final MessageStore messageStore;
     private final MessageStoreMc messageStoreMc;
     private final TornTransactionLog tornTransactionLog;
     private final TornTransactionLogPersister tornTransactionLogPersister;
+    private final TornTransactionLogWriteBehind tornTransactionLogWriteBehind;
     private final boolean isAutorunOn;
     private final boolean dontLogDataRecord;
     private final boolean useLightLogging;
 
-    private State state = State.IDLE;
+    private final EntryPointStateMachine<Transceiver, Kernel> stateMachine =
+            new EntryPointStateMachine<>(STOP_HANDLER);
+    private final EntryPointStateMachine.TagProcessor<Transceiver> tagProcessor =
+            new EntryPointStateMachine.TagProcessor<Transceiver>() {
+                @Override
+                public void process(Transceiver tag, long session) {
+                    processTag(tag, session);
+                }
+            };
 
     private TransactionData transactionData;
     private ApplicationSelector applicationSelector;
-    private TerminalConfig terminalConfig;
-    private CertificateData certificateData;
 
-    private boolean isInitialized = false;
+    private final ConfigurationSnapshotHolder configurationSnapshotHolder; // may be shared with other sessions
+    private final boolean isConfigurationShared;
+    private ConfigurationSnapshot snapshot; // pinned for the current transaction
 
-    private volatile boolean isStopSignalReceived = false;
+    private boolean isInitialized = false;
 
-    private Kernel processingKernel;
+    private long session; // card session being processed, see EntryPointStateMachine
     private volatile Transceiver transceiver;
-    private volatile Transceiver transceiverPostponed;
 
     private EncDec encDec;
 
+    private List<TornTransactionLogRecord> residentTornLog; // loaded once in init()
+    // given to the kernel instead of the resident log, processing thread only
+    private final CopyOnFirstWriteList<TornTransactionLogRecord> kernelTornLog = new CopyOnFirstWriteList<>();
+
 
     private long startPpse; // used to measure the time between PPSE and kernel end
 
     private Optional<KernelType> lastKernelType = Optional.empty();
 
+    private volatile AidPolicyTrie aidPolicies = AidPolicyTrie.DEFAULT;
+
+    private volatile boolean gcFreeMode = false;
+    private final TransactionTimestampCache timestampCache = new TransactionTimestampCache(); // processing thread only
+    private volatile long tapTimeBudgetNanos = 0; // 0 - not limited
+    private volatile Executor transactionExecutor = DIRECT_EXECUTOR;
+    private volatile CardFingerprinter cardFingerprinter; // null - selection is not resumed
+    private volatile long selectionResumeWindowMillis;
+    private final SelectionResumeCache selectionResumeCache = new SelectionResumeCache();
+    private ScheduledExecutorService watchdog;
+    private boolean isClosed = false; // guarded by this
+
+    private final TransactionMetrics metrics; // may be shared with other sessions
+    private final AsyncOutcomeLogger outcomeLogger;
+    private final NfcRoundTripStats nfcRoundTripStats; // may be shared with other sessions
+    private final long[] phaseMicros = new long[PHASES.length]; // -1 if the phase is not measured
+    private long tagDetectedAt; // System.nanoTime()
+    private long ppseStartedAt; // System.nanoTime()
+    private boolean isSelectionResumed; // PPSE and the candidate list are taken over from the previous tap
+
+    private boolean isWarmingUp = false;
+
 
     @Inject
     public EntryPointImpl(EntryPointPreprocessor entryPointPreprocessor,
@@ -130,21 +212,74 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
                           @Named("dont log data record") boolean dontLogDataRecord,
                           @Named("use light logging") boolean useLightLogging) {
 
+        this(entryPointPreprocessor,
+                applicationSelectorProvider,
+                timeProvider,
+                commonDolDataPreparer,
+                mastercardKernelProvider,
+                visaKernelProvider,
+                mastercardMagstripeFailedCounter,
+                intermediateOutcomeStore,
+                messageStore,
+                messageStoreMc,
+                tornTransactionLog,
+                tornTransactionLogPersister,
+                isAutorunOn,
+                dontLogDataRecord,
+                useLightLogging,
+                null,
+                new TransactionMetrics(),
+                new NfcRoundTripStats());
+    }
+
+
+    /**
+     * @param configurationSnapshotHolder shared with the other sessions, null for a standalone instance
+     * @param metrics                     may be shared with the other sessions
+     * @param nfcRoundTripStats           may be shared with the other sessions
+     * @see EntryPointSessionFactory
+     */
+    EntryPointImpl(EntryPointPreprocessor entryPointPreprocessor,
+                   Provider<ApplicationSelector> applicationSelectorProvider,
+                   TimeProvider timeProvider,
+                   CommonDolDataPreparer commonDolDataPreparer,
+                   Provider<MastercardKernel> mastercardKernelProvider,
+                   Provider<VisaKernel> visaKernelProvider,
+                   MastercardMagstripeFailedCounter mastercardMagstripeFailedCounter,
+                   IntermediateOutcomeStore intermediateOutcomeStore,
+                   MessageStore messageStore,
+                   MessageStoreMc messageStoreMc,
+                   TornTransactionLog tornTransactionLog,
+                   TornTransactionLogPersister tornTransactionLogPersister,
+                   boolean isAutorunOn,
+                   boolean dontLogDataRecord,
+                   boolean useLightLogging,
+                   ConfigurationSnapshotHolder configurationSnapshotHolder,
+                   TransactionMetrics metrics,
+                   NfcRoundTripStats nfcRoundTripStats) {
+
+        this.isConfigurationShared = configurationSnapshotHolder != null;
+        this.configurationSnapshotHolder = configurationSnapshotHolder != null ?
+                configurationSnapshotHolder :
+                new ConfigurationSnapshotHolder();
         this.entryPointPreprocessor = entryPointPreprocessor;
+        this.speculativePreprocessor = new SpeculativePreprocessor(entryPointPreprocessor);
         this.applicationSelectorProvider = applicationSelectorProvider;
         this.timeProvider = timeProvider;
         this.commonDolDataPreparer = commonDolDataPreparer;
-        this.mastercardKernelProvider = mastercardKernelProvider;
-        this.visaKernelProvider = visaKernelProvider;
-        this.mastercardMagstripeFailedCounter = mastercardMagstripeFailedCounter;
+        this.kernelPool = new KernelPool(mastercardKernelProvider, visaKernelProvider, mastercardMagstripeFailedCounter);
         this.intermediateOutcomeStore = intermediateOutcomeStore;
         this.messageStore = messageStore;
         this.messageStoreMc = messageStoreMc;
         this.tornTransactionLog = tornTransactionLog;
         this.tornTransactionLogPersister = tornTransactionLogPersister;
+        this.tornTransactionLogWriteBehind = new TornTransactionLogWriteBehind(tornTransactionLogPersister);
         this.isAutorunOn = isAutorunOn;
         this.dontLogDataRecord = dontLogDataRecord;
         this.useLightLogging = useLightLogging;
+        this.outcomeLogger = new AsyncOutcomeLogger(256, dontLogDataRecord);
+        this.metrics = metrics;
+        this.nfcRoundTripStats = nfcRoundTripStats;
     }
 
 
@@ -160,14 +295,259 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
         this.entryPointUiRequester = entryPointUiRequester;
         this.nfcManager = nfcManager;
         nfcManager.init(this);
-        this.terminalConfig = terminalConfig;
-        this.certificateData = certificateData;
+        ConfigurationSnapshot current = configurationSnapshotHolder.current();
+        if (isConfigurationShared && current != null) {
+            // published through the factory or by another session, not overridden for the other sessions
+            logger.debug("Shared configuration kept: {}", current);
+        } else {
+            // keep the PosChangeableConfiguration if published already
+            configurationSnapshotHolder.publish(terminalConfig,
+                    certificateData,
+                    current != null ? current.getPosChangeableConfiguration() : null);
+        }
+        installConfiguration(entryPointPreprocessor, configurationSnapshotHolder.current());
         this.encDec = encDec;
+
+        tornTransactionLogWriteBehind.awaitDurable();
+        residentTornLog = tornTransactionLogPersister.load();
+        tornTransactionLogWriteBehind.reset(residentTornLog);
+        if (!useLightLogging) {
+            logger.debug("Torn transaction log loaded with size: {}", residentTornLog.size());
+        }
+
         isInitialized = true;
         intermediateOutcomeStore.clear();
     }
 
 
+    /**
+     * Stops the background threads of this instance. Must be called when the instance is no longer used, i.e. after
+     * the outcome of the last transaction.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            isClosed = true;
+            if (watchdog != null) {
+                watchdog.shutdownNow();
+            }
+        }
+        speculativePreprocessor.close();
+        kernelPool.close();
+        tornTransactionLogWriteBehind.close();
+        outcomeLogger.close();
+    }
+
+
+    /**
+     * @return latencies of the transaction phases, tagged by kernel type and outcome type, of all the sessions if
+     * created by {@link EntryPointSessionFactory}
+     */
+    public TransactionMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * @return NFC round-trip times aggregated across transactions, of all the sessions if created by
+     * {@link EntryPointSessionFactory}
+     */
+    public NfcRoundTripStats getNfcRoundTripStats() {
+        return nfcRoundTripStats;
+    }
+
+
+    /**
+     * Warms up the JIT with <code>transactionsPerKernel</code> synthetic transactions (pre-processing, selection and
+     * kernel processing) for each kernel type of <code>simulator</code>. Called instead of {@link #init} on a
+     * throwaway instance: the kernels leave their state in the stores, the magstripe failed counter and the torn
+     * transaction log of the instance, so they must not be shared with the instances used for transactions. The
+     * outcomes are not reported, the torn transaction log is not persisted. The instance is closed afterwards.
+     *
+     * @see EntryPointSessionFactory#warmUp
+     */
+    public WarmUpReport warmUp(WarmUpCardSimulator simulator,
+                               int transactionsPerKernel,
+                               TerminalConfig terminalConfig,
+                               CertificateData certificateData,
+                               EncDec encDec) {
+
+        if (transactionsPerKernel < 0) {
+            throw new IllegalArgumentException("transactionsPerKernel: " + transactionsPerKernel);
+        }
+
+        if (isInitialized) {
+            throw new IllegalStateException("Initialized for transactions");
+        }
+
+        configurationSnapshotHolder.publish(terminalConfig, certificateData, simulator.getConfiguration());
+        this.encDec = encDec;
+        try {
+            return warmUp(simulator, transactionsPerKernel);
+        } finally {
+            close();
+        }
+    }
+
+
+    /**
+     * Sets the scheme specific policies used to choose the kernel. Should be the same as the ones given to
+     * {@link EntryPointPreprocessorImpl2#setAidPolicies(AidPolicyTrie)}. {@link AidPolicyTrie#DEFAULT} is used if
+     * not set.
+     */
+    public void setAidPolicies(AidPolicyTrie aidPolicies) {
+        this.aidPolicies = aidPolicies;
+    }
+
+
+    /**
+     * When on, garbage collection is not forced after each kernel run, so the outcome is not delayed by a full GC
+     * pause, and the transaction timestamp is reused within the same second. Off by default.
+     * <p>
+     * Selection, DOL preparation and the kernels still allocate, as does the entry point when the session is cancelled
+     * or the tag is lost during the Mastercard kernel (the outcome carries the data of the transaction).
+     */
+    public void setGcFreeMode(boolean gcFreeMode) {
+        this.gcFreeMode = gcFreeMode;
+    }
+
+
+    /**
+     * Sets the executor that processes the card sessions (selection, kernel processing, outcome dispatch), so
+     * {@link #onNfcTag} returns immediately and slow listeners do not block the NFC stack. Only one card session is
+     * processed at a time, no matter how many threads the executor has, so the listener callbacks keep their order.
+     * By default the session is processed in the thread that calls {@link #onNfcTag}.
+     *
+     * @see #createTransactionExecutor()
+     */
+    public void setTransactionExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        this.transactionExecutor = executor;
+    }
+
+
+    /**
+     * @return executor with a dedicated maximum priority daemon thread, suitable for
+     * {@link #setTransactionExecutor(Executor)}. Owned by the caller, who shuts it down after {@link #close()}.
+     */
+    public static ExecutorService createTransactionExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "entry point transaction");
+                t.setDaemon(true);
+                t.setPriority(Thread.MAX_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+
+    /**
+     * When the tag is lost after the candidate list is built but before the final SELECT, and the same card (as
+     * identified by <code>fingerprinter</code>) is tapped again within <code>windowMillis</code>, the selection
+     * continues with the final SELECT instead of starting over with SELECT PPSE.
+     * <p>
+     * The application selector of the lost session is reused as it is, the candidate list cannot be copied through
+     * {@link ApplicationSelector}. So the selectors given by the provider must keep a candidate in the list until its
+     * final SELECT response is received, i.e. a tag loss during {@link ApplicationSelector#select} must leave the list
+     * as it was. Do not enable resuming with a selector that does not guarantee that.
+     *
+     * @param fingerprinter null disables resuming (the default)
+     */
+    public void setSelectionResume(CardFingerprinter fingerprinter, long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("windowMillis must not be negative");
+        }
+        this.selectionResumeWindowMillis = windowMillis;
+        this.cardFingerprinter = fingerprinter;
+    }
+
+
+    /**
+     * Limits the duration of the card session, from the tag detection to the outcome. When exceeded the kernel gets
+     * the STOP signal and the transceiver is closed. Unless the kernel already reached a final outcome, the session
+     * ends with END_APPLICATION asking to present the card again (not the STOP outcome). 0 (the default) means no
+     * limit.
+     */
+    public void setTapTimeBudget(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis must not be negative");
+        }
+        tapTimeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+
+    /**
+     * Sets how many kernels of each type are created (and for Mastercard initialized) in advance, in background, so
+     * that is not done after the tap. 0 (the default) disables the pool.
+     */
+    public void setKernelPoolSize(int size) {
+        kernelPool.setSize(size);
+    }
+
+
+    /**
+     * Enables indexing of the torn transaction log by PAN and PAN sequence number, see
+     * {@link #findTornRecord(byte[], int)}. Must be called before {@link #init}.
+     */
+    public void setTornRecordKeyExtractor(TornRecordKeyExtractor keyExtractor) {
+        tornTransactionLogWriteBehind.setKeyExtractor(keyExtractor);
+    }
+
+
+    /**
+     * Enables compaction of the torn transaction log. Requires {@link #setTornRecordKeyExtractor}. Compaction runs in
+     * background, evicted records are dropped from the log before the next transaction.
+     *
+     * @param maxAgeMillis records older than that are evicted, 0 for no limit
+     * @param maxRecords   the oldest records above that count are evicted, 0 for no limit
+     */
+    public void setTornLogCompaction(long maxAgeMillis, int maxRecords) {
+        tornTransactionLogWriteBehind.setCompaction(maxAgeMillis, maxRecords);
+    }
+
+
+    /**
+     * Looks up the torn transaction log in constant time. Requires {@link #setTornRecordKeyExtractor}.
+     *
+     * @param panSequenceNumber -1 if not present
+     */
+    public Optional<TornTransactionLogRecord> findTornRecord(byte[] pan, int panSequenceNumber) {
+        return Optional.ofNullable(tornTransactionLogWriteBehind.find(TornRecordKey.of(pan, panSequenceNumber)));
+    }
+
+
+    /**
+     * Publishes new configuration without re-initializing. Does not block and does not affect the transaction in
+     * progress (if any), the next transaction started with <code>startA_preProcessing</code> uses it.
+     *
+     * @param posChangeableConfiguration may be null, required only by
+     *                                   {@link #startA_preProcessing(int, int, Currency, TransactionType)}
+     * @return version of the published configuration or of the current one if nothing is changed
+     * @see ConfigurationSnapshotHolder#publish(TerminalConfig, CertificateData, PosChangeableConfiguration)
+     */
+    public long publishConfiguration(TerminalConfig terminalConfig,
+                                     CertificateData certificateData,
+                                     PosChangeableConfiguration posChangeableConfiguration) {
+
+        if (!isInitialized) {
+            throw new IllegalStateException("Not initialized");
+        }
+
+        ConfigurationSnapshot published = configurationSnapshotHolder.publish(terminalConfig,
+                certificateData,
+                posChangeableConfiguration);
+        logger.debug("Configuration published: {}", published);
+        // compiles the application configurations now instead of on the first transaction
+        installConfiguration(entryPointPreprocessor, published);
+
+        return published.getVersion();
+    }
+
+
     @Override
     public Optional<Outcome> startA_preProcessing(
             List<CardApplication> apps,
@@ -181,11 +561,66 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
             throw new IllegalStateException("Not initialized");
         }
 
-        if (state != State.IDLE) {
-            throw new IllegalStateException("Can be called only in IDLE state");
+        return startA_preProcessingInternal(configurationSnapshotHolder.current(),
+                apps,
+                appConfs,
+                amountAuthorized,
+                amountOther,
+                currency,
+                transactionType);
+    }
+
+
+    /**
+     * Same as {@link #startA_preProcessing(List, List, int, int, Currency, TransactionType)} but applications are
+     * taken from the {@link PosChangeableConfiguration} of the current configuration snapshot
+     *
+     * @see #publishConfiguration(TerminalConfig, CertificateData, PosChangeableConfiguration)
+     */
+    public Optional<Outcome> startA_preProcessing(int amountAuthorized,
+                                                  int amountOther,
+                                                  Currency currency,
+                                                  TransactionType transactionType) {
+
+        if (!isInitialized) {
+            throw new IllegalStateException("Not initialized");
+        }
+
+        ConfigurationSnapshot current = configurationSnapshotHolder.current();
+        PosChangeableConfiguration conf = current.getPosChangeableConfiguration();
+        if (conf == null) {
+            throw new IllegalStateException("No PosChangeableConfiguration published");
         }
-        state = State.PRE_PROCESSING;
 
+        return startA_preProcessingInternal(current,
+                conf.getCardApplications(),
+                conf.getAppConfigurations(transactionType),
+                amountAuthorized,
+                amountOther,
+                currency,
+                transactionType);
+    }
+
+
+    private Optional<Outcome> startA_preProcessingInternal(
+            ConfigurationSnapshot snapshot,
+            List<CardApplication> apps,
+            List<CardAppConfiguration> appConfs,
+            int amountAuthorized,
+            int amountOther,
+            Currency currency,
+            TransactionType transactionType) {
+
+        if (!isInitialized) {
+            throw new IllegalStateException("Not initialized");
+        }
+
+        stateMachine.transition(State.IDLE, State.PRE_PROCESSING);
+        selectionResumeCache.clear();
+        this.snapshot = snapshot;
+        installConfiguration(entryPointPreprocessor, snapshot);
+        kernelPool.configure(snapshot, encDec);
+        kernelPool.refill();
 
         if (transactionType == TransactionType.CASHBACK) {
             amountAuthorized += amountOther;
@@ -200,12 +635,15 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
         }
 
 
-        appsPreprocessed = entryPointPreprocessor.preProcess(apps,
+        Arrays.fill(phaseMicros, -1);
+        long preProcessingStartedAt = System.nanoTime();
+        appsPreprocessed = speculativePreprocessor.take(apps,
                 appConfs,
                 amountAuthorized,
                 amountOther,
                 currency,
                 transactionType);
+        recordPhase(TransactionPhase.PRE_PROCESSING, preProcessingStartedAt);
 
         boolean allAppsNotAllowed = true;
 
@@ -228,6 +666,39 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
     }
 
 
+    /**
+     * Starts pre-processing for a candidate amount in the background, e.g. while the cashier is typing the amount.
+     * If {@link #startA_preProcessing} is called later with the same parameters (and the same application lists) it
+     * uses the already computed result. May be called any number of times, only the last few candidates are kept.
+     */
+    public void startA_speculativePreProcessing(
+            List<CardApplication> apps,
+            List<CardAppConfiguration> appConfs,
+            int amountAuthorized,
+            int amountOther,
+            Currency currency,
+            TransactionType transactionType) {
+
+        if (transactionType == TransactionType.CASHBACK) {
+            amountAuthorized += amountOther;
+        }
+
+        speculativePreprocessor.submit(apps, appConfs, amountAuthorized, amountOther, currency, transactionType);
+    }
+
+
+    /**
+     * Makes <code>entryPointPreprocessor</code> use the compiled application configurations of the
+     * {@link PosChangeableConfiguration} of <code>snapshot</code> (if any). Compiles them if not compiled yet.
+     */
+    static void installConfiguration(EntryPointPreprocessor entryPointPreprocessor, ConfigurationSnapshot snapshot) {
+        PosChangeableConfiguration conf = snapshot != null ? snapshot.getPosChangeableConfiguration() : null;
+        if (conf != null && entryPointPreprocessor instanceof EntryPointPreprocessorImpl2) {
+            ((EntryPointPreprocessorImpl2) entryPointPreprocessor).install(conf);
+        }
+    }
+
+
     @Override
     public Outcome startB_protocolActivationFromReaderDirect(IsoDepWrapper isoDepWrapper) {
         throw new UnsupportedOperationException();
@@ -236,20 +707,49 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
 
     @Override
     public void stopSignal() {
-        logger.debug("STOP signal (state: {})", state);
-        if (state == State.SELECTION) {
-            isStopSignalReceived = true;
-            transceiver.close();
-        } else if (state == State.KERNEL_PROCESSING) {
-            if (processingKernel != null) {
-                boolean isAccepted = processingKernel.stopSignal();
-                if (isAccepted) {
-                    isStopSignalReceived = true;
-                } else {
-                    logger.debug("STOP signal ignored by the Mastercard kernel", state);
-                }
+        logger.debug("STOP signal (state: {})", stateMachine.getState());
+        stateMachine.stop(CancellationToken.Reason.STOP_SIGNAL, EntryPointStateMachine.ANY_SESSION);
+    }
+
+
+    private ScheduledFuture<?> scheduleDeadline(final long session) {
+        long budget = tapTimeBudgetNanos;
+        ScheduledExecutorService executor = budget != 0 ? getWatchdog() : null;
+        if (executor == null) {
+            return null;
+        }
+
+        return executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                logger.warn("Tap time budget exceeded");
+                // the kernel may ignore the STOP signal, the tag is closed and the next APDU fails
+                stateMachine.stop(CancellationToken.Reason.TAP_TIME_BUDGET_EXCEEDED, session);
             }
+        }, budget - (System.nanoTime() - tagDetectedAt), TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * @return null if closed
+     */
+    private synchronized ScheduledExecutorService getWatchdog() {
+        if (isClosed) {
+            return null;
+        }
+
+        if (watchdog == null) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "transaction watchdog");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
         }
+
+        return watchdog;
     }
 
 
@@ -264,25 +764,72 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
         if (!isInitialized) {
             throw new IllegalStateException("Not initialized");
         }
+        stateMachine.offerTag(transceiver);
+        transactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stateMachine.processTags(tagProcessor);
+                } catch (RuntimeException e) {
+                    // the executor may swallow it
+                    logger.error("Card session processing failed", e);
+                    abortSession(e);
+                    throw e;
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Ends the card session that failed with <code>cause</code>, so it does not stay in SELECTION or
+     * KERNEL_PROCESSING state forever
+     */
+    private void abortSession(RuntimeException cause) {
+        if (!stateMachine.tryTransition(State.SELECTION, State.ENDED) &&
+                !stateMachine.tryTransition(State.KERNEL_PROCESSING, State.ENDED)) {
+            return;
+        }
+
+        try {
+            nfcManager.stopPolling();
+            listener.onOutcome(OUTCOME_PROCESSING_FAILED, intermediateOutcomeStore.get(), messageStore.get(),
+                    Optional.empty());
+        } catch (RuntimeException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+
+    /**
+     * Called in SELECTION state by {@link EntryPointStateMachine#processTags}, returns in WAITING_FOR_TAG or ENDED
+     * state
+     */
+    private void processTag(Transceiver transceiver, long session) {
+        this.session = session;
+        tagDetectedAt = System.nanoTime();
         this.transceiver = transceiver;
+        ScheduledFuture<?> deadline = scheduleDeadline(session);
         listener.onStartedReadingCard();
-        startC_CombinationSelectionInternalA(transceiver);
+        try {
+            startC_CombinationSelectionInternalA(transceiver);
+        } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+        }
     }
 
 
     private void startB_protocolActivationInternal() {
-        if (state != State.PRE_PROCESSING) {
-            throw new IllegalStateException("Can be called only in PRE_PROCESSING state");
-        }
-        state = State.WAITING_FOR_TAG;
+        stateMachine.transition(State.PRE_PROCESSING, State.WAITING_FOR_TAG);
 
         logger.debug("Start B - protocol activation/waiting for tag");
         // Req 3.2.1.1 not applicable because we are not started directly from the reader see
         // startB_protocolActivationFromReaderDirect
 
         // Req 3.2.1.2 is handled in the reader
-        entryPointUiRequester.uiRequest(new UserInterfaceRequest(StandardMessages.PRESENT_CARD,
-                ContactlessTransactionStatus.READY_TO_READ, 0, null, null, 0, null));
+        entryPointUiRequester.uiRequest(UI_PRESENT_CARD);
 
         // Req 3.2.1.3
         nfcManager.startPolling();
@@ -293,110 +840,114 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
     }
 
 
+    /**
+     * Called in SELECTION state, see {@link #processTag}
+     */
     private void startC_CombinationSelectionInternalA(Transceiver transceiver) {
-        if (state != State.WAITING_FOR_TAG) {
-            logger.warn("startC_CombinationSelectionInternalA can be called only in WAITING_FOR_TAG state");
-            transceiverPostponed = transceiver;
-            return;
-        }
-
-        state = State.SELECTION;
         logger.debug("Start C - Selection");
 
         // req 3.3.2.1 - not applicable, we are not started at B
 
+        CardFingerprinter fingerprinter = cardFingerprinter;
+        ApplicationSelector resumed = null;
+        if (fingerprinter != null && selectionResumeCache.isPresent()) {
+            // the fingerprint is computed only if there is something to resume
+            resumed = selectionResumeCache.take(fingerprinter.getFingerprint(transceiver), timeProvider.getVmTime());
+        }
+        boolean isCandidateListBuilt = false;
         try {
             startPpse = timeProvider.getVmTime();
-            applicationSelector = applicationSelectorProvider.get();
-            Optional<Outcome> ocO = applicationSelector.init(appsPreprocessed, transceiver);
+            ppseStartedAt = System.nanoTime();
+            isSelectionResumed = resumed != null;
+            Optional<Outcome> ocO;
+            if (isSelectionResumed) {
+                logger.debug("Same card tapped again, resuming selection with final SELECT");
+                applicationSelector = resumed;
+                ocO = Optional.empty();
+            } else {
+                recordPhase(TransactionPhase.TAG_TO_PPSE, tagDetectedAt);
+                applicationSelector = applicationSelectorProvider.get();
+                ocO = applicationSelector.init(appsPreprocessed, transceiver);
+            }
             if (!ocO.isPresent()) {
+                isCandidateListBuilt = true;
                 startC_CombinationSelectionInternalCommon(transceiver);
             } else {
-                state = State.ENDED;
+                stateMachine.transition(State.SELECTION, State.ENDED);
                 nfcManager.stopPolling();
                 Outcome oc = ocO.get();
 //                logger.debug("(outc) Entry point outcome: {}", OutcomePresenter.present(oc));
                 if (!useLightLogging) {
-                    logOutcome(logger, oc, dontLogDataRecord);
+                    outcomeLogger.log(AsyncOutcomeLogger.OUTCOME, oc);
                 }
                 listener.onOutcome(oc, intermediateOutcomeStore.get(), messageStore.get(), Optional.empty());
+                commitPhases(null, oc.getType());
             }
         } catch (NfcConnectionLostException e) {
             logger.warn("Tag lost during selection");
-            if (isStopSignalReceived) {
+            if (stateMachine.isTapTimeBudgetExceeded(session)) {
+                endTapTimeBudgetExceeded();
+            } else if (stateMachine.isStopAccepted(session)) {
                 logger.debug("Stop signal processing");
                 nfcManager.exit();
-                state = State.ENDED;
+                stateMachine.transition(State.SELECTION, State.ENDED);
                 Outcome oc = MastercardKernel.createStopOutcome();
                 if (!useLightLogging) {
-                    logOutcome(logger, oc, dontLogDataRecord);
+                    outcomeLogger.log(AsyncOutcomeLogger.OUTCOME, oc);
                 }
                 listener.onOutcome(oc, intermediateOutcomeStore.get(), messageStore.get(), Optional.empty());
+                commitPhases(null, oc.getType());
             } else {
+                if (fingerprinter != null && isCandidateListBuilt) {
+                    // Lost on the final SELECT (the kernels handle the tag loss themselves). The selector is kept as
+                    // it is, relying on select() to leave the candidate list intact, see setSelectionResume().
+                    byte[] fingerprint = fingerprinter.getFingerprint(transceiver);
+                    if (fingerprint != null) {
+                        selectionResumeCache.put(fingerprint,
+                                applicationSelector,
+                                timeProvider.getVmTime() + selectionResumeWindowMillis);
+                    }
+                }
                 logger.debug("Switching back to waiting for tag");
-                state = State.WAITING_FOR_TAG;
-                MastercardErrorIndication ei = MastercardErrorIndication.createL1Error(MastercardErrorIndication.L1Error.TIME_OUT,
-                        MastercardMessageIdentifier.NOT_AVAILABLE);
-                TlvMap dd = new TlvMapImpl();
-                dd.add(ei.asErrorIndicationTlv());
-
-                Outcome oc = Outcome.createTryAgainOutcome(dd.asList());
+                stateMachine.transition(State.SELECTION, State.WAITING_FOR_TAG);
+                Outcome oc = OUTCOME_SELECTION_TAG_LOST;
                 intermediateOutcomeStore.add(oc);
                 if (!useLightLogging) {
-                    logOutcome(logger, oc, dontLogDataRecord);
+                    outcomeLogger.log(AsyncOutcomeLogger.OUTCOME, oc);
                 }
                 listener.onEndedReadingCard();
             }
         } catch (IOException e) {
             logger.warn("Error while selecting app: {}", e);
             logger.debug("Switching back to waiting for tag");
-            state = State.WAITING_FOR_TAG;
+            stateMachine.transition(State.SELECTION, State.WAITING_FOR_TAG);
             listener.onEndedReadingCard();
         } catch (TlvException | EmvException e) {
             logger.warn("Error while selecting app: {}", e);
 
-            Outcome.Builder b = new Outcome.Builder(Outcome.Type.END_APPLICATION);
-
-            UserInterfaceRequest uiReq = new UserInterfaceRequest(StandardMessages.TRY_ANOTHER_CARD,
-                    ContactlessTransactionStatus.NOT_READY,
-                    13,
-                    null,
-                    null,
-                    0,
-                    null);
-            b.uiRequestOnOutcome(uiReq);
-
-            MastercardErrorIndication ei = MastercardErrorIndication.createL2Error(MastercardErrorIndication.L2Error.PARSING_ERROR,
-                    MastercardMessageIdentifier.ERROR_OTHER_CARD);
-            List<Tlv> dd = new ArrayList<>();
-            dd.add(ei.asErrorIndicationTlv());
-            b.discretionaryData(dd);
-            Outcome oc = b.build();
+            Outcome oc = OUTCOME_SELECTION_PARSING_ERROR;
             if (!useLightLogging) {
-                logOutcome(logger, oc, dontLogDataRecord);
+                outcomeLogger.log(AsyncOutcomeLogger.OUTCOME, oc);
             }
             listener.onOutcome(oc, intermediateOutcomeStore.get(), messageStore.get(), Optional.empty());
+            commitPhases(null, oc.getType());
 //            logger.debug("(outc) Entry point outcome: {}", OutcomePresenter.present(oc));
             logger.debug("Switching back to waiting for tag");
-            state = State.WAITING_FOR_TAG;
+            stateMachine.transition(State.SELECTION, State.WAITING_FOR_TAG);
             listener.onEndedReadingCard();
         }
     }
 
 
     private void startC_CombinationSelectionInternalD(Transceiver transceiver) {
-        if (state != State.KERNEL_PROCESSING) {
-            throw new IllegalStateException("Can be called only in KERNEL_PROCESSING state");
-        }
-
-        state = State.SELECTION;
+        stateMachine.transition(State.KERNEL_PROCESSING, State.SELECTION);
 
         try {
             startC_CombinationSelectionInternalCommon(transceiver);
         } catch (IOException e) {
             logger.warn("Error while selecting app: {}", e);
             logger.debug("Switching back to waiting for tag");
-            state = State.WAITING_FOR_TAG;
+            stateMachine.transition(State.SELECTION, State.WAITING_FOR_TAG);
             listener.onEndedReadingCard();
         }
     }
@@ -406,61 +957,55 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
 
         Optional<SelectedApplication> selectedApp = applicationSelector.select(transceiver);
         if (selectedApp.isPresent()) {
-            if (isStopSignalReceived && selectedApp.get().getCandidate().getFinalKernelType() == KernelType.MASTERCARD) {
+            if (!isSelectionResumed) {
+                recordPhase(TransactionPhase.PPSE_TO_FINAL_SELECT, ppseStartedAt);
+            }
+            if (stateMachine.isTapTimeBudgetExceeded(session)) {
+                endTapTimeBudgetExceeded();
+            } else if (stateMachine.isStopAccepted(session) && selectedApp.get().getCandidate().getFinalKernelType() == KernelType.MASTERCARD) {
                 Outcome oc = MastercardKernel.createStopOutcome();
-                logOutcome(logger, oc, dontLogDataRecord);
+                outcomeLogger.log(AsyncOutcomeLogger.OUTCOME, oc);
                 listener.onOutcome(oc, intermediateOutcomeStore.get(), messageStore.get(), Optional.empty());
-                state = State.ENDED;
+                commitPhases(null, oc.getType());
+                stateMachine.transition(State.SELECTION, State.ENDED);
                 listener.onEndedReadingCard();
             } else {
                 // Req 3.4.1.1
                 startD_kernelActivation(transceiver, selectedApp.get());
             }
         } else {
-            Outcome.Builder b = new Outcome.Builder(Outcome.Type.END_APPLICATION);
-
-            UserInterfaceRequest uiReq = new UserInterfaceRequest(StandardMessages.TRY_ANOTHER_CARD,
-                    ContactlessTransactionStatus.NOT_READY,
-                    13,
-                    null,
-                    null,
-                    0,
-                    null);
-            b.uiRequestOnOutcome(uiReq);
-
-            MastercardErrorIndication ei = MastercardErrorIndication.createL2Error(MastercardErrorIndication.L2Error.EMPTY_CANDIDATE_LIST,
-                    MastercardMessageIdentifier.ERROR_OTHER_CARD);
-            List<Tlv> dd = new ArrayList<>();
-            dd.add(ei.asErrorIndicationTlv());
-            b.discretionaryData(dd);
-            Outcome oc = b.build();
-            logOutcome(logger, oc, dontLogDataRecord);
+            Outcome oc = OUTCOME_EMPTY_CANDIDATE_LIST;
+            outcomeLogger.log(AsyncOutcomeLogger.OUTCOME, oc);
             listener.onOutcome(oc, intermediateOutcomeStore.get(), messageStore.get(), Optional.empty());
+            commitPhases(null, oc.getType());
             logger.debug("Switching back to waiting for tag");
-            state = State.WAITING_FOR_TAG;
+            stateMachine.transition(State.SELECTION, State.WAITING_FOR_TAG);
             listener.onEndedReadingCard();
         }
     }
 
 
     private void startD_kernelActivation(Transceiver transceiver, SelectedApplication selected) {
-        if (state != State.SELECTION) {
-            throw new IllegalStateException("Can be called only in SELECTION state");
-        }
-        state = State.KERNEL_PROCESSING;
+        stateMachine.transition(State.SELECTION, State.KERNEL_PROCESSING);
         logger.debug("Start D - kernel activation");
 
-        TransactionTimestamp ts = new TransactionTimestamp(DateTime.forInstant(timeProvider.getWallClockTime(),
-                TimeZone.getTimeZone("UTC")));
+        TransactionTimestamp ts = gcFreeMode ?
+                timestampCache.get(timeProvider.getWallClockTime()) :
+                TransactionTimestampCache.create(timeProvider.getWallClockTime());
 
+        TerminalConfig terminalConfig = snapshot.getTerminalConfig();
         TlvMap commonDolData = commonDolDataPreparer.prepare(terminalConfig.getCountryCode(),
                 terminalConfig.getTerminalType(),
                 transactionData,
                 ts,
                 selected.getCandidate().getPreprocessedApplication().getAppConfig().getTlvConfigData());
         Outcome oc;
-        lastKernelType = Optional.of(selected.getCandidate().getFinalKernelType());
-        switch (selected.getCandidate().getFinalKernelType()) {
+        KernelPolicy policy = aidPolicies.lookup(selected.getCandidate().getPreprocessedApplication().getAppConfig()
+                .getApplicationId());
+        KernelType kernelType = policy.resolveKernelType(selected.getCandidate().getFinalKernelType());
+        lastKernelType = Optional.of(kernelType);
+        long kernelStartedAt = System.nanoTime();
+        switch (kernelType) {
             case JCB_VISA:
                 throw new UnsupportedOperationException();
             case MASTERCARD:
@@ -469,8 +1014,8 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
                 oc = processWithMastercardKernel(transceiver, selected, commonDolData, ts);
                 List<Transceiver.StatItem> stats = transceiver.getStats();
                 long nfcTook = 0;
-                for (Transceiver.StatItem si : stats) {
-                    nfcTook += si.getTook();
+                for (int i = 0; i < stats.size(); i++) {
+                    nfcTook += stats.get(i).getTook();
                 }
                 logger.debug("Selection + kernel: {} ms, waiting for response: {} ms",
                         timeProvider.getVmTime() - startPpse, nfcTook);
@@ -481,8 +1026,8 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
 
                 List<Transceiver.StatItem> stats2 = transceiver.getStats();
                 long nfcTook2 = 0;
-                for (Transceiver.StatItem si : stats2) {
-                    nfcTook2 += si.getTook();
+                for (int i = 0; i < stats2.size(); i++) {
+                    nfcTook2 += stats2.get(i).getTook();
                 }
                 logger.debug("Selection + kernel: {} ms, waiting for response: {} ms",
                         timeProvider.getVmTime() - startPpse, nfcTook2);
@@ -500,40 +1045,41 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
                 throw new UnsupportedOperationException();
         }
 
-        System.gc();
+        recordPhase(TransactionPhase.KERNEL_PROCESSING, kernelStartedAt);
+
+        if (stateMachine.isTapTimeBudgetExceeded(session) && !isFinal(oc.getType())) {
+            // the tag was closed by the watchdog, whatever the kernel made of it
+            logger.debug("Tap time budget exceeded, {} replaced", oc.getType());
+            oc = OUTCOME_TAP_TIME_BUDGET_EXCEEDED;
+        }
+
+        if (!gcFreeMode) {
+            System.gc();
+        }
         logger.debug("-------- Ended kernel processing -------- ");
 
+        // formatted and logged in background
         if (!useLightLogging) {
             List<Outcome> imos = intermediateOutcomeStore.get();
-            if (imos.size() > 0) {
-                for (int i = 0; i < imos.size(); i++) {
-
-                    logOutcome(logger, imos.get(i), dontLogDataRecord);
-                }
+            for (int i = 0; i < imos.size(); i++) {
+                outcomeLogger.log(AsyncOutcomeLogger.INTERMEDIATE_OUTCOME, imos.get(i));
             }
-        }
 
-        List<UserInterfaceRequest> uirList = messageStoreMc.getAll();
-
-        if (!useLightLogging) {
-            for (UserInterfaceRequest uir : uirList) {
-                logger.debug("(outc) Message: \n    {}", OutcomePresenter.present(uir));
+            List<UserInterfaceRequest> uirList = messageStoreMc.getAll();
+            for (int i = 0; i < uirList.size(); i++) {
+                outcomeLogger.log(AsyncOutcomeLogger.UI_MESSAGE, uirList.get(i));
             }
 
-            logOutcome(logger, oc, dontLogDataRecord);
+            outcomeLogger.log(AsyncOutcomeLogger.OUTCOME, oc);
         }
+        outcomeLogger.log(AsyncOutcomeLogger.ERROR_INDICATION, oc);
 
-        List<Tlv> ddTlvs = oc.getDiscretionaryData();
-        if (ddTlvs != null) {
-            for (Tlv tlv : ddTlvs) {
-                if (tlv.getTag() == EmvTag.ERROR_INDICATION) {
-                    MastercardErrorIndication mei = MastercardErrorIndication.fromBytes(tlv.getValueBytes());
-                    if (mei.hasError()) {
-                        logger.debug("Error indication: {}", mei);
-                    }
-                    break;
-                }
-            }
+        if (oc.getType() != Outcome.Type.SELECT_NEXT) {
+            long persistenceStartedAt = System.nanoTime();
+            // throws if the torn log cannot be persisted, before any state change, so the session is aborted with
+            // a failure outcome and the kernel outcome is not reported
+            tornTransactionLogWriteBehind.awaitDurable();
+            recordPhase(TransactionPhase.TORN_LOG_PERSISTENCE, persistenceStartedAt);
         }
 
         switch (oc.getType()) {
@@ -542,39 +1088,39 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
                 startC_CombinationSelectionInternalD(transceiver);
                 break;
             case TRY_AGAIN:
-                state = State.WAITING_FOR_TAG;
+                stateMachine.transition(State.KERNEL_PROCESSING, State.WAITING_FOR_TAG);
                 listener.onEndedReadingCard();
                 break;
             case APPROVED:
                 if (isAutorunOn) {
-                    state = State.WAITING_FOR_TAG;
+                    stateMachine.transition(State.KERNEL_PROCESSING, State.WAITING_FOR_TAG);
                     listener.onEndedReadingCard();
                 } else {
                     nfcManager.stopPolling();
-                    state = State.ENDED;
+                    stateMachine.transition(State.KERNEL_PROCESSING, State.ENDED);
                 }
                 break;
             case DECLINED:
                 if (isAutorunOn) {
-                    state = State.WAITING_FOR_TAG;
+                    stateMachine.transition(State.KERNEL_PROCESSING, State.WAITING_FOR_TAG);
                     listener.onEndedReadingCard();
                 } else {
                     nfcManager.stopPolling();
-                    state = State.ENDED;
+                    stateMachine.transition(State.KERNEL_PROCESSING, State.ENDED);
                 }
                 break;
             case ONLINE_REQUEST:
                 if (isAutorunOn) {
-                    state = State.WAITING_FOR_TAG;
+                    stateMachine.transition(State.KERNEL_PROCESSING, State.WAITING_FOR_TAG);
                     listener.onEndedReadingCard();
                 } else {
                     nfcManager.stopPolling();
-                    state = State.ENDED;
+                    stateMachine.transition(State.KERNEL_PROCESSING, State.ENDED);
                 }
                 break;
             case TRY_ANOTHER_INTERFACE:
                 if (isAutorunOn) {
-                    state = State.WAITING_FOR_TAG;
+                    stateMachine.transition(State.KERNEL_PROCESSING, State.WAITING_FOR_TAG);
                     listener.onEndedReadingCard();
                 } else {
                     if (lastKernelType.isPresent()) {
@@ -584,9 +1130,9 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
                         // stopPolling
                         if (lastKernelType.get() == KernelType.VISA) {
                             nfcManager.stopPolling();
-                            state = State.ENDED;
+                            stateMachine.transition(State.KERNEL_PROCESSING, State.ENDED);
                         } else {
-                            state = State.WAITING_FOR_TAG;
+                            stateMachine.transition(State.KERNEL_PROCESSING, State.WAITING_FOR_TAG);
                             listener.onEndedReadingCard();
                         }
                     }
@@ -594,29 +1140,30 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
                 break;
             case END_APPLICATION:
                 if (isAutorunOn) {
-                    state = State.WAITING_FOR_TAG;
+                    stateMachine.transition(State.KERNEL_PROCESSING, State.WAITING_FOR_TAG);
                     listener.onEndedReadingCard();
                     nfcManager.startPolling();
                 } else {
                     if (oc.getStart() == Outcome.Start.B) {
-                        state = State.WAITING_FOR_TAG;
+                        stateMachine.transition(State.KERNEL_PROCESSING, State.WAITING_FOR_TAG);
                         listener.onEndedReadingCard();
                     } else {
                         nfcManager.stopPolling();
-                        state = State.ENDED;
+                        stateMachine.transition(State.KERNEL_PROCESSING, State.ENDED);
                     }
                 }
                 break;
         }
 
         if (oc.getType() != Outcome.Type.SELECT_NEXT) {
+            long dispatchStartedAt = System.nanoTime();
             listener.onOutcome(oc, intermediateOutcomeStore.get(), messageStore.get(), Optional.of(selected));
-        }
-
-        if (transceiverPostponed != null) {
-            Transceiver tmp = transceiverPostponed;
-            transceiverPostponed = null;
-            startC_CombinationSelectionInternalA(tmp);
+            recordPhase(TransactionPhase.OUTCOME_DISPATCH, dispatchStartedAt);
+            commitPhases(kernelType, oc.getType());
+            // whole session, including the kernel runs that ended with SELECT_NEXT
+            nfcRoundTripStats.record(selected.getCandidate().getPreprocessedApplication().getAppConfig()
+                    .getApplicationId(), kernelType, transceiver.getStats(), isSelectionResumed);
+            kernelPool.refill();
         }
     }
 
@@ -626,18 +1173,14 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
                                           TlvMap commonDolData,
                                           TransactionTimestamp ts) {
 
-        VisaKernel visaKernel = visaKernelProvider.get();
-        processingKernel = visaKernel;
-
-        // we don't want to introduce synchronization just for stopping so we will stop a bit late, no big deal
-        if (isStopSignalReceived) {
-            processingKernel.stopSignal();
-        }
+        VisaKernel visaKernel = kernelPool.takeVisaKernel();
+        // the STOP signal given before is delivered now
+        stateMachine.publishKernel(session, visaKernel);
 
         @SuppressWarnings("UnnecessaryLocalVariable")
         Outcome oc = visaKernel.process(transceiver,
                 commonDolData,
-                terminalConfig.getCountryCode(),
+                snapshot.getTerminalConfig().getCountryCode(),
                 transactionData,
                 selected,
                 ts,
@@ -653,31 +1196,22 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
                                                 TlvMap commonDolData,
                                                 TransactionTimestamp ts) {
 
-        MastercardKernel kernel = mastercardKernelProvider.get();
-        processingKernel = kernel;
-
-        // we don't want to introduce synchronization just for stopping so we will stop a bit late, no big deal
-        if (isStopSignalReceived) {
-            processingKernel.stopSignal();
-        }
+        // initialized with the CA RID DB, the CRL and encDec of the snapshot
+        MastercardKernel kernel = kernelPool.takeMastercardKernel(snapshot, encDec);
+        // the STOP signal given before is delivered now
+        stateMachine.publishKernel(session, kernel);
 
 
-        List<TornTransactionLogRecord> ttl = tornTransactionLogPersister.load();
-        if (!useLightLogging) {
-            logger.debug("Torn transaction log loaded with size: {}", ttl.size());
-        }
-        tornTransactionLog.setLog(ttl);
-
-        kernel.init(mastercardMagstripeFailedCounter,
-                certificateData.getCaRidDb(),
-                certificateData.getCertificateRevocationList(),
-                encDec
-        );
+        residentTornLog = tornTransactionLogWriteBehind.applyEvictions(residentTornLog);
+        // the kernel may modify the list it is given, the resident log is copied only if it does
+        kernelTornLog.reset(residentTornLog);
+        tornTransactionLog.setLog(kernelTornLog);
+        List<TornTransactionLogRecord> ttlBefore = residentTornLog;
 
         try {
             Outcome oc = kernel.process(transceiver,
                     commonDolData,
-                    terminalConfig.getCountryCode(),
+                    snapshot.getTerminalConfig().getCountryCode(),
                     transactionData,
                     selected,
                     ts
@@ -689,7 +1223,9 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
             return oc;
         } catch (NfcConnectionLostException e) {
             logger.warn("Tag lost during kernel processing");
-            if (isStopSignalReceived) {
+            if (stateMachine.isTapTimeBudgetExceeded(session)) {
+                return OUTCOME_TAP_TIME_BUDGET_EXCEEDED;
+            } else if (stateMachine.isStopAccepted(session)) {
                 logger.debug("Stop signal processing");
                 nfcManager.exit();
 
@@ -699,20 +1235,11 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
                 return oc;
             } else {
                 logger.debug("Switching back to waiting for tag");
-                MastercardErrorIndication ei = MastercardErrorIndication.createL1Error(MastercardErrorIndication.L1Error.TIME_OUT,
-                        MastercardMessageIdentifier.TRY_AGAIN);
-
-
-                UserInterfaceRequest uiReq = new UserInterfaceRequest(StandardMessages.PRESENT_CARD_AGAIN,
-                        ContactlessTransactionStatus.READY_TO_READ,
-                        0,
-                        null,
-                        null,
-                        0,
-                        null);
+                MastercardErrorIndication ei = EI_L1_TIME_OUT_TRY_AGAIN;
 
+                // carries the discretionary data of the transaction, cannot be preallocated
                 Outcome.Builder b = new Outcome.Builder(Outcome.Type.END_APPLICATION);
-                b.uiRequestOnRestart(uiReq);
+                b.uiRequestOnRestart(UI_PRESENT_CARD_AGAIN);
                 b.removalTimeout(0);
                 b.start(Outcome.Start.B);
                 b.discretionaryData(MastercardKernel.buildDiscretionaryData(kernel.isEmvMode(), kernel.getTlvDb(), ei));
@@ -722,8 +1249,159 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
             logger.warn("IO error {}", e.getMessage());
             return Outcome.createTryAgainOutcome(null);
         } finally {
-            logger.debug("Torn transaction log size after kernel: {}", tornTransactionLog.getLog().size());
-            tornTransactionLogPersister.save(tornTransactionLog.getLog());
+            List<TornTransactionLogRecord> ttlAfter = tornTransactionLog.getLog();
+            TornTransactionLogChanges changes;
+            if (ttlAfter == kernelTornLog) {
+                residentTornLog = kernelTornLog.getCurrent();
+                changes = TornTransactionLogChanges.of(kernelTornLog);
+            } else {
+                // replaced by the kernel
+                residentTornLog = ttlAfter;
+                changes = TornTransactionLogChanges.compute(ttlBefore, ttlAfter);
+            }
+            if (!isWarmingUp) {
+                // persisted in background, awaited before the outcome is reported
+                tornTransactionLogWriteBehind.submit(changes, residentTornLog);
+            }
+        }
+    }
+
+
+    /**
+     * Ends the session in SELECTION state, the card has to be presented again
+     */
+    private void endTapTimeBudgetExceeded() {
+        logger.debug("Tap time budget exceeded, switching back to waiting for tag");
+        stateMachine.transition(State.SELECTION, State.WAITING_FOR_TAG);
+        Outcome oc = OUTCOME_TAP_TIME_BUDGET_EXCEEDED;
+        if (!useLightLogging) {
+            outcomeLogger.log(AsyncOutcomeLogger.OUTCOME, oc);
+        }
+        listener.onOutcome(oc, intermediateOutcomeStore.get(), messageStore.get(), Optional.empty());
+        commitPhases(null, oc.getType());
+        listener.onEndedReadingCard();
+    }
+
+
+    private static boolean isFinal(Outcome.Type type) {
+        return type == Outcome.Type.APPROVED || type == Outcome.Type.DECLINED || type == Outcome.Type.ONLINE_REQUEST;
+    }
+
+
+    private void recordPhase(TransactionPhase phase, long startedAt) {
+        phaseMicros[phase.ordinal()] = (System.nanoTime() - startedAt) / 1000;
+    }
+
+
+    /**
+     * Records the measured phases of the transaction that just ended
+     */
+    private void commitPhases(KernelType kernelType, Outcome.Type outcomeType) {
+        CancellationToken token = stateMachine.getCancellation(session);
+        if (token != null) {
+            long latency = token.takeCancellationLatencyMicros();
+            if (latency >= 0) {
+                logger.debug("Cancelled ({}) {} us before the outcome", token.getReason(), latency);
+                phaseMicros[TransactionPhase.CANCELLATION_TO_OUTCOME.ordinal()] = latency;
+            }
+        }
+
+        for (int i = 0; i < PHASES.length; i++) {
+            if (phaseMicros[i] >= 0) {
+                metrics.record(PHASES[i], kernelType, outcomeType, phaseMicros[i]);
+                phaseMicros[i] = -1;
+            }
+        }
+    }
+
+
+    private WarmUpReport warmUp(WarmUpCardSimulator simulator, int transactionsPerKernel) {
+        logger.debug("Warm-up started");
+
+        residentTornLog = new ArrayList<>();
+        ConfigurationSnapshot current = configurationSnapshotHolder.current();
+        PosChangeableConfiguration conf = simulator.getConfiguration();
+
+        long start = timeProvider.getVmTime();
+        long first = 0;
+        long last = 0;
+        int count = 0;
+        isWarmingUp = true;
+        try {
+            for (KernelType kernelType : simulator.getKernelTypes()) {
+                for (int i = 0; i < transactionsPerKernel; i++) {
+                    long txStart = timeProvider.getVmTime();
+                    try {
+                        warmUpTransaction(current, conf, simulator, kernelType);
+                    } catch (IOException | TlvException | EmvException | RuntimeException e) {
+                        logger.debug("Warm-up transaction failed: {}", e.getMessage());
+                    }
+
+                    last = timeProvider.getVmTime() - txStart;
+                    if (count == 0) {
+                        first = last;
+                    }
+                    count++;
+                }
+            }
+        } finally {
+            isWarmingUp = false;
+        }
+
+        WarmUpReport ret = new WarmUpReport(count, timeProvider.getVmTime() - start, first, last);
+        logger.debug("Warm-up ended: {}", ret);
+
+        return ret;
+    }
+
+
+    private void warmUpTransaction(ConfigurationSnapshot current,
+                                   PosChangeableConfiguration conf,
+                                   WarmUpCardSimulator simulator,
+                                   KernelType kernelType) throws IOException, TlvException, EmvException {
+
+        Transceiver transceiver = simulator.createTransceiver(kernelType);
+        snapshot = current;
+        installConfiguration(entryPointPreprocessor, current);
+        transactionData = new TransactionData(simulator.getAmount(), 0, simulator.getCurrency(),
+                TransactionType.PURCHASE);
+
+        List<PreprocessedApplication> apps = entryPointPreprocessor.preProcess(conf.getCardApplications(),
+                conf.getAppConfigurations(TransactionType.PURCHASE),
+                simulator.getAmount(),
+                0,
+                simulator.getCurrency(),
+                TransactionType.PURCHASE);
+
+        ApplicationSelector selector = applicationSelectorProvider.get();
+        if (selector.init(apps, transceiver).isPresent()) {
+            return;
+        }
+
+        Optional<SelectedApplication> selected = selector.select(transceiver);
+        if (!selected.isPresent()) {
+            return;
+        }
+
+        TransactionTimestamp ts = TransactionTimestampCache.create(timeProvider.getWallClockTime());
+        TerminalConfig terminalConfig = current.getTerminalConfig();
+        TlvMap commonDolData = commonDolDataPreparer.prepare(terminalConfig.getCountryCode(),
+                terminalConfig.getTerminalType(),
+                transactionData,
+                ts,
+                selected.get().getCandidate().getPreprocessedApplication().getAppConfig().getTlvConfigData());
+
+        KernelPolicy policy = aidPolicies.lookup(selected.get().getCandidate().getPreprocessedApplication()
+                .getAppConfig().getApplicationId());
+        switch (policy.resolveKernelType(selected.get().getCandidate().getFinalKernelType())) {
+            case MASTERCARD:
+                processWithMastercardKernel(transceiver, selected.get(), commonDolData, ts);
+                break;
+            case VISA:
+                processWithVisaKernel(transceiver, selected.get(), commonDolData, ts);
+                break;
+            default:
+                logger.debug("Warm-up not supported for kernel type: {}", kernelType);
         }
     }
 
@@ -764,12 +1442,40 @@ public class EntryPointImpl implements EntryPoint, NfcManager.Listener {
     }
 
 
-    enum State {
-        IDLE,
-        PRE_PROCESSING,
-        WAITING_FOR_TAG, // aka Protocol activation
-        SELECTION,
-        KERNEL_PROCESSING,
-        ENDED
+    /**
+     * Not the STOP outcome, the cashier did not stop anything. The card is asked again like after a tag loss.
+     */
+    private static Outcome createTapTimeBudgetExceededOutcome() {
+        Outcome.Builder b = new Outcome.Builder(Outcome.Type.END_APPLICATION);
+        b.uiRequestOnRestart(UI_PRESENT_CARD_AGAIN);
+        b.removalTimeout(0);
+        b.start(Outcome.Start.B);
+
+        MastercardErrorIndication ei = MastercardErrorIndication.createL1Error(MastercardErrorIndication.L1Error.TIME_OUT,
+                MastercardMessageIdentifier.TRY_AGAIN);
+        b.discretionaryData(Collections.singletonList(ei.asErrorIndicationTlv()));
+
+        return b.build();
+    }
+
+
+    private static Outcome createProcessingFailedOutcome() {
+        Outcome.Builder b = new Outcome.Builder(Outcome.Type.END_APPLICATION);
+        b.uiRequestOnOutcome(UI_TRY_ANOTHER_CARD);
+        b.removalTimeout(0);
+
+        return b.build();
+    }
+
+
+    private static Outcome createSelectionErrorOutcome(MastercardErrorIndication.L2Error error) {
+        Outcome.Builder b = new Outcome.Builder(Outcome.Type.END_APPLICATION);
+        b.uiRequestOnOutcome(UI_TRY_ANOTHER_CARD);
+
+        MastercardErrorIndication ei = MastercardErrorIndication.createL2Error(error,
+                MastercardMessageIdentifier.ERROR_OTHER_CARD);
+        b.discretionaryData(Collections.singletonList(ei.asErrorIndicationTlv()));
+
+        return b.build();
     }
 }
@@ -1,8 +1,5 @@
 package digital.paynetics.phos.entry_point;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
-
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
@@ -17,17 +14,11 @@ import digital.paynetics.phos.kernel.common.emv.entry_point.EntryPointConfigurat
 import digital.paynetics.phos.kernel.common.emv.entry_point.preprocessing.EntryPointPreProcessingIndicators;
 import digital.paynetics.phos.kernel.common.emv.entry_point.preprocessing.EntryPointPreprocessor;
 import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
-import digital.paynetics.phos.kernel.common.emv.kernel.common.TlvMap;
-import digital.paynetics.phos.kernel.common.emv.kernel.common.TlvMapImpl;
-import digital.paynetics.phos.kernel.common.emv.tag.EmvTag;
-import digital.paynetics.phos.kernel.common.emv.tag.Tlv;
-import digital.paynetics.phos.kernel.common.emv.tag.TlvException;
 import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
 import digital.paynetics.phos.kernel.common.misc.CardApplication;
 import digital.paynetics.phos.kernel.common.misc.Currency;
 import digital.paynetics.phos.kernel.common.misc.PreprocessedApplication;
 import digital.paynetics.phos.kernel.common.misc.TransactionType;
-import digital.paynetics.phos.kernel.common.misc.TtqConfiguration;
 import java8.util.Optional;
 
 import static digital.paynetics.phos.kernel.common.misc.PhosMessageFormat.format;
@@ -40,12 +31,59 @@ import static digital.paynetics.phos.kernel.common.misc.PhosMessageFormat.format
 public class EntryPointPreprocessorImpl2 implements EntryPointPreprocessor {
     private final org.slf4j.Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    // indicators raised by requirements 3.1.1.3 - 3.1.1.8, see checkAmount()
+    static final int FLAG_STATUS_CHECK_REQUESTED = 1;
+    static final int FLAG_ZERO_AMOUNT = 1 << 1;
+    static final int FLAG_CONTACTLESS_APPLICATION_NOT_ALLOWED = 1 << 2;
+    static final int FLAG_READER_CONTACTLESS_FLOOR_LIMIT_EXCEEDED = 1 << 3;
+    static final int FLAG_READER_CVM_LIMIT_EXCEEDED = 1 << 4;
+
+    private volatile CompiledAppConfigurations compiledAppConfigurations = CompiledAppConfigurations.EMPTY;
+    private volatile CardApplicationIndex cardApplicationIndex = CardApplicationIndex.EMPTY;
+    private volatile AidPolicyTrie aidPolicies = AidPolicyTrie.DEFAULT;
+
 
     @Inject
     public EntryPointPreprocessorImpl2() {
     }
 
 
+    /**
+     * Installs the pre-compiled application configurations of <code>configuration</code>. Configurations installed
+     * previously are dropped. {@link EntryPointImpl} calls it each time a {@link PosChangeableConfiguration} is
+     * published or put in use by a transaction. Application configurations that are not installed (e.g. of another
+     * configuration) are decoded on every call.
+     */
+    public void install(PosChangeableConfiguration configuration) {
+        install(configuration, null);
+    }
+
+
+    /**
+     * Same as {@link #install(PosChangeableConfiguration)} but if the configurations are not compiled yet they are
+     * compiled using the pre-decoded values in <code>image</code> (e.g. memory-mapped on start-up)
+     */
+    public void install(PosChangeableConfiguration configuration, ConfigurationImage image) {
+        CompiledAppConfigurations compiled = configuration.getCompiledAppConfigurations(image);
+        if (compiledAppConfigurations == compiled) {
+            return;
+        }
+
+        // index first: a concurrent preProcess() that sees the new compiled configurations must see the new index too
+        cardApplicationIndex = configuration.getCardApplicationIndex();
+        compiledAppConfigurations = compiled;
+    }
+
+
+    /**
+     * Sets the scheme specific policies. Should be the same as the ones given to
+     * {@link EntryPointImpl#setAidPolicies(AidPolicyTrie)}. {@link AidPolicyTrie#DEFAULT} is used if not set.
+     */
+    public void setAidPolicies(AidPolicyTrie aidPolicies) {
+        this.aidPolicies = aidPolicies;
+    }
+
+
     @Override
     public List<PreprocessedApplication> preProcess(
             List<CardApplication> apps,
@@ -56,11 +94,6 @@ public class EntryPointPreprocessorImpl2 implements EntryPointPreprocessor {
             TransactionType transactionType
     ) {
 
-        Map<String, CardApplication> appsMap = new HashMap<>();
-        for (CardApplication app : apps) {
-            appsMap.put(app.applicationId, app);
-        }
-
         if (amountAuthorized < 0) {
             throw new IllegalArgumentException("amountAuthorized < 0");
         }
@@ -74,8 +107,12 @@ public class EntryPointPreprocessorImpl2 implements EntryPointPreprocessor {
         }
 
 
-        List<PreprocessedApplication> ret = new ArrayList<>();
+        List<PreprocessedApplication> ret = new ArrayList<>(appConfs.size());
 
+        CompiledAppConfigurations compiled = compiledAppConfigurations;
+        CardApplicationIndex index = cardApplicationIndex;
+        AidPolicyTrie policies = aidPolicies;
+        Map<String, CardApplication> appsMap = null;
         for (CardAppConfiguration cac : appConfs) {
             if (cac.getTransactionType() != transactionType) {
                 throw new IllegalArgumentException(format("CardAppConfiguration " +
@@ -83,197 +120,204 @@ public class EntryPointPreprocessorImpl2 implements EntryPointPreprocessor {
                         cac.getTransactionType(), transactionType));
             }
 
-            EntryPointConfiguration epc = extractEntryPointConfiguration(cac.getTlvConfigData());
-            if (epc != null) {
-
-                // Req 3.1.1.1
-                EntryPointPreProcessingIndicators ind = new EntryPointPreProcessingIndicators();
-
+            PreprocessedApplication pa;
+            KernelPolicy policy = policies.lookup(cac.getApplicationId());
+            CompiledAppConfiguration compiledCac = compiled.get(cac);
+            if (compiledCac != null) {
+                pa = compiledCac.preProcess(amountAuthorized, currency.getSingleUnit(), policy);
+            } else {
+                EntryPointConfiguration epc = CompiledAppConfigurations.extractEntryPointConfiguration(cac.getTlvConfigData());
+                if (epc != null) {
+                    // resolving kernel cannot fail because we check parameters when constructing TerminalConfigImpl
+                    KernelType kernelType;
+                    if (index.isIndexOf(apps)) {
+                        kernelType = index.getApplication(cac.getApplicationId()).kernelType;
+                    } else {
+                        if (appsMap == null) {
+                            appsMap = new HashMap<>();
+                            for (CardApplication app : apps) {
+                                appsMap.put(app.applicationId, app);
+                            }
+                        }
+                        kernelType = appsMap.get(cac.getApplicationId()).kernelType;
+                    }
 
-                // Req 3.1.1.2
-                TtqPreProcessing ttq = null;
-                if (epc.ttq != null) {
-                    ttq = new TtqPreProcessing(epc.ttq);
+                    pa = preProcessApplication(cac,
+                            epc,
+                            policy.isReaderLimitsApply(),
+                            policy.resolveKernelType(kernelType),
+                            amountAuthorized,
+                            currency.getSingleUnit());
+                } else {
+                    pa = null;
                 }
+            }
 
-                // Req 3.1.1.3
-                if (epc.statusCheckSupported) {
-                    if (amountAuthorized == currency.getSingleUnit()) {
-                        ind.raiseStatusCheckRequestedFlag();
-                    }
-                }
+            if (pa != null) {
+                ret.add(pa);
+            }
+        }
 
-                // Req 3.1.1.4
-                if (amountAuthorized == 0) {
-                    if (epc.zeroAmountAllowed) {
-                        ind.raiseZeroAmountFlag();
-                    } else {
-                        ind.raiseContactlessApplicationNotAllowedFlag();
-                    }
-                }
+        return ret;
+    }
 
-                if (!isMastercardApp(cac)) {
-                    // Req 3.1.1.5
-                    if (epc.readerContactlessTransactionLimit >= 0 &&
-                            amountAuthorized >= epc.readerContactlessTransactionLimit) {
 
-                        ind.raiseContactlessApplicationNotAllowedFlag();
-                    }
+    /**
+     * Executes requirements 3.1.1.1 - 3.1.1.12 for a single application configuration
+     *
+     * @param readerLimitsApply if requirements 3.1.1.5 - 3.1.1.7 apply
+     */
+    static PreprocessedApplication preProcessApplication(CardAppConfiguration cac,
+                                                         EntryPointConfiguration epc,
+                                                         boolean readerLimitsApply,
+                                                         KernelType kernelType,
+                                                         int amountAuthorized,
+                                                         int singleUnit) {
+
+        return createPreprocessedApplication(cac,
+                epc,
+                kernelType,
+                checkAmount(epc, readerLimitsApply, amountAuthorized, singleUnit));
+    }
 
-                    // Req 3.1.1.6
-                    if (epc.readerContactlessFloorLimit >= 0 &&
-                            amountAuthorized > epc.readerContactlessFloorLimit) {
 
-                        ind.raiseReaderContactlessFloorLimitExceededFlag();
-                    }
+    /**
+     * Executes requirements 3.1.1.3 - 3.1.1.8, the ones depending on the amount
+     *
+     * @param readerLimitsApply if requirements 3.1.1.5 - 3.1.1.7 apply
+     * @return <code>FLAG_*</code> indicators to raise
+     */
+    static int checkAmount(EntryPointConfiguration epc,
+                           boolean readerLimitsApply,
+                           int amountAuthorized,
+                           int singleUnit) {
 
-                    // Req 3.1.1.7
-                    if (epc.readerContactlessFloorLimit < 0) {
-                        if (epc.terminalFloorLimit >= 0) {
-                            if (amountAuthorized > epc.terminalFloorLimit) {
-                                ind.raiseReaderContactlessFloorLimitExceededFlag();
-                            }
-                        }
-                    }
-                }
+        int flags = 0;
 
-                // Req 3.1.1.8
-                if (epc.readerCvmRequiredLimit >= 0 &&
-                        amountAuthorized >= epc.readerCvmRequiredLimit) {
+        // Req 3.1.1.3
+        if (epc.statusCheckSupported) {
+            if (amountAuthorized == singleUnit) {
+                flags |= FLAG_STATUS_CHECK_REQUESTED;
+            }
+        }
 
-                    ind.raiseReaderCvmLimitExceededFlag();
-                }
+        // Req 3.1.1.4
+        if (amountAuthorized == 0) {
+            if (epc.zeroAmountAllowed) {
+                flags |= FLAG_ZERO_AMOUNT;
+            } else {
+                flags |= FLAG_CONTACTLESS_APPLICATION_NOT_ALLOWED;
+            }
+        }
 
-                if (ttq != null) {
-                    // Req 3.1.1.9
-                    if (ind.isReaderContactlessFloorLimitExceeded()) {
-                        ttq.raiseOnlineCryptogramRequiredFlag();
-                    }
+        if (readerLimitsApply) {
+            // Req 3.1.1.5
+            if (epc.readerContactlessTransactionLimit >= 0 &&
+                    amountAuthorized >= epc.readerContactlessTransactionLimit) {
 
-                    // Req 3.1.1.10
-                    if (ind.isStatusCheckRequested()) {
-                        ttq.raiseOnlineCryptogramRequiredFlag();
-                    }
+                flags |= FLAG_CONTACTLESS_APPLICATION_NOT_ALLOWED;
+            }
 
-                    // Req 3.1.1.11
-                    if (ind.isZeroAmount()) {
-                        if (!ttq.isOfflineOnlyReader) {
-                            ttq.raiseOnlineCryptogramRequiredFlag();
-                        } else {
-                            ind.raiseContactlessApplicationNotAllowedFlag();
-                        }
-                    }
+            // Req 3.1.1.6
+            if (epc.readerContactlessFloorLimit >= 0 &&
+                    amountAuthorized > epc.readerContactlessFloorLimit) {
 
-                    // Req 3.1.1.12
-                    if (ind.isReaderCvmLimitExceeded()) {
-                        ttq.raiseCvmRequiredFlag();
-                    }
+                flags |= FLAG_READER_CONTACTLESS_FLOOR_LIMIT_EXCEEDED;
+            }
 
-                    ind.setTtq(ttq);
+            // Req 3.1.1.7
+            if (epc.readerContactlessFloorLimit < 0) {
+                if (epc.terminalFloorLimit >= 0) {
+                    if (amountAuthorized > epc.terminalFloorLimit) {
+                        flags |= FLAG_READER_CONTACTLESS_FLOOR_LIMIT_EXCEEDED;
+                    }
                 }
+            }
+        }
 
-                // resolving kernel cannot fail because we check parameters when constructing TerminalConfigImpl
-                KernelType kernelType = appsMap.get(cac.getApplicationId()).kernelType;
+        // Req 3.1.1.8
+        if (epc.readerCvmRequiredLimit >= 0 &&
+                amountAuthorized >= epc.readerCvmRequiredLimit) {
 
-                ret.add(new PreprocessedApplication(cac,
-                        ind,
-                        Optional.ofNullable(ttq).map(TtqPreProcessing::getFinal),
-                        kernelType));
-            }
+            flags |= FLAG_READER_CVM_LIMIT_EXCEEDED;
         }
 
-        return ret;
+        return flags;
     }
 
 
-    private boolean isMastercardApp(CardAppConfiguration cac) {
-        return cac.getApplicationId().startsWith("A000000004") || cac.getApplicationId().startsWith("B012345678");
-    }
+    /**
+     * Executes requirements 3.1.1.1, 3.1.1.2 and 3.1.1.9 - 3.1.1.12. The indicators and the TTQ are mutable, so
+     * they are new on each call.
+     *
+     * @param flags result of {@link #checkAmount}
+     */
+    static PreprocessedApplication createPreprocessedApplication(CardAppConfiguration cac,
+                                                                 EntryPointConfiguration epc,
+                                                                 KernelType kernelType,
+                                                                 int flags) {
 
+        // Req 3.1.1.1
+        EntryPointPreProcessingIndicators ind = new EntryPointPreProcessingIndicators();
 
-    private EntryPointConfiguration extractEntryPointConfiguration(List<Tlv> tlvConfigData) {
-        TlvMap tlvMap = new TlvMapImpl(tlvConfigData);
 
-        boolean statusCheckEnabled = false;
-        if (tlvMap.isTagPresentAndNonEmpty(EmvTag.PHOS_STATUS_CHECK_ENABLED)) {
-            statusCheckEnabled = tlvMap.get(EmvTag.PHOS_STATUS_CHECK_ENABLED).getValueBytes()[0] != 0;
+        // Req 3.1.1.2
+        TtqPreProcessing ttq = null;
+        if (epc.ttq != null) {
+            ttq = new TtqPreProcessing(epc.ttq);
         }
 
-        boolean zeroAmountAllowed = false;
-        if (tlvMap.isTagPresentAndNonEmpty(EmvTag.PHOS_ZERO_AMOUNT_ALLOWED)) {
-            zeroAmountAllowed = tlvMap.get(EmvTag.PHOS_ZERO_AMOUNT_ALLOWED).getValueBytes()[0] != 0;
+        if ((flags & FLAG_STATUS_CHECK_REQUESTED) != 0) {
+            ind.raiseStatusCheckRequestedFlag();
         }
 
-        boolean extendedSelectionSupported = false;
-        if (tlvMap.isTagPresentAndNonEmpty(EmvTag.PHOS_EXTENDED_SELECTION_SUPPRORTED)) {
-            extendedSelectionSupported = tlvMap.get(EmvTag.PHOS_EXTENDED_SELECTION_SUPPRORTED).getValueBytes()[0] != 0;
+        if ((flags & FLAG_ZERO_AMOUNT) != 0) {
+            ind.raiseZeroAmountFlag();
         }
 
-        int readerContactlessTransactionLimit = -1;
-        int readerContactlessTransactionLimitOdCvm = -1;
-        int terminalFloorLimit = -1;
-        int readerCvmLimit = -1;
-        int readerContactlessFloorLimit = -1;
-
+        if ((flags & FLAG_CONTACTLESS_APPLICATION_NOT_ALLOWED) != 0) {
+            ind.raiseContactlessApplicationNotAllowedFlag();
+        }
 
-        try {
-            if (tlvMap.isTagPresentAndNonEmpty(EmvTag.READER_CONTACTLESS_TRANSACTION_LIMIT_NO_OD_CVM)) {
-                readerContactlessTransactionLimit = tlvMap.get(EmvTag.READER_CONTACTLESS_TRANSACTION_LIMIT_NO_OD_CVM).
-                        getValueAsBcdInt();
-            }
+        if ((flags & FLAG_READER_CONTACTLESS_FLOOR_LIMIT_EXCEEDED) != 0) {
+            ind.raiseReaderContactlessFloorLimitExceededFlag();
+        }
 
-            if (tlvMap.isTagPresentAndNonEmpty(EmvTag.READER_CONTACTLESS_TRANSACTION_LIMIT_OD_CVM)) {
-                readerContactlessTransactionLimitOdCvm = tlvMap.get(EmvTag.READER_CONTACTLESS_TRANSACTION_LIMIT_OD_CVM).
-                        getValueAsBcdInt();
-            }
+        if ((flags & FLAG_READER_CVM_LIMIT_EXCEEDED) != 0) {
+            ind.raiseReaderCvmLimitExceededFlag();
+        }
 
-            if (tlvMap.isTagPresentAndNonEmpty(EmvTag.TERMINAL_FLOOR_LIMIT)) {
-                terminalFloorLimit = tlvMap.get(EmvTag.TERMINAL_FLOOR_LIMIT).getValueAsBcdInt();
+        if (ttq != null) {
+            // Req 3.1.1.9
+            if (ind.isReaderContactlessFloorLimitExceeded()) {
+                ttq.raiseOnlineCryptogramRequiredFlag();
             }
 
-            if (tlvMap.isTagPresentAndNonEmpty(EmvTag.READER_CVM_REQUIRED_LIMIT)) {
-                readerCvmLimit = tlvMap.get(EmvTag.READER_CVM_REQUIRED_LIMIT).getValueAsBcdInt();
+            // Req 3.1.1.10
+            if (ind.isStatusCheckRequested()) {
+                ttq.raiseOnlineCryptogramRequiredFlag();
             }
 
-            if (tlvMap.isTagPresentAndNonEmpty(EmvTag.READER_CONTACTLESS_FLOOR_LIMIT)) {
-                readerContactlessFloorLimit = tlvMap.get(EmvTag.READER_CONTACTLESS_FLOOR_LIMIT).getValueAsBcdInt();
+            // Req 3.1.1.11
+            if (ind.isZeroAmount()) {
+                if (!ttq.isOfflineOnlyReader) {
+                    ttq.raiseOnlineCryptogramRequiredFlag();
+                } else {
+                    ind.raiseContactlessApplicationNotAllowedFlag();
+                }
             }
 
-        } catch (TlvException e) {
-            logger.error("Cannot extract value: {}", e.getMessage());
-            return null;
-        }
-
-        TtqConfiguration ttqConfiguration = null;
-        if (tlvMap.isTagPresentAndNonEmpty(EmvTag.PHOS_TTQ_CONFIGURATION)) {
-            String ttqJson = tlvMap.get(EmvTag.PHOS_TTQ_CONFIGURATION).getValueAsString();
-            Gson gson = new Gson();
-            try {
-                ttqConfiguration = gson.fromJson(ttqJson, TtqConfiguration.class);
-            } catch (JsonSyntaxException e) {
-                logger.error("{}", ttqJson);
-                logger.error("Cannot extract TtqConfiguration: {}", e.getMessage());
-                return null;
+            // Req 3.1.1.12
+            if (ind.isReaderCvmLimitExceeded()) {
+                ttq.raiseCvmRequiredFlag();
             }
-        }
 
-        int finalReaderContactlessTransactionLimit;
-        if (readerContactlessTransactionLimitOdCvm != -1 &&
-                readerContactlessTransactionLimitOdCvm > readerContactlessTransactionLimit) {
-            finalReaderContactlessTransactionLimit = readerContactlessTransactionLimitOdCvm;
-        } else {
-            finalReaderContactlessTransactionLimit = readerContactlessTransactionLimit;
+            ind.setTtq(ttq);
         }
 
-
-        return new EntryPointConfiguration(statusCheckEnabled,
-                zeroAmountAllowed,
-                finalReaderContactlessTransactionLimit,
-                readerContactlessFloorLimit,
-                terminalFloorLimit,
-                readerCvmLimit,
-                extendedSelectionSupported,
-                ttqConfiguration
-        );
+        return new PreprocessedApplication(cac,
+                ind,
+                Optional.ofNullable(ttq).map(TtqPreProcessing::getFinal),
+                kernelType);
     }
 }
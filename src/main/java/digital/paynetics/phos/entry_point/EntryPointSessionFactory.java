@@ -0,0 +1,196 @@
+package digital.paynetics.phos.entry_point;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import digital.paynetics.phos.kernel.common.crypto.EncDec;
+import digital.paynetics.phos.kernel.common.emv.entry_point.misc.IntermediateOutcomeStore;
+import digital.paynetics.phos.kernel.common.emv.entry_point.misc.MessageStore;
+import digital.paynetics.phos.kernel.common.emv.entry_point.preprocessing.EntryPointPreprocessor;
+import digital.paynetics.phos.kernel.common.emv.entry_point.selection.ApplicationSelector;
+import digital.paynetics.phos.kernel.common.emv.kernel.common.CommonDolDataPreparer;
+import digital.paynetics.phos.kernel.common.misc.CertificateData;
+import digital.paynetics.phos.kernel.common.misc.TerminalConfig;
+import digital.paynetics.phos.kernel.common.misc.TimeProvider;
+import digital.paynetics.phos.kernel.mastercard.MastercardKernel;
+import digital.paynetics.phos.kernel.mastercard.misc.MastercardMagstripeFailedCounter;
+import digital.paynetics.phos.kernel.mastercard.misc.MessageStoreMc;
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLog;
+import digital.paynetics.phos.kernel.visa.VisaKernel;
+
+
+/**
+ * Creates entry point sessions, one per NFC reader, for deployments that drive several readers from one process.
+ * <p>
+ * Each session is a separate {@link EntryPointImpl} with its own transaction state and its own stores (obtained from
+ * the providers, so they must not be singletons). The configuration snapshot (terminal configuration, CA keys, CRL
+ * and the compiled application configurations) and the pre-processor are shared. Each session must have its own
+ * torn transaction log file, i.e. the persister provider must return a different persister on each call.
+ * <p>
+ * The configuration is published with {@link #publishConfiguration}. The terminal configuration and certificate data
+ * given to {@link EntryPointImpl#init} of a session are used only if nothing is published yet, so initializing a
+ * session never overrides the configuration of the others.
+ * <p>
+ * Each session gets its own {@link MastercardMagstripeFailedCounter} from the provider, the kernels of different
+ * sessions run concurrently and the counter is not required to be thread-safe.
+ * <p>
+ * The transaction metrics and the NFC round-trip stats are shared by the sessions.
+ * <p>
+ * {@link #warmUp} warms up the JIT on a throwaway session before the sessions used for transactions are created.
+ */
+public final class EntryPointSessionFactory {
+    private final ConfigurationSnapshotHolder configurationSnapshotHolder = new ConfigurationSnapshotHolder();
+
+    private final EntryPointPreprocessor entryPointPreprocessor;
+    private final Provider<ApplicationSelector> applicationSelectorProvider;
+    private final TimeProvider timeProvider;
+    private final CommonDolDataPreparer commonDolDataPreparer;
+    private final Provider<MastercardKernel> mastercardKernelProvider;
+    private final Provider<VisaKernel> visaKernelProvider;
+    private final Provider<MastercardMagstripeFailedCounter> mastercardMagstripeFailedCounterProvider;
+    private final Provider<IntermediateOutcomeStore> intermediateOutcomeStoreProvider;
+    private final Provider<MessageStore> messageStoreProvider;
+    private final Provider<MessageStoreMc> messageStoreMcProvider;
+    private final Provider<TornTransactionLog> tornTransactionLogProvider;
+    private final Provider<TornTransactionLogPersister> tornTransactionLogPersisterProvider;
+    private final TransactionMetrics metrics;
+    private final NfcRoundTripStats nfcRoundTripStats;
+    private final boolean isAutorunOn;
+    private final boolean dontLogDataRecord;
+    private final boolean useLightLogging;
+
+
+    @Inject
+    public EntryPointSessionFactory(EntryPointPreprocessor entryPointPreprocessor,
+                                    Provider<ApplicationSelector> applicationSelectorProvider,
+                                    TimeProvider timeProvider,
+                                    CommonDolDataPreparer commonDolDataPreparer,
+                                    Provider<MastercardKernel> mastercardKernelProvider,
+                                    Provider<VisaKernel> visaKernelProvider,
+                                    Provider<MastercardMagstripeFailedCounter> mastercardMagstripeFailedCounterProvider,
+                                    Provider<IntermediateOutcomeStore> intermediateOutcomeStoreProvider,
+                                    Provider<MessageStore> messageStoreProvider,
+                                    Provider<MessageStoreMc> messageStoreMcProvider,
+                                    Provider<TornTransactionLog> tornTransactionLogProvider,
+                                    Provider<TornTransactionLogPersister> tornTransactionLogPersisterProvider,
+                                    TransactionMetrics metrics,
+                                    NfcRoundTripStats nfcRoundTripStats,
+                                    @Named("autorun on") boolean isAutorunOn,
+                                    @Named("dont log data record") boolean dontLogDataRecord,
+                                    @Named("use light logging") boolean useLightLogging) {
+
+        this.entryPointPreprocessor = entryPointPreprocessor;
+        this.applicationSelectorProvider = applicationSelectorProvider;
+        this.timeProvider = timeProvider;
+        this.commonDolDataPreparer = commonDolDataPreparer;
+        this.mastercardKernelProvider = mastercardKernelProvider;
+        this.visaKernelProvider = visaKernelProvider;
+        this.mastercardMagstripeFailedCounterProvider = mastercardMagstripeFailedCounterProvider;
+        this.intermediateOutcomeStoreProvider = intermediateOutcomeStoreProvider;
+        this.messageStoreProvider = messageStoreProvider;
+        this.messageStoreMcProvider = messageStoreMcProvider;
+        this.tornTransactionLogProvider = tornTransactionLogProvider;
+        this.tornTransactionLogPersisterProvider = tornTransactionLogPersisterProvider;
+        this.metrics = metrics;
+        this.nfcRoundTripStats = nfcRoundTripStats;
+        this.isAutorunOn = isAutorunOn;
+        this.dontLogDataRecord = dontLogDataRecord;
+        this.useLightLogging = useLightLogging;
+    }
+
+
+    /**
+     * @return new session, {@link EntryPointImpl#init} must be called before use
+     */
+    public EntryPointImpl createSession() {
+        return new EntryPointImpl(entryPointPreprocessor,
+                applicationSelectorProvider,
+                timeProvider,
+                commonDolDataPreparer,
+                mastercardKernelProvider,
+                visaKernelProvider,
+                mastercardMagstripeFailedCounterProvider.get(),
+                intermediateOutcomeStoreProvider.get(),
+                messageStoreProvider.get(),
+                messageStoreMcProvider.get(),
+                tornTransactionLogProvider.get(),
+                tornTransactionLogPersisterProvider.get(),
+                isAutorunOn,
+                dontLogDataRecord,
+                useLightLogging,
+                configurationSnapshotHolder,
+                metrics,
+                nfcRoundTripStats);
+    }
+
+
+    /**
+     * Runs {@link EntryPointImpl#warmUp} on a throwaway session with its own stores, magstripe failed counter,
+     * configuration and an in-memory torn transaction log, so nothing of the synthetic transactions is left in the
+     * sessions used for transactions.
+     */
+    public WarmUpReport warmUp(WarmUpCardSimulator simulator,
+                               int transactionsPerKernel,
+                               TerminalConfig terminalConfig,
+                               CertificateData certificateData,
+                               EncDec encDec) {
+
+        EntryPointImpl ep = new EntryPointImpl(entryPointPreprocessor,
+                applicationSelectorProvider,
+                timeProvider,
+                commonDolDataPreparer,
+                mastercardKernelProvider,
+                visaKernelProvider,
+                mastercardMagstripeFailedCounterProvider.get(),
+                intermediateOutcomeStoreProvider.get(),
+                messageStoreProvider.get(),
+                messageStoreMcProvider.get(),
+                tornTransactionLogProvider.get(),
+                new InMemoryTornTransactionLogPersister(),
+                isAutorunOn,
+                dontLogDataRecord,
+                useLightLogging,
+                null,
+                new TransactionMetrics(),
+                new NfcRoundTripStats());
+
+        return ep.warmUp(simulator, transactionsPerKernel, terminalConfig, certificateData, encDec);
+    }
+
+
+    /**
+     * @return latencies of the transaction phases of all the sessions
+     */
+    public TransactionMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * @return NFC round-trip times of all the sessions
+     */
+    public NfcRoundTripStats getNfcRoundTripStats() {
+        return nfcRoundTripStats;
+    }
+
+
+    /**
+     * Publishes new configuration to all the sessions at once. Same as
+     * {@link EntryPointImpl#publishConfiguration(TerminalConfig, CertificateData, PosChangeableConfiguration)} called
+     * on any of them.
+     *
+     * @return version of the published configuration or of the current one if nothing is changed
+     */
+    public long publishConfiguration(TerminalConfig terminalConfig,
+                                     CertificateData certificateData,
+                                     PosChangeableConfiguration posChangeableConfiguration) {
+
+        ConfigurationSnapshot published = configurationSnapshotHolder.publish(terminalConfig,
+                certificateData,
+                posChangeableConfiguration);
+        EntryPointImpl.installConfiguration(entryPointPreprocessor, published);
+
+        return published.getVersion();
+    }
+}
@@ -0,0 +1,357 @@
+package digital.paynetics.phos.entry_point;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * State machine of {@link EntryPointImpl}. Used without locks from the NFC thread, the processing thread and the
+ * thread that gives the STOP signal.
+ * <p>
+ * State changes are compare-and-set transitions checked against a transition table. The state is packed together
+ * with the number of the card session, which is incremented on each transition to WAITING_FOR_TAG. The STOP signal
+ * is recorded for the session it is given in, so it never carries over to the next card session.
+ * <p>
+ * Tags are handed over through a single slot, the thread that wins the WAITING_FOR_TAG -> SELECTION transition
+ * processes the tag.
+ *
+ * @param <T> tag (transceiver)
+ * @param <K> kernel
+ */
+final class EntryPointStateMachine<T, K> {
+    /**
+     * For {@link #stop(CancellationToken.Reason, long)}, the current session
+     */
+    static final long ANY_SESSION = -1;
+
+    private static final int STATE_BITS = 3;
+    private static final long STATE_MASK = (1L << STATE_BITS) - 1;
+    private static final State[] STATES = State.values();
+    private static final Map<State, Set<State>> TRANSITIONS = createTransitions();
+
+    private final org.slf4j.Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final StopHandler<T, K> stopHandler;
+
+    private final AtomicLong current = new AtomicLong(pack(0, State.IDLE));
+    private final AtomicReference<T> postponedTag = new AtomicReference<>();
+
+    // Tag and kernel being processed, published like a seqlock: the stamp is invalidated, the fields are written and
+    // the stamp is set. A reader that sees the same stamp before and after reading the fields got a consistent pair.
+    private volatile long tagSession = ANY_SESSION;
+    private volatile T tag;
+    private volatile long kernelStamp = ANY_SESSION;
+    private volatile long kernelSession = ANY_SESSION;
+    private volatile K kernel;
+    private long kernelsPublished = 0; // processing thread only
+
+    private final AtomicLong stoppedKernelStamp = new AtomicLong(ANY_SESSION);
+    private final AtomicReference<CancellationToken> cancellation = new AtomicReference<>();
+    private final AtomicLong stopAcceptedSession = new AtomicLong(ANY_SESSION);
+    private final AtomicLong budgetExceededSession = new AtomicLong(ANY_SESSION);
+
+
+    EntryPointStateMachine(StopHandler<T, K> stopHandler) {
+        this.stopHandler = stopHandler;
+    }
+
+
+    State getState() {
+        return stateOf(current.get());
+    }
+
+
+    /**
+     * @return number of the current card session
+     */
+    long getSession() {
+        return sessionOf(current.get());
+    }
+
+
+    /**
+     * @throws IllegalStateException if the current state is not <code>from</code>
+     */
+    void transition(State from, State to) {
+        if (!tryTransition(from, to)) {
+            throw new IllegalStateException("Can be called only in " + from + " state (current: " + getState() + ")");
+        }
+    }
+
+
+    /**
+     * @return false if the current state is not <code>from</code>
+     * @throws IllegalStateException if there is no such transition in the transition table
+     */
+    boolean tryTransition(State from, State to) {
+        if (!TRANSITIONS.get(from).contains(to)) {
+            throw new IllegalStateException("Illegal transition " + from + " -> " + to);
+        }
+
+        while (true) {
+            long cur = current.get();
+            if (stateOf(cur) != from) {
+                return false;
+            }
+
+            long session = sessionOf(cur);
+            if (to == State.WAITING_FOR_TAG) {
+                // new card session, the STOP signal of the previous one does not apply to it
+                session++;
+            }
+
+            if (current.compareAndSet(cur, pack(session, to))) {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Makes <code>tag</code> the next one to be processed, replacing a not yet processed one
+     */
+    void offerTag(T tag) {
+        postponedTag.set(tag);
+    }
+
+
+    /**
+     * Processes the offered tag, and the tags offered meanwhile, if the state is WAITING_FOR_TAG. Only the thread
+     * that wins the WAITING_FOR_TAG -> SELECTION transition processes, so tags are processed one at a time and in
+     * order. A tag offered while another is processed waits, the newest one wins.
+     */
+    void processTags(TagProcessor<T> processor) {
+        while (postponedTag.get() != null) {
+            if (!tryTransition(State.WAITING_FOR_TAG, State.SELECTION)) {
+                logger.debug("Tag postponed (state: {})", getState());
+                return;
+            }
+
+            T t = postponedTag.getAndSet(null);
+            if (t == null) {
+                // already processed by the other thread, give the state back
+                transition(State.SELECTION, State.WAITING_FOR_TAG);
+                continue;
+            }
+
+            long session = getSession();
+            tagSession = ANY_SESSION;
+            tag = t;
+            tagSession = session;
+            // see stop()
+            if (isStopRequested(session)) {
+                closeTag(session, t);
+            }
+
+            processor.process(t, session);
+        }
+    }
+
+
+    /**
+     * Called by the processing thread before the kernel is started
+     */
+    void publishKernel(long session, K k) {
+        long stamp = ++kernelsPublished;
+        kernelStamp = ANY_SESSION;
+        kernelSession = session;
+        kernel = k;
+        kernelStamp = stamp;
+        // see stop()
+        if (isStopRequested(session)) {
+            deliverStop(session, stamp, k);
+        }
+    }
+
+
+    /**
+     * Gives the STOP signal to the current session. Ignored if the state is not SELECTION or KERNEL_PROCESSING.
+     * During SELECTION the tag is closed, during KERNEL_PROCESSING the signal is given to the kernel, which may
+     * ignore it. When the tap time budget is exceeded the tag is closed in both states.
+     *
+     * @param session the session the signal is for, {@link #ANY_SESSION} for the current one
+     */
+    void stop(CancellationToken.Reason reason, long session) {
+        long cur = current.get();
+        State state = stateOf(cur);
+        if (state != State.SELECTION && state != State.KERNEL_PROCESSING) {
+            return;
+        }
+
+        long s = sessionOf(cur);
+        if (session != ANY_SESSION && session != s) {
+            return;
+        }
+
+        // Recorded before reading the tag/kernel. The processing thread publishes them before checking the record,
+        // so at least one of the threads sees the other and the signal is never lost.
+        record(s, reason);
+        if (reason == CancellationToken.Reason.TAP_TIME_BUDGET_EXCEEDED) {
+            raise(budgetExceededSession, s);
+        }
+
+        if (state == State.SELECTION || reason == CancellationToken.Reason.TAP_TIME_BUDGET_EXCEEDED) {
+            long before = tagSession;
+            T t = tag;
+            if (before == s && tagSession == s) {
+                closeTag(s, t);
+            }
+        }
+
+        if (state == State.KERNEL_PROCESSING) {
+            long stamp = kernelStamp;
+            long ks = kernelSession;
+            K k = kernel;
+            if (stamp != ANY_SESSION && ks == s && kernelStamp == stamp) {
+                deliverStop(s, stamp, k);
+            }
+        }
+    }
+
+
+    /**
+     * @return true if the STOP signal (or the tap time budget) was given during <code>session</code>
+     */
+    boolean isStopRequested(long session) {
+        return getCancellation(session) != null;
+    }
+
+
+    /**
+     * @return true if the STOP signal was given during <code>session</code> and is not ignored by the kernel
+     */
+    boolean isStopAccepted(long session) {
+        return stopAcceptedSession.get() == session;
+    }
+
+
+    boolean isTapTimeBudgetExceeded(long session) {
+        return budgetExceededSession.get() == session;
+    }
+
+
+    /**
+     * @return the cancellation of <code>session</code> or null if it is not cancelled
+     */
+    CancellationToken getCancellation(long session) {
+        CancellationToken c = cancellation.get();
+        return c != null && c.getSession() == session ? c : null;
+    }
+
+
+    private void record(long session, CancellationToken.Reason reason) {
+        CancellationToken prev;
+        do {
+            prev = cancellation.get();
+            if (prev != null && prev.getSession() >= session) {
+                // the first cancellation of the session is kept
+                return;
+            }
+        } while (!cancellation.compareAndSet(prev, new CancellationToken(session, reason)));
+    }
+
+
+    private void closeTag(long session, T t) {
+        // the next APDU fails with NfcConnectionLostException, which is then handled as the STOP signal
+        raise(stopAcceptedSession, session);
+        stopHandler.close(t);
+    }
+
+
+    /**
+     * Gives the STOP signal to <code>k</code> at most once, no matter which thread is first
+     *
+     * @param stamp publication number of <code>k</code>
+     */
+    private void deliverStop(long session, long stamp, K k) {
+        if (!raise(stoppedKernelStamp, stamp)) {
+            // already given to this kernel (or to a later one, this one is done)
+            return;
+        }
+
+        if (stopHandler.stop(k)) {
+            raise(stopAcceptedSession, session);
+        } else {
+            logger.debug("STOP signal ignored by the kernel");
+        }
+    }
+
+
+    /**
+     * @return false if <code>holder</code> is already at least <code>value</code>
+     */
+    private static boolean raise(AtomicLong holder, long value) {
+        long prev;
+        do {
+            prev = holder.get();
+            if (prev >= value) {
+                return false;
+            }
+        } while (!holder.compareAndSet(prev, value));
+
+        return true;
+    }
+
+
+    private static long pack(long session, State state) {
+        return (session << STATE_BITS) | state.ordinal();
+    }
+
+
+    private static State stateOf(long packed) {
+        return STATES[(int) (packed & STATE_MASK)];
+    }
+
+
+    private static long sessionOf(long packed) {
+        return packed >>> STATE_BITS;
+    }
+
+
+    private static Map<State, Set<State>> createTransitions() {
+        Map<State, Set<State>> ret = new EnumMap<>(State.class);
+        ret.put(State.IDLE, EnumSet.of(State.PRE_PROCESSING));
+        ret.put(State.PRE_PROCESSING, EnumSet.of(State.WAITING_FOR_TAG));
+        ret.put(State.WAITING_FOR_TAG, EnumSet.of(State.SELECTION));
+        ret.put(State.SELECTION, EnumSet.of(State.WAITING_FOR_TAG, State.KERNEL_PROCESSING, State.ENDED));
+        ret.put(State.KERNEL_PROCESSING, EnumSet.of(State.SELECTION, State.WAITING_FOR_TAG, State.ENDED));
+        ret.put(State.ENDED, EnumSet.noneOf(State.class));
+
+        return Collections.unmodifiableMap(ret);
+    }
+
+
+    enum State {
+        IDLE,
+        PRE_PROCESSING,
+        WAITING_FOR_TAG, // aka Protocol activation
+        SELECTION,
+        KERNEL_PROCESSING,
+        ENDED
+    }
+
+
+    interface StopHandler<T, K> {
+        void close(T tag);
+
+        /**
+         * @return true if the kernel accepts the STOP signal
+         */
+        boolean stop(K kernel);
+    }
+
+
+    interface TagProcessor<T> {
+        /**
+         * Called in SELECTION state, must return in WAITING_FOR_TAG or ENDED state
+         */
+        void process(T tag, long session);
+    }
+}
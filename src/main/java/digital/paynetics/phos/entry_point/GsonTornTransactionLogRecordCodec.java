@@ -0,0 +1,56 @@
+package digital.paynetics.phos.entry_point;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.nio.charset.Charset;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+
+/**
+ * {@link TornTransactionLogRecordCodec} that encodes the record as UTF-8 JSON with Gson, so the records need no
+ * hand-written serialization. A record with fields Gson cannot handle by reflection (e.g. typed by an interface)
+ * needs a {@link Gson} with type adapters for them.
+ */
+public final class GsonTornTransactionLogRecordCodec implements TornTransactionLogRecordCodec {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Gson gson;
+
+
+    public GsonTornTransactionLogRecordCodec() {
+        this(new Gson());
+    }
+
+
+    public GsonTornTransactionLogRecordCodec(Gson gson) {
+        if (gson == null) {
+            throw new IllegalArgumentException("gson is null");
+        }
+        this.gson = gson;
+    }
+
+
+    @Override
+    public byte[] encode(TornTransactionLogRecord record) {
+        return gson.toJson(record, TornTransactionLogRecord.class).getBytes(UTF_8);
+    }
+
+
+    @Override
+    public TornTransactionLogRecord decode(byte[] data) {
+        final TornTransactionLogRecord ret;
+        try {
+            ret = gson.fromJson(new String(data, UTF_8), TornTransactionLogRecord.class);
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Invalid torn transaction log record: " + e.getMessage(), e);
+        }
+
+        if (ret == null) {
+            throw new IllegalArgumentException("Empty torn transaction log record");
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,33 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+
+/**
+ * Keeps the torn transaction log in memory only, for sessions whose log must not survive a restart (e.g. the
+ * throwaway session of {@link EntryPointSessionFactory#warmUp})
+ */
+final class InMemoryTornTransactionLogPersister implements TornTransactionLogPersister {
+    private List<TornTransactionLogRecord> logRecords = new ArrayList<>();
+
+
+    @Override
+    public List<TornTransactionLogRecord> load() {
+        return new ArrayList<>(logRecords);
+    }
+
+
+    @Override
+    public void save(List<TornTransactionLogRecord> logRecords) {
+        this.logRecords = new ArrayList<>(logRecords);
+    }
+
+
+    @Override
+    public void clear() {
+        logRecords = new ArrayList<>();
+    }
+}
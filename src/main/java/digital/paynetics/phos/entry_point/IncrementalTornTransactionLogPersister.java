@@ -0,0 +1,34 @@
+package digital.paynetics.phos.entry_point;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+
+/**
+ * {@link TornTransactionLogPersister} that can persist single changes instead of rewriting the whole log
+ */
+public interface IncrementalTornTransactionLogPersister extends TornTransactionLogPersister {
+    /**
+     * Persists <code>record</code> as added to the log. Does nothing if the record (this very instance) is already
+     * persisted.
+     */
+    void append(TornTransactionLogRecord record);
+
+    /**
+     * Persists <code>record</code> (an instance returned by {@link #load()} or given to {@link #append}) as removed
+     * from the log. Does nothing if there is no such record.
+     */
+    void remove(TornTransactionLogRecord record);
+
+    /**
+     * @return time <code>record</code> (an instance returned by {@link #load()} or given to {@link #append}) was
+     * persisted as added, in milliseconds since the epoch, -1 if there is no such record
+     */
+    long getPersistedAt(TornTransactionLogRecord record);
+
+    /**
+     * Removes the records persisted before <code>timestampMillis</code>
+     *
+     * @return number of removed records
+     */
+    int expireOlderThan(long timestampMillis);
+}
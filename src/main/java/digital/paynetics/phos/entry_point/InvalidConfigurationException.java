@@ -1,21 +1,46 @@
 package digital.paynetics.phos.entry_point;
 
+import java.util.Collections;
+import java.util.List;
+
 public class InvalidConfigurationException extends Exception {
+    private final List<ConfigurationViolation> violations;
+
+
     public InvalidConfigurationException() {
+        this.violations = Collections.emptyList();
     }
 
 
     public InvalidConfigurationException(final String message) {
         super(message);
+        this.violations = Collections.emptyList();
     }
 
 
     public InvalidConfigurationException(final String message, final Throwable cause) {
         super(message, cause);
+        this.violations = Collections.emptyList();
     }
 
 
     public InvalidConfigurationException(final Throwable cause) {
         super(cause);
+        this.violations = Collections.emptyList();
+    }
+
+
+    public InvalidConfigurationException(final List<ConfigurationViolation> violations) {
+        super(violations.size() + " configuration violation(s): " + violations);
+        this.violations = violations;
+    }
+
+
+    /**
+     * @return violations found by {@link ConfigurationValidator} or empty list if the exception is not a result of
+     * validation
+     */
+    public List<ConfigurationViolation> getViolations() {
+        return violations;
     }
 }
@@ -0,0 +1,54 @@
+package digital.paynetics.phos.entry_point;
+
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+
+
+/**
+ * Scheme specific rules for the applications whose AID starts with a given prefix
+ *
+ * @see AidPolicyTrie
+ */
+public final class KernelPolicy {
+    /**
+     * Reader limits are checked, kernel is the one resolved from the application and the card
+     */
+    public static final KernelPolicy DEFAULT = new KernelPolicy(true, null);
+
+    /**
+     * Mastercard kernel checks the reader limits itself so pre-processing must not do it
+     */
+    public static final KernelPolicy MASTERCARD = new KernelPolicy(false, null);
+
+    private final boolean readerLimitsApply;
+    private final KernelType kernelType;
+
+
+    /**
+     * @param readerLimitsApply if pre-processing requirements 3.1.1.5 - 3.1.1.7 (contactless transaction limit and
+     *                          floor limits) apply
+     * @param kernelType        kernel to be used, null to use the kernel resolved from the application and the card
+     */
+    public KernelPolicy(boolean readerLimitsApply, KernelType kernelType) {
+        this.readerLimitsApply = readerLimitsApply;
+        this.kernelType = kernelType;
+    }
+
+
+    public boolean isReaderLimitsApply() {
+        return readerLimitsApply;
+    }
+
+
+    /**
+     * @return kernel to be used: the policy's one if set, <code>resolved</code> otherwise
+     */
+    public KernelType resolveKernelType(KernelType resolved) {
+        return kernelType != null ? kernelType : resolved;
+    }
+
+
+    @Override
+    public String toString() {
+        return "readerLimitsApply: " + readerLimitsApply + ", kernelType: " + kernelType;
+    }
+}
@@ -0,0 +1,242 @@
+package digital.paynetics.phos.entry_point;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.inject.Provider;
+
+import digital.paynetics.phos.kernel.common.crypto.EncDec;
+import digital.paynetics.phos.kernel.common.misc.CertificateData;
+import digital.paynetics.phos.kernel.mastercard.MastercardKernel;
+import digital.paynetics.phos.kernel.mastercard.misc.MastercardMagstripeFailedCounter;
+import digital.paynetics.phos.kernel.visa.VisaKernel;
+
+
+/**
+ * Kernel instances created (and for Mastercard initialized) in advance on a background thread, so DI lookups and
+ * kernel initialization are not on the path from the tap to the first kernel APDU.
+ * <p>
+ * Kernels are single use: a taken kernel is not returned to the pool, the pool is refilled with new instances by
+ * {@link #refill()}. Mastercard kernels are tagged with the version of the configuration snapshot they are
+ * initialized with and are discarded when a newer snapshot is used. If the pool is empty (or disabled, size 0) the
+ * kernel is created on the caller's thread.
+ */
+final class KernelPool {
+    private final org.slf4j.Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Provider<MastercardKernel> mastercardKernelProvider;
+    private final Provider<VisaKernel> visaKernelProvider;
+    private final MastercardMagstripeFailedCounter mastercardMagstripeFailedCounter;
+
+    private final Deque<PooledMastercardKernel> mastercardKernels = new ArrayDeque<>();
+    private final Deque<VisaKernel> visaKernels = new ArrayDeque<>();
+
+    private int size;
+    private ConfigurationSnapshot snapshot;
+    private EncDec encDec;
+    private boolean isRefillScheduled;
+    private boolean isClosed;
+    private ExecutorService executor;
+
+
+    KernelPool(Provider<MastercardKernel> mastercardKernelProvider,
+               Provider<VisaKernel> visaKernelProvider,
+               MastercardMagstripeFailedCounter mastercardMagstripeFailedCounter) {
+
+        this.mastercardKernelProvider = mastercardKernelProvider;
+        this.visaKernelProvider = visaKernelProvider;
+        this.mastercardMagstripeFailedCounter = mastercardMagstripeFailedCounter;
+    }
+
+
+    /**
+     * @param size number of kernels of each type kept ready, 0 disables the pool
+     */
+    synchronized void setSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size: " + size);
+        }
+
+        this.size = size;
+        while (mastercardKernels.size() > size) {
+            mastercardKernels.removeLast();
+        }
+        while (visaKernels.size() > size) {
+            visaKernels.removeLast();
+        }
+    }
+
+
+    /**
+     * Sets the configuration the Mastercard kernels are initialized with. Kernels initialized with other
+     * configuration are discarded.
+     */
+    synchronized void configure(ConfigurationSnapshot snapshot, EncDec encDec) {
+        if (this.snapshot == snapshot && this.encDec == encDec) {
+            return;
+        }
+
+        this.snapshot = snapshot;
+        this.encDec = encDec;
+        mastercardKernels.clear();
+    }
+
+
+    /**
+     * @return kernel initialized with <code>snapshot</code> and <code>encDec</code>
+     */
+    MastercardKernel takeMastercardKernel(ConfigurationSnapshot snapshot, EncDec encDec) {
+        synchronized (this) {
+            PooledMastercardKernel pooled;
+            while ((pooled = mastercardKernels.pollFirst()) != null) {
+                if (pooled.snapshotVersion == snapshot.getVersion() && pooled.encDec == encDec) {
+                    return pooled.kernel;
+                }
+            }
+        }
+
+        return createMastercardKernel(snapshot, encDec);
+    }
+
+
+    VisaKernel takeVisaKernel() {
+        VisaKernel ret;
+        synchronized (this) {
+            ret = visaKernels.pollFirst();
+        }
+
+        return ret != null ? ret : visaKernelProvider.get();
+    }
+
+
+    /**
+     * Schedules refilling of the pool in background. Should be called after the outcome is reported.
+     */
+    synchronized void refill() {
+        if (size == 0 || snapshot == null || isRefillScheduled || isClosed) {
+            return;
+        }
+
+        if (mastercardKernels.size() >= size && visaKernels.size() >= size) {
+            return;
+        }
+
+        isRefillScheduled = true;
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refillInternal();
+                } catch (RuntimeException e) {
+                    logger.warn("Cannot refill kernel pool: {}", e.getMessage());
+                } finally {
+                    synchronized (KernelPool.this) {
+                        isRefillScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+
+    private void refillInternal() {
+        while (true) {
+            ConfigurationSnapshot s;
+            EncDec ed;
+            boolean needsMastercard;
+            boolean needsVisa;
+            synchronized (this) {
+                s = snapshot;
+                ed = encDec;
+                needsMastercard = mastercardKernels.size() < size;
+                needsVisa = visaKernels.size() < size;
+            }
+
+            if (!needsMastercard && !needsVisa) {
+                return;
+            }
+
+            if (needsMastercard) {
+                MastercardKernel kernel = createMastercardKernel(s, ed);
+                synchronized (this) {
+                    // configuration may have changed in the meantime
+                    if (snapshot == s && encDec == ed && mastercardKernels.size() < size) {
+                        mastercardKernels.addLast(new PooledMastercardKernel(kernel, s.getVersion(), ed));
+                    }
+                }
+            }
+
+            if (needsVisa) {
+                VisaKernel kernel = visaKernelProvider.get();
+                synchronized (this) {
+                    if (visaKernels.size() < size) {
+                        visaKernels.addLast(kernel);
+                    }
+                }
+            }
+        }
+    }
+
+
+    private MastercardKernel createMastercardKernel(ConfigurationSnapshot snapshot, EncDec encDec) {
+        MastercardKernel kernel = mastercardKernelProvider.get();
+        CertificateData certificateData = snapshot.getCertificateData();
+        kernel.init(mastercardMagstripeFailedCounter,
+                certificateData.getCaRidDb(),
+                certificateData.getCertificateRevocationList(),
+                encDec
+        );
+
+        return kernel;
+    }
+
+
+    /**
+     * Stops the refill thread and drops the pooled kernels. Kernels are still created on the caller's thread after
+     * that.
+     */
+    synchronized void close() {
+        isClosed = true;
+        mastercardKernels.clear();
+        visaKernels.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "kernel pool refill");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        return executor;
+    }
+
+
+    private static final class PooledMastercardKernel {
+        final MastercardKernel kernel;
+        final long snapshotVersion;
+        final EncDec encDec;
+
+
+        PooledMastercardKernel(MastercardKernel kernel, long snapshotVersion, EncDec encDec) {
+            this.kernel = kernel;
+            this.snapshotVersion = snapshotVersion;
+            this.encDec = encDec;
+        }
+    }
+}
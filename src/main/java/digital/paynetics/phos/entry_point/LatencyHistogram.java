@@ -0,0 +1,137 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Fixed-size, lock-free histogram of non-negative values (e.g. latencies in microseconds).
+ * <p>
+ * Values below 16 have their own buckets, above that each power of two is split into 8 buckets (like HDR
+ * histograms with one significant digit), so the relative error of a percentile is at most 12.5%. Recording is a few
+ * atomic increments and does not allocate.
+ */
+public final class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int FIRST_EXPONENT = 4; // 2^4 == LINEAR_BUCKETS
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m;
+        while (value > (m = max.get())) {
+            if (max.compareAndSet(m, value)) {
+                break;
+            }
+        }
+    }
+
+
+    public long getCount() {
+        return count.get();
+    }
+
+
+    public long getMax() {
+        return max.get();
+    }
+
+
+    /**
+     * @return mean of the recorded values or 0 if there are none
+     */
+    public double getMean() {
+        long c = count.get();
+        return c > 0 ? (double) sum.get() / c : 0;
+    }
+
+
+    /**
+     * @param percentile 0 - 100
+     * @return upper bound of the bucket the percentile falls in (capped to the max value) or 0 if there are no values
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile: " + percentile);
+        }
+
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+
+    /**
+     * Not atomic with respect to concurrent recording
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + FIRST_EXPONENT;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long lower = (1L << exponent) + ((long) sub << (exponent - SUB_BUCKET_BITS));
+
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+
+    @Override
+    public String toString() {
+        return "count: " + getCount() +
+                ", p50: " + getPercentile(50) +
+                ", p90: " + getPercentile(90) +
+                ", p99: " + getPercentile(99) +
+                ", max: " + getMax();
+    }
+}
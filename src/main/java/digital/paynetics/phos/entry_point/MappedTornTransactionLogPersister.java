@@ -0,0 +1,551 @@
+package digital.paynetics.phos.entry_point;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+
+/**
+ * {@link TornTransactionLogPersister} backed by an append-only, memory-mapped file of checksummed operations.
+ * <p>
+ * {@link #save(List)} compares the list with the records it already knows (by identity) and appends only the added
+ * and the removed ones, so a save costs writes proportional to the changes, not to the size of the log. The file is
+ * compacted (rewritten with the live records only) when the dead operations outgrow the live ones, which keeps the
+ * file and so the recovery time bounded.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * header:    int magic, short format version, short reserved
+ * operation: int body length, body, int CRC32 of the body
+ * body:      byte op (ADD, REMOVE, CLEAR), long record id, long timestamp, encoded record (ADD only)
+ * </pre>
+ * The operations are followed by a zero length. On opening, the operations are replayed up to the first one that is
+ * incomplete or fails the checksum (e.g. interrupted by a crash), the rest of the file is discarded.
+ */
+public final class MappedTornTransactionLogPersister implements IncrementalTornTransactionLogPersister, Closeable {
+    static final int MAGIC = 0x5054544C; // "PTTL"
+    static final short FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int BODY_HEADER_SIZE = 1 + 8 + 8;
+    private static final int LENGTH_SIZE = 4;
+    private static final int CHECKSUM_SIZE = 4;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CLEAR = 3;
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final int COMPACTION_THRESHOLD = 64 * 1024;
+
+    private final org.slf4j.Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final File file;
+    private final TornTransactionLogRecordCodec codec;
+
+    private final Map<Long, Entry> live = new LinkedHashMap<>();
+    private final Map<TornTransactionLogRecord, Entry> entries = new IdentityHashMap<>();
+    private long nextId = 1;
+    private int liveBytes;
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int position;
+
+
+    /**
+     * Records are encoded with {@link GsonTornTransactionLogRecordCodec}
+     */
+    public MappedTornTransactionLogPersister(File file) throws IOException {
+        this(file, new GsonTornTransactionLogRecordCodec());
+    }
+
+
+    public MappedTornTransactionLogPersister(File file, TornTransactionLogRecordCodec codec) throws IOException {
+        this(file, codec, true);
+    }
+
+
+    /**
+     * @param recover false for the side file of a compaction, which must not exist
+     */
+    private MappedTornTransactionLogPersister(File file, TornTransactionLogRecordCodec codec, boolean recover)
+            throws IOException {
+
+        this.file = file;
+        this.codec = codec;
+
+        if (recover) {
+            File tmp = tmpFile();
+            if (tmp.exists() && !tmp.delete()) {
+                // interrupted compaction, the original file is still intact
+                logger.warn("Cannot delete {}", tmp);
+            }
+        } else if (file.exists()) {
+            throw new IOException("Already exists: " + file);
+        }
+
+        open();
+    }
+
+
+    @Override
+    public synchronized List<TornTransactionLogRecord> load() {
+        List<TornTransactionLogRecord> ret = new ArrayList<>(live.size());
+        for (Entry e : live.values()) {
+            ret.add(e.record);
+        }
+
+        return ret;
+    }
+
+
+    @Override
+    public synchronized void save(List<TornTransactionLogRecord> logRecords) {
+        Set<TornTransactionLogRecord> present = Collections.newSetFromMap(
+                new IdentityHashMap<TornTransactionLogRecord, Boolean>());
+
+        boolean changed = false;
+        for (TornTransactionLogRecord record : logRecords) {
+            present.add(record);
+            if (!entries.containsKey(record)) {
+                appendAdd(record, System.currentTimeMillis());
+                changed = true;
+            }
+        }
+
+        if (present.size() != entries.size()) {
+            Iterator<Entry> it = live.values().iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (!present.contains(e.record)) {
+                    appendRemove(e);
+                    it.remove();
+                    changed = true;
+                }
+            }
+        }
+
+        if (changed) {
+            flush();
+        }
+    }
+
+
+    @Override
+    public synchronized void append(TornTransactionLogRecord record) {
+        if (!entries.containsKey(record)) {
+            appendAdd(record, System.currentTimeMillis());
+            flush();
+        }
+    }
+
+
+    @Override
+    public synchronized void remove(TornTransactionLogRecord record) {
+        Entry e = entries.get(record);
+        if (e != null) {
+            appendRemove(e);
+            live.remove(e.id);
+            flush();
+        }
+    }
+
+
+    @Override
+    public synchronized long getPersistedAt(TornTransactionLogRecord record) {
+        Entry e = entries.get(record);
+        return e != null ? e.timestamp : -1;
+    }
+
+
+    @Override
+    public synchronized int expireOlderThan(long timestampMillis) {
+        int ret = 0;
+        Iterator<Entry> it = live.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.timestamp < timestampMillis) {
+                appendRemove(e);
+                it.remove();
+                ret++;
+            }
+        }
+
+        if (ret > 0) {
+            flush();
+        }
+
+        return ret;
+    }
+
+
+    @Override
+    public synchronized void clear() {
+        if (live.isEmpty()) {
+            return;
+        }
+
+        appendOp(OP_CLEAR, 0, 0, null);
+        live.clear();
+        entries.clear();
+        liveBytes = 0;
+        flush();
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+            buffer = null;
+        }
+    }
+
+
+    /**
+     * @return size of the used part of the file in bytes
+     */
+    public synchronized int getUsedBytes() {
+        return position;
+    }
+
+
+    void appendAdd(TornTransactionLogRecord record, long timestamp) {
+        byte[] data = codec.encode(record);
+        long id = nextId++;
+        int size = appendOp(OP_ADD, id, timestamp, data);
+
+        Entry e = new Entry(id, timestamp, record, size);
+        live.put(id, e);
+        entries.put(record, e);
+        liveBytes += size;
+    }
+
+
+    /**
+     * Caller must remove the entry from {@link #live}
+     */
+    private void appendRemove(Entry e) {
+        appendOp(OP_REMOVE, e.id, 0, null);
+        entries.remove(e.record);
+        liveBytes -= e.size;
+    }
+
+
+    void flush() {
+        buffer.force();
+        if (isCompactionNeeded()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // not fatal, the file is still valid, just bigger than needed
+                logger.warn("Compaction failed: {}", e.getMessage());
+            }
+        }
+    }
+
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        boolean isNew = raf.length() < HEADER_SIZE;
+        if (isNew) {
+            raf.setLength(INITIAL_CAPACITY);
+        }
+        map((int) raf.length());
+
+        if (isNew || buffer.getInt(0) != MAGIC) {
+            if (!isNew) {
+                logger.warn("Not a torn transaction log file, discarding: {}", file);
+            }
+            initHeader();
+            return;
+        }
+
+        short version = buffer.getShort(4);
+        if (version != FORMAT_VERSION) {
+            logger.warn("Unsupported torn transaction log version {}, discarding", version);
+            initHeader();
+            return;
+        }
+
+        recover();
+    }
+
+
+    private void initHeader() {
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, FORMAT_VERSION);
+        buffer.putShort(6, (short) 0);
+        position = HEADER_SIZE;
+        zeroFrom(position);
+        buffer.force();
+    }
+
+
+    private void recover() {
+        int pos = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (pos + LENGTH_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(pos);
+            if (length == 0) {
+                break;
+            }
+
+            if (length < BODY_HEADER_SIZE || (long) pos + LENGTH_SIZE + length + CHECKSUM_SIZE > buffer.limit()) {
+                logger.warn("Torn transaction log truncated at {}: invalid length", pos);
+                break;
+            }
+
+            byte[] body = new byte[length];
+            readBytes(pos + LENGTH_SIZE, body);
+            crc.reset();
+            crc.update(body, 0, body.length);
+            if ((int) crc.getValue() != buffer.getInt(pos + LENGTH_SIZE + length)) {
+                logger.warn("Torn transaction log truncated at {}: checksum mismatch", pos);
+                break;
+            }
+
+            replay(body, LENGTH_SIZE + length + CHECKSUM_SIZE);
+            pos += LENGTH_SIZE + length + CHECKSUM_SIZE;
+        }
+
+        position = pos;
+        if (pos + LENGTH_SIZE <= buffer.limit() && buffer.getInt(pos) != 0) {
+            zeroFrom(pos);
+            buffer.force();
+        }
+
+        logger.debug("Torn transaction log recovered, records: {}, used bytes: {}", live.size(), position);
+    }
+
+
+    private void replay(byte[] body, int size) {
+        byte op = body[0];
+        long id = readLong(body, 1);
+        long timestamp = readLong(body, 9);
+        nextId = Math.max(nextId, id + 1);
+
+        switch (op) {
+            case OP_ADD:
+                byte[] data = new byte[body.length - BODY_HEADER_SIZE];
+                System.arraycopy(body, BODY_HEADER_SIZE, data, 0, data.length);
+                try {
+                    TornTransactionLogRecord record = codec.decode(data);
+                    Entry e = new Entry(id, timestamp, record, size);
+                    live.put(id, e);
+                    entries.put(record, e);
+                    liveBytes += size;
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Cannot decode torn transaction log record {}: {}", id, e.getMessage());
+                }
+                break;
+            case OP_REMOVE:
+                Entry removed = live.remove(id);
+                if (removed != null) {
+                    entries.remove(removed.record);
+                    liveBytes -= removed.size;
+                }
+                break;
+            case OP_CLEAR:
+                live.clear();
+                entries.clear();
+                liveBytes = 0;
+                break;
+            default:
+                logger.warn("Unknown torn transaction log operation: {}", op);
+        }
+    }
+
+
+    /**
+     * @return size of the operation in the file
+     */
+    private int appendOp(byte op, long id, long timestamp, byte[] data) {
+        int dataLength = data != null ? data.length : 0;
+        int length = BODY_HEADER_SIZE + dataLength;
+        int size = LENGTH_SIZE + length + CHECKSUM_SIZE;
+        ensureCapacity(size);
+
+        byte[] body = new byte[length];
+        body[0] = op;
+        writeLong(body, 1, id);
+        writeLong(body, 9, timestamp);
+        if (data != null) {
+            System.arraycopy(data, 0, body, BODY_HEADER_SIZE, dataLength);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        // the length is written last, so an interrupted write leaves the terminating zero length in place
+        int pos = position;
+        writeBytes(pos + LENGTH_SIZE, body);
+        buffer.putInt(pos + LENGTH_SIZE + length, (int) crc.getValue());
+        buffer.putInt(pos, length);
+        position += size;
+
+        return size;
+    }
+
+
+    private void ensureCapacity(int size) {
+        // room for the operation plus the terminating zero length
+        long needed = (long) position + size + LENGTH_SIZE;
+        if (needed <= buffer.limit()) {
+            return;
+        }
+
+        long capacity = buffer.limit();
+        while (capacity < needed) {
+            capacity *= 2;
+        }
+
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Torn transaction log too big");
+        }
+
+        try {
+            raf.setLength(capacity);
+            map((int) capacity);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot grow torn transaction log", e);
+        }
+    }
+
+
+    private boolean isCompactionNeeded() {
+        int dead = position - HEADER_SIZE - liveBytes;
+        return dead > COMPACTION_THRESHOLD && dead > liveBytes;
+    }
+
+
+    /**
+     * Rewrites the file with the live records only. The new file is written aside and renamed over the old one, so a
+     * crash during compaction leaves the old file intact.
+     */
+    private void compact() throws IOException {
+        logger.debug("Compacting torn transaction log, used bytes: {}, live bytes: {}", position, liveBytes);
+
+        File tmp = tmpFile();
+        // left by a compaction whose rename failed, must not be recovered into the new file
+        if (tmp.exists() && !tmp.delete()) {
+            throw new IOException("Cannot delete " + tmp);
+        }
+        MappedTornTransactionLogPersister compacted = new MappedTornTransactionLogPersister(tmp, codec, false);
+        try {
+            for (Entry e : live.values()) {
+                compacted.appendOpWithId(e);
+            }
+            compacted.buffer.force();
+        } finally {
+            compacted.close();
+        }
+
+        close();
+        boolean renamed = tmp.renameTo(file);
+        // the records in memory are kept as they are, so they stay known (by identity) to the next save()
+        reopen();
+        if (!renamed) {
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+
+        position = compacted.position;
+        liveBytes = compacted.liveBytes;
+    }
+
+
+    private void appendOpWithId(Entry e) {
+        int size = appendOp(OP_ADD, e.id, e.timestamp, codec.encode(e.record));
+        liveBytes += size;
+        nextId = Math.max(nextId, e.id + 1);
+    }
+
+
+    private void reopen() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        map((int) raf.length());
+    }
+
+
+    private File tmpFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+
+    private void map(int size) throws IOException {
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+
+    private void zeroFrom(int pos) {
+        for (int i = pos; i < buffer.limit(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+
+    private void readBytes(int pos, byte[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = buffer.get(pos + i);
+        }
+    }
+
+
+    private void writeBytes(int pos, byte[] src) {
+        for (int i = 0; i < src.length; i++) {
+            buffer.put(pos + i, src[i]);
+        }
+    }
+
+
+    private static long readLong(byte[] b, int pos) {
+        long ret = 0;
+        for (int i = 0; i < 8; i++) {
+            ret = (ret << 8) | (b[pos + i] & 0xff);
+        }
+
+        return ret;
+    }
+
+
+    private static void writeLong(byte[] b, int pos, long value) {
+        for (int i = 7; i >= 0; i--) {
+            b[pos + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+
+    static final class Entry {
+        final long id;
+        final long timestamp;
+        final TornTransactionLogRecord record;
+        final int size;
+
+
+        Entry(long id, long timestamp, TornTransactionLogRecord record, int size) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.record = record;
+            this.size = size;
+        }
+    }
+}
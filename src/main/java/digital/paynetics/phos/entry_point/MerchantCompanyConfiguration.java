@@ -47,6 +47,11 @@ public final class MerchantCompanyConfiguration {
     @SerializedName("postal_code")
     public final String postalCode;
 
+    /**
+     * Cached hash code, 0 if not computed yet
+     */
+    private transient int hash;
+
 
     public MerchantCompanyConfiguration(final String companyStateId,
                                         final String name,
@@ -83,6 +88,9 @@ public final class MerchantCompanyConfiguration {
 
         final MerchantCompanyConfiguration other = (MerchantCompanyConfiguration) obj;
 
+        if (hashCode() != other.hashCode()) {
+            return false;
+        }
 
         return companyStateId.equals(other.companyStateId) &&
                 name.equals(other.name) &&
@@ -96,7 +104,14 @@ public final class MerchantCompanyConfiguration {
 
     @Override
     public int hashCode() {
-        return Objects.hash(companyStateId, name, doingBusinessAs, country, city, address, postalCode);
+        int ret = hash;
+        if (ret == 0) {
+            // fields are final, so it is computed once (benign race, like String.hashCode())
+            ret = Objects.hash(companyStateId, name, doingBusinessAs, country, city, address, postalCode);
+            hash = ret;
+        }
+
+        return ret;
     }
 
 
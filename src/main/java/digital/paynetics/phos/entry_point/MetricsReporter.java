@@ -0,0 +1,21 @@
+package digital.paynetics.phos.entry_point;
+
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.emv.Outcome;
+
+
+/**
+ * Exports transaction latencies, e.g. to a log or a monitoring backend
+ *
+ * @see TransactionMetrics#report(MetricsReporter)
+ */
+public interface MetricsReporter {
+    /**
+     * Called for each non-empty histogram
+     *
+     * @param kernelType  null for transactions that ended before kernel activation
+     * @param outcomeType null if the transaction ended without outcome
+     * @param histogram   latencies in microseconds, live (not a copy)
+     */
+    void report(TransactionPhase phase, KernelType kernelType, Outcome.Type outcomeType, LatencyHistogram histogram);
+}
@@ -0,0 +1,200 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.inject.Inject;
+
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.nfc.transceiver.Transceiver;
+
+
+/**
+ * NFC round-trip times aggregated across transactions per {@link ApduCategory}, kernel type and AID.
+ * <p>
+ * Memory is bounded: histograms are fixed-size and at most {@link #MAX_AIDS} AIDs are tracked separately, round
+ * trips of other AIDs are aggregated under {@link #OTHER_AIDS}. Values are in the unit of
+ * {@link Transceiver.StatItem#getTook()}.
+ * <p>
+ * Thread-safe, one instance may be shared by several sessions (see {@link EntryPointSessionFactory}).
+ */
+public final class NfcRoundTripStats {
+    public static final int MAX_AIDS = 64;
+    public static final String OTHER_AIDS = "*";
+
+    private static final ApduCategory[] CATEGORIES = ApduCategory.values();
+    private static final KernelType[] KERNEL_TYPES = KernelType.values();
+
+    /**
+     * Classifies by the position in the session: SELECT PPSE, SELECT AID, GPO, then READ RECORDs. The last round trip
+     * of a Mastercard session is GENERATE AC. Approximate, sessions with more commands (e.g. a re-selection after
+     * SELECT_NEXT, GET DATA) are partly misclassified.
+     */
+    public static final Classifier POSITIONAL_CLASSIFIER = new Classifier() {
+        @Override
+        public ApduCategory classify(Transceiver.StatItem item, int index, int count, KernelType kernelType) {
+            switch (index) {
+                case 0:
+                    return ApduCategory.SELECT_PPSE;
+                case 1:
+                    return ApduCategory.SELECT_AID;
+                case 2:
+                    return ApduCategory.GPO;
+                default:
+                    if (kernelType == KernelType.MASTERCARD && index == count - 1) {
+                        return ApduCategory.GENERATE_AC;
+                    }
+                    return ApduCategory.READ_RECORD;
+            }
+        }
+    };
+
+    private final ConcurrentMap<String, AtomicReferenceArray<LatencyHistogram>> byAid = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<LatencyHistogram> totals = new AtomicReferenceArray<>(CATEGORIES.length);
+
+    private volatile Classifier classifier = POSITIONAL_CLASSIFIER;
+
+
+    @Inject
+    public NfcRoundTripStats() {
+    }
+
+
+    /**
+     * Sets how the stat items are mapped to categories. {@link #POSITIONAL_CLASSIFIER} by default.
+     */
+    public void setClassifier(Classifier classifier) {
+        if (classifier == null) {
+            throw new NullPointerException("classifier is null");
+        }
+        this.classifier = classifier;
+    }
+
+
+    /**
+     * Aggregates the round trips of a card session
+     *
+     * @param aid        AID of the selected application
+     * @param kernelType kernel that processed the transaction
+     * @param stats      all the round trips of the session, in order
+     */
+    public void record(String aid, KernelType kernelType, List<Transceiver.StatItem> stats) {
+        record(aid, kernelType, stats, false);
+    }
+
+
+    /**
+     * Aggregates the round trips of a card session
+     *
+     * @param aid                AID of the selected application
+     * @param kernelType         kernel that processed the transaction
+     * @param stats              all the round trips of the session, in order
+     * @param isSelectionResumed the session started with the final SELECT, SELECT PPSE was done on the previous tap
+     *                           (see {@link EntryPointImpl#setSelectionResume}), the classifier is given the positions
+     *                           as if it was not skipped
+     */
+    public void record(String aid, KernelType kernelType, List<Transceiver.StatItem> stats,
+                       boolean isSelectionResumed) {
+
+        Classifier c = classifier;
+        AtomicReferenceArray<LatencyHistogram> aidHistograms = getAidHistograms(aid);
+        int skipped = isSelectionResumed ? 1 : 0;
+        for (int i = 0; i < stats.size(); i++) {
+            Transceiver.StatItem item = stats.get(i);
+            ApduCategory category = c.classify(item, i + skipped, stats.size() + skipped, kernelType);
+            long took = item.getTook();
+
+            getOrCreate(totals, category.ordinal()).record(took);
+            getOrCreate(aidHistograms, category.ordinal() * KERNEL_TYPES.length + kernelType.ordinal()).record(took);
+        }
+    }
+
+
+    /**
+     * @return histogram or null if nothing is recorded for the category
+     */
+    public LatencyHistogram getTotal(ApduCategory category) {
+        return totals.get(category.ordinal());
+    }
+
+
+    /**
+     * @param aid AID or {@link #OTHER_AIDS}
+     * @return histogram or null if nothing is recorded for the combination
+     */
+    public LatencyHistogram get(ApduCategory category, KernelType kernelType, String aid) {
+        AtomicReferenceArray<LatencyHistogram> aidHistograms = byAid.get(aid);
+        return aidHistograms != null ?
+                aidHistograms.get(category.ordinal() * KERNEL_TYPES.length + kernelType.ordinal()) :
+                null;
+    }
+
+
+    public void report(Reporter reporter) {
+        for (Map.Entry<String, AtomicReferenceArray<LatencyHistogram>> e : byAid.entrySet()) {
+            AtomicReferenceArray<LatencyHistogram> aidHistograms = e.getValue();
+            for (int i = 0; i < aidHistograms.length(); i++) {
+                LatencyHistogram h = aidHistograms.get(i);
+                if (h != null && h.getCount() > 0) {
+                    reporter.report(CATEGORIES[i / KERNEL_TYPES.length], KERNEL_TYPES[i % KERNEL_TYPES.length],
+                            e.getKey(), h);
+                }
+            }
+        }
+    }
+
+
+    private AtomicReferenceArray<LatencyHistogram> getAidHistograms(String aid) {
+        AtomicReferenceArray<LatencyHistogram> ret = byAid.get(aid);
+        if (ret == null) {
+            // the limit may be exceeded slightly by concurrent sessions, no big deal
+            String key = byAid.size() < MAX_AIDS ? aid : OTHER_AIDS;
+            ret = byAid.get(key);
+            if (ret == null) {
+                AtomicReferenceArray<LatencyHistogram> created =
+                        new AtomicReferenceArray<>(CATEGORIES.length * KERNEL_TYPES.length);
+                ret = byAid.putIfAbsent(key, created);
+                if (ret == null) {
+                    ret = created;
+                }
+            }
+        }
+
+        return ret;
+    }
+
+
+    private static LatencyHistogram getOrCreate(AtomicReferenceArray<LatencyHistogram> histograms, int i) {
+        LatencyHistogram h = histograms.get(i);
+        if (h == null) {
+            histograms.compareAndSet(i, null, new LatencyHistogram());
+            h = histograms.get(i);
+        }
+
+        return h;
+    }
+
+
+    /**
+     * Maps a round trip to its category. {@link Transceiver.StatItem} does not tell the command, so it is up to the
+     * integration (e.g. by the position in the session or by data kept by the transceiver).
+     */
+    public interface Classifier {
+        /**
+         * @param index      position of the round trip in the session, counting the SELECT PPSE skipped by a resumed
+         *                   selection
+         * @param count      number of round trips in the session, counting the SELECT PPSE skipped by a resumed
+         *                   selection
+         * @param kernelType kernel that processed the transaction
+         */
+        ApduCategory classify(Transceiver.StatItem item, int index, int count, KernelType kernelType);
+    }
+
+
+    public interface Reporter {
+        void report(ApduCategory category, KernelType kernelType, String aid, LatencyHistogram histogram);
+    }
+}
@@ -3,11 +3,13 @@ package digital.paynetics.phos.entry_point;
 
 import com.google.gson.annotations.SerializedName;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
 
 import digital.paynetics.phos.kernel.common.emv.cert.CaRidDbReadOnly;
@@ -36,11 +38,21 @@ public final class PosChangeableConfiguration {
     private final CaRidDbReadOnly caRidDb;
 
     private final CertificateRevocationListReadOnly crl;
+    private transient volatile CardApplicationIndex cardApplicationIndex;
 
+    private transient volatile CompiledAppConfigurations compiledAppConfigurations;
 
-    private final Map<TransactionType, List<CardAppConfiguration>> transactionAppConfigs;
+    private transient volatile byte[] fingerprint;
 
+    private transient volatile byte[] certificatesFingerprint;
 
+
+    /**
+     * @deprecated <code>transactionAppConfigs</code> is ignored, it is computed from
+     * <code>cardAppConfigurations</code>. Use {@link #PosChangeableConfiguration(List, List, List, CaRidDbReadOnly,
+     * CertificateRevocationListReadOnly)}
+     */
+    @Deprecated
     public PosChangeableConfiguration(List<TransactionType> supportedTransactionTypes,
                                       List<CardApplication> cardApplications,
                                       List<CardAppConfiguration> cardAppConfigurations,
@@ -48,10 +60,20 @@ public final class PosChangeableConfiguration {
                                       CertificateRevocationListReadOnly crl,
                                       Map<TransactionType, List<CardAppConfiguration>> transactionAppConfigs) {
 
-        this.transactionAppConfigs = transactionAppConfigs;
+        this(supportedTransactionTypes, cardApplications, cardAppConfigurations, caRidDb, crl);
+    }
+
+
+    public PosChangeableConfiguration(List<TransactionType> supportedTransactionTypes,
+                                      List<CardApplication> cardApplications,
+                                      List<CardAppConfiguration> cardAppConfigurations,
+                                      CaRidDbReadOnly caRidDb,
+                                      CertificateRevocationListReadOnly crl) {
 
-        if (!checkValidParams(supportedTransactionTypes, cardApplications, cardAppConfigurations)) {
-            throw new IllegalArgumentException();
+        try {
+            ConfigurationValidator.validate(supportedTransactionTypes, cardApplications, cardAppConfigurations);
+        } catch (InvalidConfigurationException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
         }
 
         this.supportedTransactionTypes = supportedTransactionTypes;
@@ -59,40 +81,147 @@ public final class PosChangeableConfiguration {
         this.cardAppConfigurations = cardAppConfigurations;
         this.caRidDb = caRidDb;
         this.crl = crl;
+        this.cardApplicationIndex = CardApplicationIndex.build(supportedTransactionTypes,
+                Collections.unmodifiableList(cardApplications),
+                cardAppConfigurations);
+        this.fingerprint = ConfigurationFingerprint.compute(supportedTransactionTypes,
+                cardApplications,
+                cardAppConfigurations);
+    }
 
 
+    /**
+     * Creates configuration from an already validated, incrementally updated one
+     */
+    private PosChangeableConfiguration(List<TransactionType> supportedTransactionTypes,
+                                       List<CardApplication> cardApplications,
+                                       List<CardAppConfiguration> cardAppConfigurations,
+                                       CaRidDbReadOnly caRidDb,
+                                       CertificateRevocationListReadOnly crl,
+                                       CardApplicationIndex cardApplicationIndex,
+                                       CompiledAppConfigurations compiledAppConfigurations) {
+
+        this.supportedTransactionTypes = supportedTransactionTypes;
+        this.cardApplications = cardApplications;
+        this.cardAppConfigurations = cardAppConfigurations;
+        this.caRidDb = caRidDb;
+        this.crl = crl;
+        this.cardApplicationIndex = cardApplicationIndex;
+        this.compiledAppConfigurations = compiledAppConfigurations;
+        // fingerprint is computed on first use, not on each delta
     }
 
 
-    public CaRidDbReadOnly getCaRidDb() {
-        return caRidDb;
-    }
+    /**
+     * Creates new configuration with <code>delta</code> applied. This instance is not changed.
+     * <p>
+     * Only the changed entries are validated and the index and the compiled configurations are updated only for
+     * them, so it is much cheaper than creating the configuration from scratch when a few entries are changed.
+     *
+     * @throws InvalidConfigurationException if the resulting configuration would be invalid or the delta removes an
+     *                                       application or an application configuration that is not in this
+     *                                       configuration, with all the violations found
+     * @see ConfigurationValidator
+     */
+    public PosChangeableConfiguration apply(ConfigurationDelta delta) throws InvalidConfigurationException {
+        if (delta.isEmpty()) {
+            return this;
+        }
 
+        final CardApplicationIndex index = getCardApplicationIndex();
 
-    public static boolean checkValidParams(List<TransactionType> supportedTransactionTypes,
-                                           List<CardApplication> cardApplications,
-                                           List<CardAppConfiguration> cardAppConfigurations) {
+        final List<CardApplication> newApps = new ArrayList<>(cardApplications.size() +
+                delta.putApplications.size());
+        final Set<String> replacedApps = new HashSet<>();
+        for (final CardApplication app : cardApplications) {
+            if (delta.removedApplications.contains(app.applicationId)) {
+                continue;
+            }
 
-        final Set<String> caIds = new HashSet<>();
-        for (final CardApplication ca : cardApplications) {
-            if (caIds.contains(ca.applicationId)) {
-                return false;
+            final CardApplication replacement = delta.putApplications.get(app.applicationId);
+            if (replacement != null) {
+                newApps.add(replacement);
+                replacedApps.add(app.applicationId);
+            } else {
+                newApps.add(app);
             }
+        }
 
-            caIds.add(ca.applicationId);
+        for (final CardApplication app : delta.putApplications.values()) {
+            if (!replacedApps.contains(app.applicationId)) {
+                newApps.add(app);
+            }
         }
 
+        final Set<TransactionType> affected = EnumSet.noneOf(TransactionType.class);
+        final List<CardAppConfiguration> newConfs = new ArrayList<>(cardAppConfigurations.size() +
+                delta.putAppConfigurations.size());
+        final Set<String> replacedConfs = new HashSet<>();
+        final Set<String> removedConfs = new HashSet<>();
         for (final CardAppConfiguration cac : cardAppConfigurations) {
-            if (!supportedTransactionTypes.contains(cac.getTransactionType())) {
-                return false;
+            final String key = ConfigurationDelta.appConfigurationKey(cac.getApplicationId(),
+                    cac.getTransactionType());
+
+            if (delta.removedAppConfigurations.contains(key)) {
+                affected.add(cac.getTransactionType());
+                removedConfs.add(key);
+                continue;
             }
 
-            if (!caIds.contains(cac.getApplicationId())) {
-                return false;
+            final CardAppConfiguration replacement = delta.putAppConfigurations.get(key);
+            if (replacement != null) {
+                affected.add(cac.getTransactionType());
+                if (replacedConfs.add(key)) {
+                    newConfs.add(replacement);
+                }
+            } else {
+                newConfs.add(cac);
+            }
+        }
+
+        for (final Map.Entry<String, CardAppConfiguration> e : delta.putAppConfigurations.entrySet()) {
+            if (!replacedConfs.contains(e.getKey())) {
+                newConfs.add(e.getValue());
+                affected.add(e.getValue().getTransactionType());
             }
         }
 
-        return true;
+        // validate only what is changed, the rest was validated when this instance was created
+        ConfigurationValidator.validate(index, delta, newConfs, removedConfs);
+
+        final List<CardApplication> unmodifiableApps = Collections.unmodifiableList(newApps);
+        final CardApplicationIndex newIndex = index.update(unmodifiableApps,
+                delta.putApplications,
+                delta.removedApplications,
+                newConfs,
+                affected);
+
+        final CompiledAppConfigurations compiled = compiledAppConfigurations;
+
+        return new PosChangeableConfiguration(supportedTransactionTypes,
+                newApps,
+                newConfs,
+                delta.caRidDb != null ? delta.caRidDb : caRidDb,
+                delta.crl != null ? delta.crl : crl,
+                newIndex,
+                compiled != null ? compiled.update(newIndex, newConfs) : null);
+    }
+
+
+    public CaRidDbReadOnly getCaRidDb() {
+        return caRidDb;
+    }
+
+
+    /**
+     * @see ConfigurationValidator
+     */
+    public static boolean checkValidParams(List<TransactionType> supportedTransactionTypes,
+                                           List<CardApplication> cardApplications,
+                                           List<CardAppConfiguration> cardAppConfigurations) {
+
+        return ConfigurationValidator.check(supportedTransactionTypes, cardApplications, cardAppConfigurations)
+                .isEmpty();
     }
 
 
@@ -112,6 +241,10 @@ public final class PosChangeableConfiguration {
 
         final PosChangeableConfiguration other = (PosChangeableConfiguration) obj;
 
+        if (!Arrays.equals(getFingerprintInternal(), other.getFingerprintInternal())) {
+            return false;
+        }
+
         return  supportedTransactionTypes.equals(other.supportedTransactionTypes) &&
                 cardApplications.equals(other.cardApplications) &&
                 cardAppConfigurations.equals(other.cardAppConfigurations);
@@ -121,7 +254,66 @@ public final class PosChangeableConfiguration {
 
     @Override
     public int hashCode() {
-        return Objects.hash(supportedTransactionTypes, cardApplications, cardAppConfigurations);
+        final byte[] fp = getFingerprintInternal();
+        return (fp[0] & 0xff) << 24 | (fp[1] & 0xff) << 16 | (fp[2] & 0xff) << 8 | (fp[3] & 0xff);
+    }
+
+
+    /**
+     * Cheap check if <code>other</code> has the same content, e.g. to skip reinitialization when a host sync brings
+     * no changes. The transaction types, applications and application configurations are compared by their
+     * fingerprints. The CA RID DB and the CRL have no canonical encoding, unless they are the same instances they are
+     * compared by the fingerprint of their fields (see {@link ConfigurationFingerprint#computeOf}), if it cannot be
+     * computed they are considered different.
+     *
+     * @see #getFingerprint()
+     */
+    public boolean isSameAs(PosChangeableConfiguration other) {
+        if (other == null) {
+            return false;
+        }
+
+        if (this == other) {
+            return true;
+        }
+
+        if (!Arrays.equals(getFingerprintInternal(), other.getFingerprintInternal())) {
+            return false;
+        }
+
+        return caRidDb == other.caRidDb && crl == other.crl ||
+                ConfigurationFingerprint.isSame(getCertificatesFingerprint(), other.getCertificatesFingerprint());
+    }
+
+
+    private byte[] getCertificatesFingerprint() {
+        byte[] ret = certificatesFingerprint;
+        if (ret == null) {
+            ret = ConfigurationFingerprint.computeOf(caRidDb, crl);
+            certificatesFingerprint = ret;
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * @return SHA-256 of the content of the configuration, computed once
+     */
+    public byte[] getFingerprint() {
+        return getFingerprintInternal().clone();
+    }
+
+
+    private byte[] getFingerprintInternal() {
+        byte[] ret = fingerprint;
+        if (ret == null) {
+            // instance was created without calling the constructor (e.g. deserialized by Gson)
+            ret = ConfigurationFingerprint.compute(supportedTransactionTypes, cardApplications, cardAppConfigurations);
+            fingerprint = ret;
+        }
+
+        return ret;
     }
 
 
@@ -136,8 +328,11 @@ public final class PosChangeableConfiguration {
     }
 
 
+    /**
+     * @return the same unmodifiable list on each call, so it can be matched against {@link #getCardApplicationIndex()}
+     */
     public List<CardApplication> getCardApplications() {
-        return Collections.unmodifiableList(cardApplications);
+        return getCardApplicationIndex().getCardApplications();
     }
 
 
@@ -147,7 +342,7 @@ public final class PosChangeableConfiguration {
 
 
     public List<CardAppConfiguration> getAppConfigurations(TransactionType tt) {
-        final List<CardAppConfiguration> ret = transactionAppConfigs.get(tt);
+        final List<CardAppConfiguration> ret = getCardApplicationIndex().getAppConfigurations(tt);
         if (ret == null) {
             throw new IllegalArgumentException("No such TransactionType in transactionAppConfigs: " + tt);
         }
@@ -156,18 +351,43 @@ public final class PosChangeableConfiguration {
     }
 
 
-//    private void computeTransactionAppConfigs(List<TransactionType> supportedTransactionTypes,
-//                                              List<CardAppConfiguration> cardAppConfigurations) {
-//
-//        for (final TransactionType tt : supportedTransactionTypes) {
-//            transactionAppConfigs.put(tt, new ArrayList<>());
-//        }
-//
-//        for (final CardAppConfiguration cac : cardAppConfigurations) {
-//            final List<CardAppConfiguration> list = transactionAppConfigs.get(cac.transactionType);
-//            list.add(cac);
-//        }
-//    }
+    public CardApplicationIndex getCardApplicationIndex() {
+        CardApplicationIndex ret = cardApplicationIndex;
+        if (ret == null) {
+            // instance was created without calling the constructor (e.g. deserialized by Gson)
+            ret = CardApplicationIndex.build(supportedTransactionTypes,
+                    Collections.unmodifiableList(cardApplications),
+                    cardAppConfigurations);
+            cardApplicationIndex = ret;
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * @return application configurations decoded in advance for use by pre-processing. Compiled on the first call.
+     * @see EntryPointPreprocessorImpl2#install(PosChangeableConfiguration)
+     */
+    public CompiledAppConfigurations getCompiledAppConfigurations() {
+        return getCompiledAppConfigurations(null);
+    }
+
+
+    /**
+     * @param image used to compile the configurations if they are not compiled yet, may be null
+     * @see #getCompiledAppConfigurations()
+     */
+    public CompiledAppConfigurations getCompiledAppConfigurations(ConfigurationImage image) {
+        CompiledAppConfigurations ret = compiledAppConfigurations;
+        if (ret == null) {
+            ret = CompiledAppConfigurations.compile(getCardApplicationIndex(), cardAppConfigurations, image);
+            compiledAppConfigurations = ret;
+        }
+
+        return ret;
+    }
+
 
     public CertificateRevocationListReadOnly getCrl() {
         return crl;
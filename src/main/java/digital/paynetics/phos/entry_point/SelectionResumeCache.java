@@ -0,0 +1,57 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.Arrays;
+
+import digital.paynetics.phos.kernel.common.emv.entry_point.selection.ApplicationSelector;
+
+
+/**
+ * Keeps the application selector (with the PPSE response processed and the candidate list built) of a card session
+ * that ended with a tag loss before the final SELECT, so a re-tap of the same card can continue with the final
+ * SELECT. Holds a single entry which is used at most once. Accessed by the processing thread only.
+ * <p>
+ * The selector is kept as it is, not copied, see {@link EntryPointImpl#setSelectionResume}.
+ */
+final class SelectionResumeCache {
+    private byte[] fingerprint;
+    private ApplicationSelector applicationSelector;
+    private long expiresAt; // TimeProvider.getVmTime()
+
+
+    void put(byte[] fingerprint, ApplicationSelector applicationSelector, long expiresAt) {
+        this.fingerprint = fingerprint;
+        this.applicationSelector = applicationSelector;
+        this.expiresAt = expiresAt;
+    }
+
+
+    /**
+     * @return true if there is an entry, possibly expired
+     */
+    boolean isPresent() {
+        return applicationSelector != null;
+    }
+
+
+    /**
+     * Removes the entry
+     *
+     * @return the selector if the entry is for the same card and is not expired, null otherwise
+     */
+    ApplicationSelector take(byte[] fingerprint, long now) {
+        ApplicationSelector ret = null;
+        if (applicationSelector != null && now <= expiresAt && Arrays.equals(this.fingerprint, fingerprint)) {
+            ret = applicationSelector;
+        }
+        clear();
+
+        return ret;
+    }
+
+
+    void clear() {
+        fingerprint = null;
+        applicationSelector = null;
+        expiresAt = 0;
+    }
+}
@@ -0,0 +1,199 @@
+package digital.paynetics.phos.entry_point;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import digital.paynetics.phos.kernel.common.emv.entry_point.preprocessing.EntryPointPreprocessor;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+import digital.paynetics.phos.kernel.common.misc.Currency;
+import digital.paynetics.phos.kernel.common.misc.PreprocessedApplication;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+
+
+/**
+ * Runs pre-processing for candidate amounts in the background while the amount is still being entered, so when the
+ * final amount is confirmed its result is (usually) ready and polling can start right away.
+ * <p>
+ * Only the last {@value #MAX_CANDIDATES} candidates are kept. Candidates are matched by amounts, currency and
+ * transaction type and by identity of the application lists.
+ */
+final class SpeculativePreprocessor {
+    private static final int MAX_CANDIDATES = 4;
+
+    private final org.slf4j.Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final EntryPointPreprocessor entryPointPreprocessor;
+    private final ArrayDeque<Candidate> candidates = new ArrayDeque<>();
+
+    private boolean isClosed;
+    private ExecutorService executor;
+
+
+    SpeculativePreprocessor(EntryPointPreprocessor entryPointPreprocessor) {
+        this.entryPointPreprocessor = entryPointPreprocessor;
+    }
+
+
+    synchronized void submit(List<CardApplication> apps,
+                             List<CardAppConfiguration> appConfs,
+                             int amountAuthorized,
+                             int amountOther,
+                             Currency currency,
+                             TransactionType transactionType) {
+
+        if (isClosed || find(apps, appConfs, amountAuthorized, amountOther, currency, transactionType) != null) {
+            return;
+        }
+
+        if (candidates.size() == MAX_CANDIDATES) {
+            candidates.removeFirst().task.cancel(false);
+        }
+
+        Candidate c = new Candidate(apps, appConfs, amountAuthorized, amountOther, currency, transactionType);
+        candidates.addLast(c);
+        getExecutor().execute(c.task);
+    }
+
+
+    /**
+     * Returns the pre-processing result for the given parameters. Uses the matching candidate if there is such,
+     * otherwise pre-processes in the calling thread. All candidates are discarded.
+     */
+    List<PreprocessedApplication> take(List<CardApplication> apps,
+                                       List<CardAppConfiguration> appConfs,
+                                       int amountAuthorized,
+                                       int amountOther,
+                                       Currency currency,
+                                       TransactionType transactionType) {
+
+        Candidate c;
+        synchronized (this) {
+            c = find(apps, appConfs, amountAuthorized, amountOther, currency, transactionType);
+            if (c != null) {
+                candidates.remove(c);
+            }
+            clear();
+        }
+
+        if (c != null) {
+            // if the task is not started yet it is executed here, if it is running we wait for it
+            c.task.run();
+            try {
+                logger.debug("Using speculative pre-processing result");
+                return c.task.get();
+            } catch (ExecutionException e) {
+                logger.warn("Speculative pre-processing failed: {}", e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return entryPointPreprocessor.preProcess(apps, appConfs, amountAuthorized, amountOther, currency, transactionType);
+    }
+
+
+    synchronized void clear() {
+        for (Candidate c : candidates) {
+            c.task.cancel(false);
+        }
+        candidates.clear();
+    }
+
+
+    private Candidate find(List<CardApplication> apps,
+                           List<CardAppConfiguration> appConfs,
+                           int amountAuthorized,
+                           int amountOther,
+                           Currency currency,
+                           TransactionType transactionType) {
+
+        Iterator<Candidate> it = candidates.descendingIterator();
+        while (it.hasNext()) {
+            Candidate c = it.next();
+            if (c.apps == apps && c.appConfs == appConfs && c.amountAuthorized == amountAuthorized &&
+                    c.amountOther == amountOther && c.currency == currency && c.transactionType == transactionType) {
+
+                return c;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Discards the candidates and stops the background thread, {@link #submit} is ignored after that
+     */
+    synchronized void close() {
+        clear();
+        isClosed = true;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "speculative pre-processing");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        return executor;
+    }
+
+
+    private final class Candidate {
+        final List<CardApplication> apps;
+        final List<CardAppConfiguration> appConfs;
+        final int amountAuthorized;
+        final int amountOther;
+        final Currency currency;
+        final TransactionType transactionType;
+        final FutureTask<List<PreprocessedApplication>> task;
+
+
+        Candidate(final List<CardApplication> apps,
+                  final List<CardAppConfiguration> appConfs,
+                  final int amountAuthorized,
+                  final int amountOther,
+                  final Currency currency,
+                  final TransactionType transactionType) {
+
+            this.apps = apps;
+            this.appConfs = appConfs;
+            this.amountAuthorized = amountAuthorized;
+            this.amountOther = amountOther;
+            this.currency = currency;
+            this.transactionType = transactionType;
+            this.task = new FutureTask<>(new Callable<List<PreprocessedApplication>>() {
+                @Override
+                public List<PreprocessedApplication> call() {
+                    return entryPointPreprocessor.preProcess(apps,
+                            appConfs,
+                            amountAuthorized,
+                            amountOther,
+                            currency,
+                            transactionType);
+                }
+            });
+        }
+    }
+}
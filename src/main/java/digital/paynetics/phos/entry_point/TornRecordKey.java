@@ -0,0 +1,62 @@
+package digital.paynetics.phos.entry_point;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+
+/**
+ * Key of a torn transaction log record: SHA-256 of the PAN plus the PAN sequence number. The PAN itself is not kept.
+ */
+public final class TornRecordKey {
+    private final byte[] panHash;
+    private final int panSequenceNumber;
+    private final int hash;
+
+
+    private TornRecordKey(final byte[] panHash, final int panSequenceNumber) {
+        this.panHash = panHash;
+        this.panSequenceNumber = panSequenceNumber;
+        this.hash = 31 * Arrays.hashCode(panHash) + panSequenceNumber;
+    }
+
+
+    /**
+     * @param panSequenceNumber -1 if not present
+     */
+    public static TornRecordKey of(final byte[] pan, final int panSequenceNumber) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is mandatory for every Java platform
+            throw new IllegalStateException(e);
+        }
+
+        return new TornRecordKey(md.digest(pan), panSequenceNumber);
+    }
+
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof TornRecordKey)) {
+            return false;
+        }
+
+        final TornRecordKey other = (TornRecordKey) obj;
+
+        return hash == other.hash &&
+                panSequenceNumber == other.panSequenceNumber &&
+                Arrays.equals(panHash, other.panHash);
+    }
+
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,21 @@
+package digital.paynetics.phos.entry_point;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+
+/**
+ * Extracts the PAN and the PAN sequence number of a torn transaction log record, used to index the log
+ *
+ * @see EntryPointImpl#setTornRecordKeyExtractor(TornRecordKeyExtractor)
+ */
+public interface TornRecordKeyExtractor {
+    /**
+     * @return PAN as in tag 5A
+     */
+    byte[] getPan(TornTransactionLogRecord record);
+
+    /**
+     * @return PAN sequence number as in tag 5F34 or -1 if not present
+     */
+    int getPanSequenceNumber(TornTransactionLogRecord record);
+}
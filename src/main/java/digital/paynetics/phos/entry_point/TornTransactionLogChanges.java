@@ -0,0 +1,121 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+
+/**
+ * Records added to and removed from the torn transaction log by the kernel. Records are compared by identity, the
+ * kernel does not modify records in place.
+ */
+final class TornTransactionLogChanges {
+    static final TornTransactionLogChanges NONE = new TornTransactionLogChanges(
+            Collections.<TornTransactionLogRecord>emptyList(),
+            Collections.<TornTransactionLogRecord>emptyList());
+
+    private final List<TornTransactionLogRecord> added;
+    private final List<TornTransactionLogRecord> removed;
+
+
+    private TornTransactionLogChanges(List<TornTransactionLogRecord> added, List<TornTransactionLogRecord> removed) {
+        this.added = added;
+        this.removed = removed;
+    }
+
+
+    /**
+     * @return changes tracked by <code>log</code> (the list given to the kernel) since it was reset
+     */
+    static TornTransactionLogChanges of(CopyOnFirstWriteList<TornTransactionLogRecord> log) {
+        if (log.getAdded().isEmpty() && log.getRemoved().isEmpty()) {
+            return NONE;
+        }
+
+        return new TornTransactionLogChanges(log.getAdded(), log.getRemoved());
+    }
+
+
+    /**
+     * Used if the kernel replaced the list it was given. Only the part between the longest common prefix and the longest common suffix is compared, so a kernel adding
+     * or removing a record costs a scan of the log and no sets of all the records.
+     *
+     * @param before the log before the kernel
+     * @param after  the log after the kernel
+     */
+    static TornTransactionLogChanges compute(List<TornTransactionLogRecord> before,
+                                             List<TornTransactionLogRecord> after) {
+
+        if (before == after) {
+            return NONE;
+        }
+
+        int start = 0;
+        int beforeEnd = before.size();
+        int afterEnd = after.size();
+        while (start < beforeEnd && start < afterEnd && before.get(start) == after.get(start)) {
+            start++;
+        }
+        while (beforeEnd > start && afterEnd > start && before.get(beforeEnd - 1) == after.get(afterEnd - 1)) {
+            beforeEnd--;
+            afterEnd--;
+        }
+
+        if (start == beforeEnd && start == afterEnd) {
+            return NONE;
+        }
+
+        List<TornTransactionLogRecord> beforeChanged = before.subList(start, beforeEnd);
+        List<TornTransactionLogRecord> afterChanged = after.subList(start, afterEnd);
+        if (beforeChanged.isEmpty() || afterChanged.isEmpty()) {
+            return new TornTransactionLogChanges(new ArrayList<>(afterChanged), new ArrayList<>(beforeChanged));
+        }
+
+        Set<TornTransactionLogRecord> beforeSet = identitySet(beforeChanged);
+        Set<TornTransactionLogRecord> afterSet = identitySet(afterChanged);
+
+        List<TornTransactionLogRecord> added = new ArrayList<>();
+        for (TornTransactionLogRecord record : afterChanged) {
+            if (!beforeSet.contains(record)) {
+                added.add(record);
+            }
+        }
+
+        List<TornTransactionLogRecord> removed = new ArrayList<>();
+        for (TornTransactionLogRecord record : beforeChanged) {
+            if (!afterSet.contains(record)) {
+                removed.add(record);
+            }
+        }
+
+        return new TornTransactionLogChanges(added, removed);
+    }
+
+
+    boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+
+    List<TornTransactionLogRecord> getAdded() {
+        return added;
+    }
+
+
+    List<TornTransactionLogRecord> getRemoved() {
+        return removed;
+    }
+
+
+    private static Set<TornTransactionLogRecord> identitySet(List<TornTransactionLogRecord> records) {
+        Set<TornTransactionLogRecord> ret = Collections.newSetFromMap(
+                new IdentityHashMap<TornTransactionLogRecord, Boolean>());
+        ret.addAll(records);
+
+        return ret;
+    }
+}
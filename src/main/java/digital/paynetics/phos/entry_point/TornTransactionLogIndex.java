@@ -0,0 +1,165 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+
+/**
+ * Index of the resident torn transaction log by {@link TornRecordKey}. Also keeps the time each record was added,
+ * used by the compaction. Updated by the write-behind thread, looked up from any thread.
+ * <p>
+ * More records may have the same key (e.g. the same card torn twice). They are kept in an immutable chain per key,
+ * the newest first, so a lookup finds the newest one and the compaction sees all of them. Chains are replaced by
+ * compare-and-set, so concurrent updates are never lost.
+ */
+final class TornTransactionLogIndex {
+    private final TornRecordKeyExtractor keyExtractor;
+    private final ConcurrentMap<TornRecordKey, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+
+    TornTransactionLogIndex(TornRecordKeyExtractor keyExtractor) {
+        this.keyExtractor = keyExtractor;
+    }
+
+
+    void add(TornTransactionLogRecord record, long nowMillis) {
+        TornRecordKey key = key(record);
+        while (true) {
+            Entry head = entries.get(key);
+            Entry e = new Entry(record, nowMillis, head);
+            if (head == null ? entries.putIfAbsent(key, e) == null : entries.replace(key, head, e)) {
+                size.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+
+    void remove(TornTransactionLogRecord record) {
+        TornRecordKey key = key(record);
+        while (true) {
+            Entry head = entries.get(key);
+            if (head == null || !head.contains(record)) {
+                return;
+            }
+
+            Entry rest = head.without(record);
+            if (rest == null ? entries.remove(key, head) : entries.replace(key, head, rest)) {
+                size.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+
+    void clear() {
+        entries.clear();
+        size.set(0);
+    }
+
+
+    /**
+     * @return the newest record with the key or null if there is no such
+     */
+    TornTransactionLogRecord find(TornRecordKey key) {
+        Entry e = entries.get(key);
+        return e != null ? e.record : null;
+    }
+
+
+    /**
+     * @return number of the records, including the ones with the same key
+     */
+    int size() {
+        return size.get();
+    }
+
+
+    /**
+     * @param maxAgeMillis records older than that are selected, 0 for no limit
+     * @param maxRecords   the oldest records above that count are selected, 0 for no limit
+     * @return records to be evicted, the oldest first
+     */
+    List<TornTransactionLogRecord> selectEvictions(long nowMillis, long maxAgeMillis, int maxRecords) {
+        boolean overSize = maxRecords > 0 && size.get() > maxRecords;
+        if (maxAgeMillis <= 0 && !overSize) {
+            return Collections.emptyList();
+        }
+
+        List<Entry> sorted = new ArrayList<>(size.get());
+        for (Entry head : entries.values()) {
+            for (Entry e = head; e != null; e = e.next) {
+                sorted.add(e);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.addedAt < o2.addedAt ? -1 : (o1.addedAt == o2.addedAt ? 0 : 1);
+            }
+        });
+
+        int excess = overSize ? sorted.size() - maxRecords : 0;
+        List<TornTransactionLogRecord> ret = new ArrayList<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            Entry e = sorted.get(i);
+            if (i < excess || (maxAgeMillis > 0 && nowMillis - e.addedAt > maxAgeMillis)) {
+                ret.add(e.record);
+            } else {
+                break;
+            }
+        }
+
+        return ret;
+    }
+
+
+    private TornRecordKey key(TornTransactionLogRecord record) {
+        return TornRecordKey.of(keyExtractor.getPan(record), keyExtractor.getPanSequenceNumber(record));
+    }
+
+
+    private static final class Entry {
+        final TornTransactionLogRecord record;
+        final long addedAt;
+        final Entry next; // older record with the same key
+
+
+        Entry(TornTransactionLogRecord record, long addedAt, Entry next) {
+            this.record = record;
+            this.addedAt = addedAt;
+            this.next = next;
+        }
+
+
+        boolean contains(TornTransactionLogRecord r) {
+            for (Entry e = this; e != null; e = e.next) {
+                if (e.record == r) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+
+        /**
+         * @return copy of the chain without <code>r</code>, null if it becomes empty
+         */
+        Entry without(TornTransactionLogRecord r) {
+            if (record == r) {
+                return next;
+            }
+
+            return new Entry(record, addedAt, next != null ? next.without(r) : null);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package digital.paynetics.phos.entry_point;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+
+/**
+ * Converts torn transaction log records to bytes and back for {@link MappedTornTransactionLogPersister}
+ */
+public interface TornTransactionLogRecordCodec {
+    byte[] encode(TornTransactionLogRecord record);
+
+    /**
+     * @throws IllegalArgumentException if <code>data</code> cannot be decoded
+     */
+    TornTransactionLogRecord decode(byte[] data);
+}
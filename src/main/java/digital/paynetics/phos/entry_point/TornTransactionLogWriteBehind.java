@@ -0,0 +1,420 @@
+package digital.paynetics.phos.entry_point;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+
+/**
+ * Persists torn transaction log changes on a background thread, so the tap is not delayed by disk I/O. Changes are
+ * persisted in the order they are submitted. {@link #awaitDurable()} is the durability barrier: it must be called
+ * before a final outcome is reported, so a torn record is never lost once the cardholder is told the result.
+ * <p>
+ * A persistence failure is sticky: the next writes persist the whole log instead of the changes, until that
+ * succeeds, and {@link #awaitDurable()} throws while the log is not persisted.
+ * <p>
+ * Optionally keeps the log indexed by {@link TornRecordKey} and compacts it by age and size. Compaction runs on the
+ * background thread, records it evicts are dropped from the resident log by {@link #applyEvictions(List)} before the
+ * next transaction.
+ */
+final class TornTransactionLogWriteBehind {
+    private final org.slf4j.Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final long COMPACTION_INTERVAL_MILLIS = 60 * 1000;
+
+    private final TornTransactionLogPersister persister;
+    private ExecutorService executor;
+    private boolean isClosed;
+    private Future<?> last;
+    private RuntimeException failure; // sticky until the whole log is persisted
+    private List<TornTransactionLogRecord> latest; // last submitted log, persisted in full after a failure
+
+    private volatile TornTransactionLogIndex index;
+    private volatile long maxAgeMillis;
+    private volatile int maxRecords;
+    private long lastCompactionAt;
+    private final Set<TornTransactionLogRecord> pendingEvictions = Collections.newSetFromMap(
+            new IdentityHashMap<TornTransactionLogRecord, Boolean>());
+
+
+    TornTransactionLogWriteBehind(TornTransactionLogPersister persister) {
+        this.persister = persister;
+    }
+
+
+    /**
+     * Enables the index, {@link #reset(List)} must be called after that
+     */
+    void setKeyExtractor(TornRecordKeyExtractor keyExtractor) {
+        index = keyExtractor != null ? new TornTransactionLogIndex(keyExtractor) : null;
+    }
+
+
+    /**
+     * Requires the index
+     *
+     * @param maxAgeMillis records older than that are evicted, 0 for no limit
+     * @param maxRecords   the oldest records above that count are evicted, 0 for no limit
+     */
+    void setCompaction(long maxAgeMillis, int maxRecords) {
+        if (maxAgeMillis < 0 || maxRecords < 0) {
+            throw new IllegalArgumentException("maxAgeMillis: " + maxAgeMillis + ", maxRecords: " + maxRecords);
+        }
+
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxRecords = maxRecords;
+    }
+
+
+    /**
+     * Re-indexes the log just loaded from the persister. Age of the records is counted from the time they were
+     * persisted if the persister is an {@link IncrementalTornTransactionLogPersister}, which keeps that time, from
+     * now otherwise.
+     */
+    synchronized void reset(List<TornTransactionLogRecord> log) {
+        pendingEvictions.clear();
+        latest = null;
+        TornTransactionLogIndex idx = index;
+        if (idx != null) {
+            idx.clear();
+            IncrementalTornTransactionLogPersister incremental =
+                    persister instanceof IncrementalTornTransactionLogPersister ?
+                            (IncrementalTornTransactionLogPersister) persister :
+                            null;
+            long now = System.currentTimeMillis();
+            for (TornTransactionLogRecord record : log) {
+                long persistedAt = incremental != null ? incremental.getPersistedAt(record) : -1;
+                idx.add(record, persistedAt >= 0 ? persistedAt : now);
+            }
+        }
+    }
+
+
+    /**
+     * @return the record or null if there is no such or the index is not enabled
+     */
+    TornTransactionLogRecord find(TornRecordKey key) {
+        TornTransactionLogIndex idx = index;
+        return idx != null ? idx.find(key) : null;
+    }
+
+
+    /**
+     * @return <code>log</code> without the records evicted by the compaction (same instance if there are none)
+     */
+    synchronized List<TornTransactionLogRecord> applyEvictions(List<TornTransactionLogRecord> log) {
+        if (pendingEvictions.isEmpty()) {
+            return log;
+        }
+
+        List<TornTransactionLogRecord> ret = withoutEvicted(log);
+        pendingEvictions.clear();
+
+        return ret;
+    }
+
+
+    /**
+     * @param before the log before the kernel, not modified by it
+     * @param after  the log after the kernel, copied before this method returns
+     */
+    synchronized void submit(List<TornTransactionLogRecord> before, List<TornTransactionLogRecord> after) {
+        submit(TornTransactionLogChanges.compute(before, after), after);
+    }
+
+
+    /**
+     * @param changes made by the kernel
+     * @param after   the log after the kernel, copied before this method returns
+     */
+    synchronized void submit(final TornTransactionLogChanges changes, List<TornTransactionLogRecord> after) {
+        final boolean compactionDue = isCompactionDue();
+        if (changes.isEmpty() && !compactionDue) {
+            return;
+        }
+
+        final List<TornTransactionLogRecord> afterCopy = new ArrayList<>(after);
+        latest = afterCopy;
+        if (!changes.isEmpty()) {
+            updateIndex(changes);
+            last = getExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    persist(changes, afterCopy);
+                }
+            });
+        }
+
+        if (compactionDue) {
+            lastCompactionAt = System.currentTimeMillis();
+            // not awaited by awaitDurable(), dropping old records may be late
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    compact(afterCopy);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Blocks until all the submitted changes are persisted. If a write has failed (now or earlier) persisting the
+     * whole log is retried once.
+     *
+     * @throws IllegalStateException if the log cannot be persisted
+     */
+    void awaitDurable() {
+        Future<?> f;
+        synchronized (this) {
+            f = last;
+            last = null;
+        }
+
+        await(f);
+
+        final List<TornTransactionLogRecord> log;
+        synchronized (this) {
+            if (failure == null) {
+                return;
+            }
+            log = latest;
+            if (log != null) {
+                f = getExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        persistWhole(log);
+                    }
+                });
+            }
+        }
+
+        await(f);
+
+        synchronized (this) {
+            if (failure != null) {
+                throw new IllegalStateException("Cannot persist torn transaction log", failure);
+            }
+        }
+    }
+
+
+    private void await(Future<?> f) {
+        if (f == null) {
+            return;
+        }
+
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            // persist() and compact() catch the runtime exceptions, so this is an Error
+            throw new IllegalStateException("Cannot persist torn transaction log", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private synchronized void recordFailure(RuntimeException e) {
+        logger.error("Cannot persist torn transaction log", e);
+        failure = e;
+    }
+
+
+    private synchronized boolean hasFailed() {
+        return failure != null;
+    }
+
+
+    private void persistWhole(List<TornTransactionLogRecord> log) {
+        try {
+            persister.save(withoutEvicted(log));
+            synchronized (this) {
+                failure = null;
+            }
+            logger.info("Torn transaction log persisted after a failure");
+        } catch (RuntimeException e) {
+            recordFailure(e);
+        }
+    }
+
+
+    private boolean isCompactionDue() {
+        TornTransactionLogIndex idx = index;
+        if (idx == null || (maxAgeMillis == 0 && maxRecords == 0)) {
+            return false;
+        }
+
+        return (maxRecords > 0 && idx.size() > maxRecords) ||
+                System.currentTimeMillis() - lastCompactionAt >= COMPACTION_INTERVAL_MILLIS;
+    }
+
+
+    private void updateIndex(TornTransactionLogChanges changes) {
+        TornTransactionLogIndex idx = index;
+        if (idx == null) {
+            return;
+        }
+
+        for (TornTransactionLogRecord record : changes.getRemoved()) {
+            idx.remove(record);
+        }
+
+        long now = System.currentTimeMillis();
+        for (TornTransactionLogRecord record : changes.getAdded()) {
+            idx.add(record, now);
+        }
+    }
+
+
+    private void compact(List<TornTransactionLogRecord> log) {
+        TornTransactionLogIndex idx = index;
+        if (idx == null) {
+            return;
+        }
+
+        List<TornTransactionLogRecord> evicted = idx.selectEvictions(System.currentTimeMillis(),
+                maxAgeMillis,
+                maxRecords);
+        if (evicted.isEmpty()) {
+            return;
+        }
+
+        logger.debug("Torn transaction log compaction, evicted: {}", evicted.size());
+
+        List<TornTransactionLogRecord> remaining;
+        synchronized (this) {
+            pendingEvictions.addAll(evicted);
+            remaining = withoutEvicted(log);
+        }
+
+        for (TornTransactionLogRecord record : evicted) {
+            idx.remove(record);
+        }
+
+        if (hasFailed()) {
+            persistWhole(remaining);
+            return;
+        }
+
+        try {
+            if (persister instanceof IncrementalTornTransactionLogPersister) {
+                IncrementalTornTransactionLogPersister incremental =
+                        (IncrementalTornTransactionLogPersister) persister;
+                for (TornTransactionLogRecord record : evicted) {
+                    incremental.remove(record);
+                }
+            } else {
+                persister.save(remaining);
+            }
+        } catch (RuntimeException e) {
+            recordFailure(e);
+        }
+    }
+
+
+    private void persist(TornTransactionLogChanges changes, List<TornTransactionLogRecord> after) {
+        logger.debug("Torn transaction log size after kernel: {}, added: {}, removed: {}",
+                after.size(),
+                changes.getAdded().size(),
+                changes.getRemoved().size());
+
+        if (hasFailed()) {
+            // the persisted log may miss earlier changes
+            persistWhole(after);
+            return;
+        }
+
+        try {
+            if (persister instanceof IncrementalTornTransactionLogPersister) {
+                IncrementalTornTransactionLogPersister incremental =
+                        (IncrementalTornTransactionLogPersister) persister;
+                for (TornTransactionLogRecord record : changes.getRemoved()) {
+                    incremental.remove(record);
+                }
+                for (TornTransactionLogRecord record : changes.getAdded()) {
+                    incremental.append(record);
+                }
+            } else {
+                persister.save(withoutEvicted(after));
+            }
+        } catch (RuntimeException e) {
+            recordFailure(e);
+        }
+    }
+
+
+    private synchronized List<TornTransactionLogRecord> withoutEvicted(List<TornTransactionLogRecord> log) {
+        if (pendingEvictions.isEmpty()) {
+            return log;
+        }
+
+        List<TornTransactionLogRecord> ret = new ArrayList<>(log.size());
+        for (TornTransactionLogRecord record : log) {
+            if (!pendingEvictions.contains(record)) {
+                ret.add(record);
+            }
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * Waits for the submitted changes to be persisted and stops the background thread. Must not be used after that.
+     */
+    void close() {
+        ExecutorService e;
+        synchronized (this) {
+            isClosed = true;
+            e = executor;
+            executor = null;
+            last = null;
+        }
+
+        if (e == null) {
+            return;
+        }
+
+        e.shutdown();
+        try {
+            if (!e.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                logger.warn("Torn transaction log write-behind not terminated");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private ExecutorService getExecutor() {
+        if (isClosed) {
+            throw new IllegalStateException("Closed");
+        }
+
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "torn transaction log write-behind");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        return executor;
+    }
+}
@@ -0,0 +1,92 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.inject.Inject;
+
+import digital.paynetics.phos.kernel.common.emv.Outcome;
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+
+
+/**
+ * Latency histograms per {@link TransactionPhase}, tagged by kernel type and outcome type. Histograms are created on
+ * first use, after that recording does not allocate.
+ * <p>
+ * Thread-safe, one instance may be shared by several sessions (see {@link EntryPointSessionFactory}).
+ */
+public final class TransactionMetrics {
+    private static final KernelType[] KERNEL_TYPES = KernelType.values();
+    private static final Outcome.Type[] OUTCOME_TYPES = Outcome.Type.values();
+    private static final TransactionPhase[] PHASES = TransactionPhase.values();
+
+    // one extra slot for null
+    private static final int KERNEL_SLOTS = KERNEL_TYPES.length + 1;
+    private static final int OUTCOME_SLOTS = OUTCOME_TYPES.length + 1;
+
+    private final AtomicReferenceArray<LatencyHistogram> histograms =
+            new AtomicReferenceArray<>(PHASES.length * KERNEL_SLOTS * OUTCOME_SLOTS);
+
+
+    @Inject
+    public TransactionMetrics() {
+    }
+
+
+    /**
+     * @param kernelType  may be null
+     * @param outcomeType may be null
+     */
+    public void record(TransactionPhase phase, KernelType kernelType, Outcome.Type outcomeType, long micros) {
+        int i = index(phase, kernelType, outcomeType);
+        LatencyHistogram h = histograms.get(i);
+        if (h == null) {
+            histograms.compareAndSet(i, null, new LatencyHistogram());
+            h = histograms.get(i);
+        }
+
+        h.record(micros);
+    }
+
+
+    /**
+     * @return histogram or null if nothing is recorded for the combination
+     */
+    public LatencyHistogram get(TransactionPhase phase, KernelType kernelType, Outcome.Type outcomeType) {
+        return histograms.get(index(phase, kernelType, outcomeType));
+    }
+
+
+    public void report(MetricsReporter reporter) {
+        for (int i = 0; i < histograms.length(); i++) {
+            LatencyHistogram h = histograms.get(i);
+            if (h != null && h.getCount() > 0) {
+                int outcomeSlot = i % OUTCOME_SLOTS;
+                int kernelSlot = (i / OUTCOME_SLOTS) % KERNEL_SLOTS;
+                int phase = i / (OUTCOME_SLOTS * KERNEL_SLOTS);
+
+                reporter.report(PHASES[phase],
+                        kernelSlot > 0 ? KERNEL_TYPES[kernelSlot - 1] : null,
+                        outcomeSlot > 0 ? OUTCOME_TYPES[outcomeSlot - 1] : null,
+                        h);
+            }
+        }
+    }
+
+
+    public void reset() {
+        for (int i = 0; i < histograms.length(); i++) {
+            LatencyHistogram h = histograms.get(i);
+            if (h != null) {
+                h.reset();
+            }
+        }
+    }
+
+
+    private static int index(TransactionPhase phase, KernelType kernelType, Outcome.Type outcomeType) {
+        int kernelSlot = kernelType != null ? kernelType.ordinal() + 1 : 0;
+        int outcomeSlot = outcomeType != null ? outcomeType.ordinal() + 1 : 0;
+
+        return (phase.ordinal() * KERNEL_SLOTS + kernelSlot) * OUTCOME_SLOTS + outcomeSlot;
+    }
+}
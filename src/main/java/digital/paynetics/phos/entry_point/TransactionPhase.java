@@ -0,0 +1,37 @@
+package digital.paynetics.phos.entry_point;
+
+/**
+ * Phases of a transaction measured by {@link TransactionMetrics}
+ */
+public enum TransactionPhase {
+    /**
+     * Start A, pre-processing of the applications
+     */
+    PRE_PROCESSING,
+    /**
+     * From the tag detection to sending SELECT PPSE. Not measured when the selection is resumed, see
+     * {@link EntryPointImpl#setSelectionResume}.
+     */
+    TAG_TO_PPSE,
+    /**
+     * From SELECT PPSE to the final SELECT (the application to be processed by the kernel is selected). Not measured
+     * when the selection is resumed.
+     */
+    PPSE_TO_FINAL_SELECT,
+    /**
+     * Kernel processing, including the kernel APDUs
+     */
+    KERNEL_PROCESSING,
+    /**
+     * Waiting for the torn transaction log to be persisted before the outcome is reported
+     */
+    TORN_LOG_PERSISTENCE,
+    /**
+     * {@link digital.paynetics.phos.kernel.common.emv.entry_point.EntryPoint.Listener#onOutcome} call
+     */
+    OUTCOME_DISPATCH,
+    /**
+     * From the STOP signal (or the expiry of the tap time budget) to the outcome
+     */
+    CANCELLATION_TO_OUTCOME
+}
@@ -0,0 +1,34 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.TimeZone;
+
+import digital.paynetics.phos.kernel.common.misc.TransactionTimestamp;
+import hirondelle.date4j.DateTime;
+
+
+/**
+ * Reuses the transaction timestamp within the same wall-clock second. Transaction date and time given to the card
+ * have one second resolution, so the kernel gets the same value. Processing thread only.
+ */
+final class TransactionTimestampCache {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private long second = Long.MIN_VALUE;
+    private TransactionTimestamp timestamp;
+
+
+    TransactionTimestamp get(long wallClockMillis) {
+        long s = wallClockMillis / 1000;
+        if (timestamp == null || s != second) {
+            timestamp = create(wallClockMillis);
+            second = s;
+        }
+
+        return timestamp;
+    }
+
+
+    static TransactionTimestamp create(long wallClockMillis) {
+        return new TransactionTimestamp(DateTime.forInstant(wallClockMillis, UTC));
+    }
+}
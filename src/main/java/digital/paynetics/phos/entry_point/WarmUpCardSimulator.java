@@ -0,0 +1,35 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.List;
+
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.misc.Currency;
+import digital.paynetics.phos.kernel.common.nfc.transceiver.Transceiver;
+
+
+/**
+ * Source of the synthetic card sessions used to warm up the JIT
+ *
+ * @see EntryPointSessionFactory#warmUp
+ */
+public interface WarmUpCardSimulator {
+    /**
+     * @return kernel types to run synthetic transactions for
+     */
+    List<KernelType> getKernelTypes();
+
+    /**
+     * @return configuration with the applications of the simulated cards, must support purchase transactions
+     */
+    PosChangeableConfiguration getConfiguration();
+
+    int getAmount();
+
+    Currency getCurrency();
+
+    /**
+     * @return new in-process transceiver that answers like a card of <code>kernelType</code> during a complete
+     * transaction (selection and kernel processing)
+     */
+    Transceiver createTransceiver(KernelType kernelType);
+}
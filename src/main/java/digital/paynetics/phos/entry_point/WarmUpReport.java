@@ -0,0 +1,72 @@
+package digital.paynetics.phos.entry_point;
+
+/**
+ * Result of the JIT warm-up run by {@link EntryPointImpl#warmUp}
+ */
+public final class WarmUpReport {
+    private final int transactions;
+    private final long durationMillis;
+    private final long firstTransactionMillis;
+    private final long lastTransactionMillis;
+
+
+    WarmUpReport(final int transactions,
+                 final long durationMillis,
+                 final long firstTransactionMillis,
+                 final long lastTransactionMillis) {
+
+        this.transactions = transactions;
+        this.durationMillis = durationMillis;
+        this.firstTransactionMillis = firstTransactionMillis;
+        this.lastTransactionMillis = lastTransactionMillis;
+    }
+
+
+    /**
+     * @return number of synthetic transactions run
+     */
+    public int getTransactions() {
+        return transactions;
+    }
+
+
+    /**
+     * @return duration of the whole warm-up
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+
+    /**
+     * @return duration of the first synthetic transaction, i.e. the cold one
+     */
+    public long getFirstTransactionMillis() {
+        return firstTransactionMillis;
+    }
+
+
+    /**
+     * @return duration of the last synthetic transaction, i.e. the one closest to what the first real tap takes
+     */
+    public long getLastTransactionMillis() {
+        return lastTransactionMillis;
+    }
+
+
+    /**
+     * @return by how much the last synthetic transaction was faster than the first one
+     */
+    public long getImprovementMillis() {
+        return firstTransactionMillis - lastTransactionMillis;
+    }
+
+
+    @Override
+    public String toString() {
+        return "transactions: " + transactions +
+                ", duration: " + durationMillis + " ms" +
+                ", first: " + firstTransactionMillis + " ms" +
+                ", last: " + lastTransactionMillis + " ms";
+    }
+}
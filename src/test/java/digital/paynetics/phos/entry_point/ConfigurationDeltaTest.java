@@ -0,0 +1,108 @@
+package digital.paynetics.phos.entry_point;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+public class ConfigurationDeltaTest {
+    private static final String AID_0 = TestConfigurations.aid(0);
+    private static final String AID_1 = TestConfigurations.aid(1);
+    private static final String UNKNOWN_AID = TestConfigurations.aid(99);
+
+    private PosChangeableConfiguration configuration;
+
+
+    @Before
+    public void setUp() {
+        List<CardApplication> apps = new ArrayList<>();
+        List<CardAppConfiguration> cacs = new ArrayList<>();
+        for (String aid : Arrays.asList(AID_0, AID_1)) {
+            apps.add(TestConfigurations.cardApplication(aid, KernelType.MASTERCARD));
+            cacs.add(cardAppConfiguration(aid, TransactionType.PURCHASE));
+        }
+        configuration = new PosChangeableConfiguration(Collections.singletonList(TransactionType.PURCHASE), apps, cacs,
+                null, null);
+    }
+
+
+    @Test
+    public void removeApplicationWithItsConfiguration() throws InvalidConfigurationException {
+        PosChangeableConfiguration updated = configuration.apply(new ConfigurationDelta.Builder()
+                .removeApplication(AID_1)
+                .removeAppConfiguration(AID_1, TransactionType.PURCHASE)
+                .build());
+
+        assertEquals(1, updated.getCardApplications().size());
+        assertEquals(AID_0, updated.getCardApplications().get(0).applicationId);
+        assertEquals(1, updated.getAppConfigurations(TransactionType.PURCHASE).size());
+        assertEquals(2, configuration.getCardApplications().size());
+    }
+
+
+    @Test
+    public void unknownRemovalsAreRejected() {
+        assertViolations(new ConfigurationDelta.Builder()
+                        .removeApplication(UNKNOWN_AID)
+                        .removeAppConfiguration(UNKNOWN_AID, TransactionType.PURCHASE)
+                        .build(),
+                ConfigurationViolation.Kind.NO_SUCH_APPLICATION,
+                ConfigurationViolation.Kind.NO_SUCH_APPLICATION_CONFIGURATION);
+    }
+
+
+    @Test
+    public void removedApplicationKeepsConfiguration() {
+        assertViolations(new ConfigurationDelta.Builder()
+                        .removeApplication(AID_1)
+                        .build(),
+                ConfigurationViolation.Kind.UNKNOWN_APPLICATION);
+    }
+
+
+    @Test
+    public void putConfigurationIsValidated() {
+        TransactionType unsupported = TransactionType.values()[0] != TransactionType.PURCHASE ?
+                TransactionType.values()[0] :
+                TransactionType.values()[1];
+
+        assertViolations(new ConfigurationDelta.Builder()
+                        .putAppConfiguration(cardAppConfiguration(UNKNOWN_AID, TransactionType.PURCHASE))
+                        .putAppConfiguration(cardAppConfiguration(AID_0, unsupported))
+                        .build(),
+                ConfigurationViolation.Kind.UNKNOWN_APPLICATION,
+                ConfigurationViolation.Kind.UNSUPPORTED_TRANSACTION_TYPE);
+    }
+
+
+    private void assertViolations(ConfigurationDelta delta, ConfigurationViolation.Kind... expected) {
+        try {
+            configuration.apply(delta);
+            fail("Applied: " + delta);
+        } catch (InvalidConfigurationException e) {
+            List<ConfigurationViolation.Kind> kinds = new ArrayList<>();
+            for (ConfigurationViolation v : e.getViolations()) {
+                kinds.add(v.getKind());
+            }
+            assertEquals(Arrays.asList(expected), kinds);
+        }
+    }
+
+
+    private static CardAppConfiguration cardAppConfiguration(String aid, TransactionType transactionType) {
+        return TestConfigurations.cardAppConfiguration(aid, transactionType,
+                TestConfigurations.entryPointTlvs(5000, 0, 3000));
+    }
+}
@@ -0,0 +1,60 @@
+package digital.paynetics.phos.entry_point;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class ConfigurationFingerprintTest {
+    @Test
+    public void sameContentDifferentInstances() {
+        assertTrue(ConfigurationFingerprint.isSame(
+                ConfigurationFingerprint.computeOf(new Keys("A000000004", 1, 2), null),
+                ConfigurationFingerprint.computeOf(new Keys("A000000004", 1, 2), null)));
+    }
+
+
+    @Test
+    public void differentContent() {
+        byte[] fp = ConfigurationFingerprint.computeOf(new Keys("A000000004", 1, 2), null);
+
+        assertFalse(ConfigurationFingerprint.isSame(fp,
+                ConfigurationFingerprint.computeOf(new Keys("A000000004", 1, 3), null)));
+        assertFalse(ConfigurationFingerprint.isSame(fp,
+                ConfigurationFingerprint.computeOf(new Keys("A000000003", 1, 2), null)));
+        assertFalse(ConfigurationFingerprint.isSame(fp,
+                ConfigurationFingerprint.computeOf(null, new Keys("A000000004", 1, 2))));
+        assertFalse(ConfigurationFingerprint.isSame(fp,
+                ConfigurationFingerprint.computeOf(Arrays.asList("A000000004", 1, 2), null)));
+    }
+
+
+    @Test
+    public void notSerializableIsNeverSame() {
+        byte[] fp = ConfigurationFingerprint.computeOf(new Unserializable());
+
+        assertFalse(ConfigurationFingerprint.isSame(fp, fp));
+        assertFalse(ConfigurationFingerprint.isSame(fp, ConfigurationFingerprint.computeOf(new Unserializable())));
+    }
+
+
+    private static class Keys {
+        private final String rid;
+        private final int[] indexes;
+
+
+        Keys(String rid, int... indexes) {
+            this.rid = rid;
+            this.indexes = indexes;
+        }
+    }
+
+
+    private static class Unserializable {
+        // Gson refuses NaN by default
+        private final double value = Double.NaN;
+    }
+}
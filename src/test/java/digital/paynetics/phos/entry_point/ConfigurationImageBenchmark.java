@@ -0,0 +1,79 @@
+package digital.paynetics.phos.entry_point;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+
+
+/**
+ * Compiling the application configurations from their TLVs against compiling them from a configuration image (in
+ * memory and memory-mapped from a file). Loading the {@link PosChangeableConfiguration} itself is the same work on both
+ * paths and is not measured.
+ */
+public final class ConfigurationImageBenchmark {
+    private static final List<TransactionType> TRANSACTION_TYPES = Arrays.asList(TransactionType.values());
+
+
+    private ConfigurationImageBenchmark() {
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        for (int aids : new int[]{10, 100, 1000}) {
+            final PosChangeableConfiguration conf = createConfiguration(aids);
+            final List<CardAppConfiguration> cacs = conf.getCardAppConfigurations();
+            final CardApplicationIndex index = conf.getCardApplicationIndex();
+            final ByteBuffer image = ConfigurationImage.toImage(cacs);
+            File file = File.createTempFile("configuration", ".img");
+            try {
+                ConfigurationImage.write(conf, file);
+                final File imageFile = file;
+                String suffix = ", " + cacs.size() + " configurations";
+
+                Microbench.run("compile from TLVs" + suffix, 3, 5, 20, new Microbench.Op() {
+                    @Override
+                    public Object run(int i) {
+                        return CompiledAppConfigurations.compile(index, cacs, null);
+                    }
+                });
+                Microbench.run("compile from image" + suffix, 3, 5, 20, new Microbench.Op() {
+                    @Override
+                    public Object run(int i) throws Exception {
+                        return CompiledAppConfigurations.compile(index, cacs, ConfigurationImage.wrap(image));
+                    }
+                });
+                Microbench.run("map image file and compile" + suffix, 3, 5, 20, new Microbench.Op() {
+                    @Override
+                    public Object run(int i) throws Exception {
+                        return CompiledAppConfigurations.compile(index, cacs, ConfigurationImage.map(imageFile));
+                    }
+                });
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+
+    private static PosChangeableConfiguration createConfiguration(int aids) {
+        List<CardApplication> apps = new ArrayList<>();
+        List<CardAppConfiguration> cacs = new ArrayList<>();
+        for (int i = 0; i < aids; i++) {
+            String aid = TestConfigurations.aid(i);
+            apps.add(TestConfigurations.cardApplication(aid, i % 2 == 0 ? KernelType.MASTERCARD : KernelType.VISA));
+            for (TransactionType type : TRANSACTION_TYPES) {
+                cacs.add(TestConfigurations.cardAppConfiguration(aid, type,
+                        TestConfigurations.entryPointTlvs(5000 + i, 0, 3000)));
+            }
+        }
+
+        return new PosChangeableConfiguration(TRANSACTION_TYPES, apps, cacs, null, null);
+    }
+}
@@ -0,0 +1,98 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.emv.tag.Tlv;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+
+
+/**
+ * Validation of configurations with thousands of AID/transaction type combinations, valid ones and ones where every
+ * tenth configuration refers to an unknown application, against the previous list-based check that stopped at the
+ * first violation
+ */
+public final class ConfigurationValidatorBenchmark {
+    private static final List<TransactionType> TRANSACTION_TYPES = Arrays.asList(TransactionType.values());
+    // supported types except the last one, the list-based check walks the whole list for it
+    private static final List<TransactionType> SUPPORTED_TYPES =
+            TRANSACTION_TYPES.subList(0, TRANSACTION_TYPES.size() - 1);
+
+
+    private ConfigurationValidatorBenchmark() {
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        for (int aids : new int[]{250, 1000, 5000}) {
+            final List<CardApplication> apps = new ArrayList<>();
+            final List<CardAppConfiguration> valid = new ArrayList<>();
+            final List<CardAppConfiguration> invalid = new ArrayList<>();
+            List<Tlv> tlvs = TestConfigurations.entryPointTlvs(5000, 0, 3000);
+            for (int i = 0; i < aids; i++) {
+                String aid = TestConfigurations.aid(i);
+                apps.add(TestConfigurations.cardApplication(aid, KernelType.MASTERCARD));
+                for (TransactionType type : SUPPORTED_TYPES) {
+                    valid.add(TestConfigurations.cardAppConfiguration(aid, type, tlvs));
+                    invalid.add(TestConfigurations.cardAppConfiguration(i % 10 == 0 ? "F" + aid : aid, type, tlvs));
+                }
+            }
+            String suffix = ", " + valid.size() + " combinations";
+
+            Microbench.run("list-based check, valid" + suffix, 3, 5, 20, new Microbench.Op() {
+                @Override
+                public Object run(int i) {
+                    return listBasedCheck(SUPPORTED_TYPES, apps, valid);
+                }
+            });
+            Microbench.run("ConfigurationValidator, valid" + suffix, 3, 5, 20, new Microbench.Op() {
+                @Override
+                public Object run(int i) {
+                    return ConfigurationValidator.check(SUPPORTED_TYPES, apps, valid);
+                }
+            });
+            Microbench.run("ConfigurationValidator, all violations" + suffix, 3, 5, 20, new Microbench.Op() {
+                @Override
+                public Object run(int i) {
+                    return ConfigurationValidator.check(SUPPORTED_TYPES, apps, invalid);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * The check used before {@link ConfigurationValidator}
+     */
+    private static boolean listBasedCheck(List<TransactionType> supportedTransactionTypes,
+                                          List<CardApplication> cardApplications,
+                                          List<CardAppConfiguration> cardAppConfigurations) {
+
+        final Set<String> caIds = new HashSet<>();
+        for (final CardApplication ca : cardApplications) {
+            if (caIds.contains(ca.applicationId)) {
+                return false;
+            }
+
+            caIds.add(ca.applicationId);
+        }
+
+        for (final CardAppConfiguration cac : cardAppConfigurations) {
+            if (!supportedTransactionTypes.contains(cac.getTransactionType())) {
+                return false;
+            }
+
+            if (!caIds.contains(cac.getApplicationId())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
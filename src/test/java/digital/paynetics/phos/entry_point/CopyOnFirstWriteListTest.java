@@ -0,0 +1,96 @@
+package digital.paynetics.phos.entry_point;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+public class CopyOnFirstWriteListTest {
+    private final Object a = new Object();
+    private final Object b = new Object();
+    private final Object c = new Object();
+    private final Object d = new Object();
+
+
+    @Test
+    public void notModified() {
+        List<Object> base = new ArrayList<>(Arrays.asList(a, b, c));
+        CopyOnFirstWriteList<Object> list = new CopyOnFirstWriteList<>();
+        list.reset(base);
+
+        assertEquals(3, list.size());
+        assertSame(b, list.get(1));
+        assertSame(base, list.getCurrent());
+        assertEquals(Collections.emptyList(), list.getAdded());
+        assertEquals(Collections.emptyList(), list.getRemoved());
+    }
+
+
+    @Test
+    public void modificationsAreTracked() {
+        List<Object> base = new ArrayList<>(Arrays.asList(a, b, c));
+        CopyOnFirstWriteList<Object> list = new CopyOnFirstWriteList<>();
+        list.reset(base);
+
+        list.remove(0);
+        list.add(d);
+        // moved, neither added nor removed
+        list.remove(b);
+        list.add(b);
+
+        assertEquals(Arrays.asList(a, b, c), base);
+        assertEquals(Arrays.asList(c, d, b), list.getCurrent());
+        assertEquals(Collections.singletonList(d), list.getAdded());
+        assertEquals(Collections.singletonList(a), list.getRemoved());
+    }
+
+
+    @Test
+    public void addedAndRemovedIsNoChange() {
+        CopyOnFirstWriteList<Object> list = new CopyOnFirstWriteList<>();
+        list.reset(new ArrayList<>(Arrays.asList(a, b)));
+
+        list.add(c);
+        list.set(2, d);
+        list.remove(d);
+
+        assertEquals(Collections.emptyList(), list.getAdded());
+        assertEquals(Collections.emptyList(), list.getRemoved());
+    }
+
+
+    @Test
+    public void clear() {
+        List<Object> base = new ArrayList<>(Arrays.asList(a, b));
+        CopyOnFirstWriteList<Object> list = new CopyOnFirstWriteList<>();
+        list.reset(base);
+
+        list.clear();
+
+        assertEquals(2, base.size());
+        assertEquals(0, list.size());
+        assertEquals(2, list.getRemoved().size());
+    }
+
+
+    @Test
+    public void resetDropsTheChanges() {
+        CopyOnFirstWriteList<Object> list = new CopyOnFirstWriteList<>();
+        list.reset(new ArrayList<>(Arrays.asList(a, b)));
+        list.add(c);
+        List<Object> modified = list.getCurrent();
+
+        List<Object> next = new ArrayList<>(Collections.singletonList(d));
+        list.reset(next);
+
+        assertEquals(Arrays.asList(a, b, c), modified);
+        assertSame(next, list.getCurrent());
+        assertEquals(Collections.emptyList(), list.getAdded());
+    }
+}
@@ -0,0 +1,378 @@
+package digital.paynetics.phos.entry_point;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import digital.paynetics.phos.entry_point.EntryPointStateMachine.State;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class EntryPointStateMachineTest {
+    private static final int TAGS_PER_THREAD = 20000;
+
+    private final List<FakeTag> closedTags = new ArrayList<>();
+    private EntryPointStateMachine<FakeTag, FakeKernel> machine;
+
+
+    @Before
+    public void setUp() {
+        machine = new EntryPointStateMachine<>(new EntryPointStateMachine.StopHandler<FakeTag, FakeKernel>() {
+            @Override
+            public void close(FakeTag tag) {
+                tag.closes.incrementAndGet();
+                synchronized (closedTags) {
+                    closedTags.add(tag);
+                }
+            }
+
+
+            @Override
+            public boolean stop(FakeKernel kernel) {
+                kernel.stops.incrementAndGet();
+                return kernel.acceptsStop;
+            }
+        });
+        machine.transition(State.IDLE, State.PRE_PROCESSING);
+        machine.transition(State.PRE_PROCESSING, State.WAITING_FOR_TAG);
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void transitionFromOtherState() {
+        machine.transition(State.SELECTION, State.KERNEL_PROCESSING);
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void transitionNotInTable() {
+        machine.tryTransition(State.WAITING_FOR_TAG, State.ENDED);
+    }
+
+
+    @Test
+    public void stopIgnoredWhileWaitingForTag() {
+        machine.stop(CancellationToken.Reason.STOP_SIGNAL, EntryPointStateMachine.ANY_SESSION);
+
+        assertFalse(machine.isStopRequested(machine.getSession()));
+    }
+
+
+    @Test
+    public void stopDuringSelectionClosesTag() {
+        final FakeTag tag = new FakeTag();
+        machine.offerTag(tag);
+        machine.processTags(new EntryPointStateMachine.TagProcessor<FakeTag>() {
+            @Override
+            public void process(FakeTag t, long session) {
+                machine.stop(CancellationToken.Reason.STOP_SIGNAL, EntryPointStateMachine.ANY_SESSION);
+
+                assertEquals(1, t.closes.get());
+                assertTrue(machine.isStopAccepted(session));
+                machine.transition(State.SELECTION, State.ENDED);
+            }
+        });
+
+        assertEquals(State.ENDED, machine.getState());
+    }
+
+
+    @Test
+    public void stopDeliveredToKernelPublishedLater() {
+        final FakeKernel kernel = new FakeKernel(true);
+        machine.offerTag(new FakeTag());
+        machine.processTags(new EntryPointStateMachine.TagProcessor<FakeTag>() {
+            @Override
+            public void process(FakeTag t, long session) {
+                machine.transition(State.SELECTION, State.KERNEL_PROCESSING);
+                machine.stop(CancellationToken.Reason.STOP_SIGNAL, EntryPointStateMachine.ANY_SESSION);
+                assertFalse(machine.isStopAccepted(session));
+
+                machine.publishKernel(session, kernel);
+
+                assertEquals(1, kernel.stops.get());
+                assertTrue(machine.isStopAccepted(session));
+                assertEquals(0, t.closes.get());
+                machine.transition(State.KERNEL_PROCESSING, State.ENDED);
+            }
+        });
+    }
+
+
+    @Test
+    public void refusedStopDoesNotLeakIntoNextSession() {
+        final List<Long> sessions = new ArrayList<>();
+        EntryPointStateMachine.TagProcessor<FakeTag> processor = new EntryPointStateMachine.TagProcessor<FakeTag>() {
+            @Override
+            public void process(FakeTag t, long session) {
+                sessions.add(session);
+                machine.transition(State.SELECTION, State.KERNEL_PROCESSING);
+                machine.publishKernel(session, new FakeKernel(false));
+                if (sessions.size() == 1) {
+                    machine.stop(CancellationToken.Reason.STOP_SIGNAL, EntryPointStateMachine.ANY_SESSION);
+                    assertTrue(machine.isStopRequested(session));
+                    assertFalse(machine.isStopAccepted(session));
+                }
+                machine.transition(State.KERNEL_PROCESSING, State.WAITING_FOR_TAG);
+            }
+        };
+
+        FakeTag first = new FakeTag();
+        FakeTag second = new FakeTag();
+        machine.offerTag(first);
+        machine.processTags(processor);
+        machine.offerTag(second);
+        machine.processTags(processor);
+
+        assertEquals(2, sessions.size());
+        assertNotNull(machine.getCancellation(sessions.get(0)));
+        assertNull(machine.getCancellation(sessions.get(1)));
+        assertFalse(machine.isStopRequested(sessions.get(1)));
+        assertEquals(0, second.closes.get());
+    }
+
+
+    @Test
+    public void tapTimeBudgetIsPerSession() {
+        final List<Long> sessions = new ArrayList<>();
+        EntryPointStateMachine.TagProcessor<FakeTag> processor = new EntryPointStateMachine.TagProcessor<FakeTag>() {
+            @Override
+            public void process(FakeTag t, long session) {
+                sessions.add(session);
+                if (sessions.size() == 1) {
+                    machine.stop(CancellationToken.Reason.TAP_TIME_BUDGET_EXCEEDED, session);
+                } else {
+                    // a late watchdog of the first session
+                    machine.stop(CancellationToken.Reason.TAP_TIME_BUDGET_EXCEEDED, sessions.get(0));
+                }
+                machine.transition(State.SELECTION, State.WAITING_FOR_TAG);
+            }
+        };
+
+        FakeTag second = new FakeTag();
+        machine.offerTag(new FakeTag());
+        machine.processTags(processor);
+        machine.offerTag(second);
+        machine.processTags(processor);
+
+        assertTrue(machine.isTapTimeBudgetExceeded(sessions.get(0)));
+        assertEquals(CancellationToken.Reason.TAP_TIME_BUDGET_EXCEEDED,
+                machine.getCancellation(sessions.get(0)).getReason());
+        assertFalse(machine.isTapTimeBudgetExceeded(sessions.get(1)));
+        assertEquals(0, second.closes.get());
+    }
+
+
+    @Test
+    public void tagOfferedDuringProcessingIsNotLost() throws InterruptedException {
+        final CountDownLatch processing = new CountDownLatch(1);
+        final CountDownLatch offered = new CountDownLatch(1);
+        final List<FakeTag> processed = new ArrayList<>();
+        final EntryPointStateMachine.TagProcessor<FakeTag> processor =
+                new EntryPointStateMachine.TagProcessor<FakeTag>() {
+                    @Override
+                    public void process(FakeTag t, long session) {
+                        processed.add(t);
+                        processing.countDown();
+                        try {
+                            offered.await();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        machine.transition(State.SELECTION, State.WAITING_FOR_TAG);
+                    }
+                };
+
+        FakeTag first = new FakeTag();
+        FakeTag second = new FakeTag();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                machine.processTags(processor);
+            }
+        });
+        machine.offerTag(first);
+        t.start();
+        processing.await();
+        machine.offerTag(second);
+        machine.processTags(processor); // postponed, the processing thread takes it
+        offered.countDown();
+        t.join();
+
+        assertEquals(2, processed.size());
+        assertEquals(second, processed.get(1));
+        assertEquals(State.WAITING_FOR_TAG, machine.getState());
+    }
+
+
+    /**
+     * Two NFC threads offering tags and processing them against a thread giving the STOP signal
+     */
+    @Test
+    public void stopSignalVsOnNfcTag() throws InterruptedException {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicReference<String> error = new AtomicReference<>();
+        final List<FakeKernel> kernels = new ArrayList<>(); // processing thread only (one at a time)
+        final List<FakeTag> processed = new ArrayList<>();
+        final BitSet stopRequested = new BitSet(); // sessions with a recorded stop, seen by their processing
+        final EntryPointStateMachine.TagProcessor<FakeTag> processor =
+                new EntryPointStateMachine.TagProcessor<FakeTag>() {
+                    @Override
+                    public void process(FakeTag t, long session) {
+                        if (active.incrementAndGet() != 1) {
+                            error.compareAndSet(null, "Concurrent sessions");
+                        }
+                        t.session = session;
+                        processed.add(t);
+
+                        FakeKernel kernel = null;
+                        if (session % 3 != 0) {
+                            machine.transition(State.SELECTION, State.KERNEL_PROCESSING);
+                            kernel = new FakeKernel(session % 2 == 0);
+                            kernels.add(kernel);
+                            machine.publishKernel(session, kernel);
+                            Thread.yield();
+                        } else {
+                            Thread.yield();
+                        }
+
+                        if (machine.isStopRequested(session)) {
+                            stopRequested.set((int) session);
+                            // the stopper may have recorded the signal but not delivered it yet
+                            if (kernel != null && awaitStop(kernel) != 1) {
+                                error.compareAndSet(null, "STOP signal not delivered in session " + session);
+                            }
+                        }
+
+                        active.decrementAndGet();
+                        machine.transition(kernel != null ? State.KERNEL_PROCESSING : State.SELECTION,
+                                State.WAITING_FOR_TAG);
+                    }
+                };
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        final BitSet stopSessions = new BitSet(); // sessions a stop() call may have hit
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                await(start);
+                while (!done.get()) {
+                    long before = machine.getSession();
+                    machine.stop(CancellationToken.Reason.STOP_SIGNAL, EntryPointStateMachine.ANY_SESSION);
+                    long after = machine.getSession();
+                    stopSessions.set((int) before, (int) after + 1);
+                    for (int i = 0; i < 50; i++) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        List<Thread> nfcThreads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            nfcThreads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int j = 0; j < TAGS_PER_THREAD; j++) {
+                        machine.offerTag(new FakeTag());
+                        machine.processTags(processor);
+                    }
+                }
+            }));
+        }
+
+        stopper.start();
+        for (Thread t : nfcThreads) {
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : nfcThreads) {
+            t.join(TimeUnit.MINUTES.toMillis(1));
+        }
+        done.set(true);
+        stopper.join();
+
+        assertNull(error.get(), error.get());
+        assertEquals(State.WAITING_FOR_TAG, machine.getState());
+
+        // whatever is left in the slot is processed, nothing more
+        int before = processed.size();
+        machine.processTags(processor);
+        assertTrue(processed.size() - before <= 1);
+        machine.offerTag(new FakeTag());
+        machine.processTags(processor);
+        assertEquals(State.WAITING_FOR_TAG, machine.getState());
+
+        for (FakeTag t : closedTags) {
+            assertTrue("Tag closed by a STOP signal of another session: " + t.session,
+                    stopSessions.get((int) t.session));
+            if (t.closes.get() > 1) {
+                fail("Tag closed " + t.closes.get() + " times");
+            }
+        }
+        for (FakeTag t : processed) {
+            if (stopRequested.get((int) t.session) && !stopSessions.get((int) t.session)) {
+                fail("STOP signal leaked into session " + t.session);
+            }
+        }
+        for (FakeKernel k : kernels) {
+            assertTrue(k.stops.get() <= 1);
+        }
+        assertTrue(processed.size() > 1);
+        assertFalse(closedTags.isEmpty());
+    }
+
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static class FakeTag {
+        final AtomicInteger closes = new AtomicInteger();
+        volatile long session = -1;
+    }
+
+
+    /**
+     * @return number of STOP signals delivered to <code>kernel</code>, waits a while for the first one
+     */
+    private static int awaitStop(FakeKernel kernel) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (kernel.stops.get() == 0 && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+
+        return kernel.stops.get();
+    }
+
+
+    private static class FakeKernel {
+        final AtomicInteger stops = new AtomicInteger();
+        final boolean acceptsStop;
+
+
+        FakeKernel(boolean acceptsStop) {
+            this.acceptsStop = acceptsStop;
+        }
+    }
+}
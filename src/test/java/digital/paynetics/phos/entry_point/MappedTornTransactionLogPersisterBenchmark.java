@@ -0,0 +1,156 @@
+package digital.paynetics.phos.entry_point;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+
+/**
+ * One tap as seen by the persister (a record added, the oldest removed) for the mapped persister and for a naive one
+ * that rewrites the whole log, for several log sizes
+ */
+public final class MappedTornTransactionLogPersisterBenchmark {
+    private MappedTornTransactionLogPersisterBenchmark() {
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        TornTransactionLogRecordCodec codec = new GsonTornTransactionLogRecordCodec();
+        for (int size : new int[]{10, 100, 1000}) {
+            File dir = createTempDir();
+            try {
+                final MappedTornTransactionLogPersister mapped =
+                        new MappedTornTransactionLogPersister(new File(dir, "mapped.log"), codec);
+                try {
+                    Microbench.run("mapped, log size " + size, 3, 5, 200, tap(mapped, size));
+                } finally {
+                    mapped.close();
+                }
+
+                FullRewritePersister naive = new FullRewritePersister(new File(dir, "naive.log"), codec);
+                Microbench.run("full rewrite, log size " + size, 3, 5, 200, tap(naive, size));
+            } finally {
+                for (File f : dir.listFiles()) {
+                    f.delete();
+                }
+                dir.delete();
+            }
+        }
+    }
+
+
+    private static Microbench.Op tap(final TornTransactionLogPersister persister, int size) {
+        final List<TornTransactionLogRecord> log = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            log.add(newRecord());
+        }
+        persister.save(log);
+
+        return new Microbench.Op() {
+            @Override
+            public Object run(int i) {
+                List<TornTransactionLogRecord> current = persister.load();
+                List<TornTransactionLogRecord> next = new ArrayList<>(current.subList(1, current.size()));
+                next.add(newRecord());
+                persister.save(next);
+
+                return next;
+            }
+        };
+    }
+
+
+    private static TornTransactionLogRecord newRecord() {
+        return TestStubs.stub(TornTransactionLogRecord.class);
+    }
+
+
+    private static File createTempDir() throws IOException {
+        File ret = File.createTempFile("torn", "bench");
+        if (!ret.delete() || !ret.mkdir()) {
+            throw new IOException("Cannot create " + ret);
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * Reads and rewrites the whole log on each load/save, as the persisters before the mapped one did
+     */
+    private static final class FullRewritePersister implements TornTransactionLogPersister {
+        private final File file;
+        private final TornTransactionLogRecordCodec codec;
+
+
+        FullRewritePersister(File file, TornTransactionLogRecordCodec codec) {
+            this.file = file;
+            this.codec = codec;
+        }
+
+
+        @Override
+        public List<TornTransactionLogRecord> load() {
+            List<TornTransactionLogRecord> ret = new ArrayList<>();
+            if (!file.exists()) {
+                return ret;
+            }
+
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        byte[] data = new byte[in.readInt()];
+                        in.readFully(data);
+                        ret.add(codec.decode(data));
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            return ret;
+        }
+
+
+        @Override
+        public void save(List<TornTransactionLogRecord> logRecords) {
+            try {
+                FileOutputStream fos = new FileOutputStream(file);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                try {
+                    out.writeInt(logRecords.size());
+                    for (TornTransactionLogRecord record : logRecords) {
+                        byte[] data = codec.encode(record);
+                        out.writeInt(data.length);
+                        out.write(data);
+                    }
+                    out.flush();
+                    fos.getFD().sync();
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+
+        @Override
+        public void clear() {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package digital.paynetics.phos.entry_point;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Includes crash injection: the file is damaged the way an interrupted write or compaction leaves it and then
+ * reopened
+ */
+public class MappedTornTransactionLogPersisterTest {
+    private static final int BODY_HEADER_SIZE = 1 + 8 + 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final IdCodec codec = new IdCodec();
+    private File file;
+    private MappedTornTransactionLogPersister persister;
+
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "torn.log");
+        persister = new MappedTornTransactionLogPersister(file, codec);
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        persister.close();
+    }
+
+
+    @Test
+    public void reload() throws IOException {
+        TornTransactionLogRecord a = codec.record(1);
+        TornTransactionLogRecord b = codec.record(2);
+        TornTransactionLogRecord c = codec.record(3);
+        persister.save(Arrays.asList(a, b, c));
+        persister.save(Arrays.asList(a, c));
+
+        assertEquals(Arrays.asList(1, 3), reopen());
+    }
+
+
+    @Test
+    public void saveWritesOnlyChanges() {
+        List<TornTransactionLogRecord> log = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            log.add(codec.record(i));
+        }
+        persister.save(log);
+        int used = persister.getUsedBytes();
+
+        log.add(codec.record(100));
+        persister.save(log);
+
+        assertEquals(opSize(true), persister.getUsedBytes() - used);
+    }
+
+
+    @Test
+    public void lengthNotWritten() throws IOException {
+        TornTransactionLogRecord a = codec.record(1);
+        persister.save(Collections.singletonList(a));
+        int lastOp = persister.getUsedBytes();
+        persister.save(Arrays.asList(a, codec.record(2)));
+        persister.close();
+
+        // the length is written last, a crash before it leaves the terminating zero
+        writeInt(lastOp, 0);
+
+        assertEquals(Collections.singletonList(1), reopen());
+        appendAndCheck(Arrays.asList(1, 3));
+    }
+
+
+    @Test
+    public void truncatedTail() throws IOException {
+        TornTransactionLogRecord a = codec.record(1);
+        persister.save(Collections.singletonList(a));
+        int lastOp = persister.getUsedBytes();
+        persister.save(Arrays.asList(a, codec.record(2)));
+        persister.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(lastOp + 10);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(Collections.singletonList(1), reopen());
+        appendAndCheck(Arrays.asList(1, 3));
+    }
+
+
+    @Test
+    public void badChecksum() throws IOException {
+        TornTransactionLogRecord a = codec.record(1);
+        persister.save(Collections.singletonList(a));
+        int lastOp = persister.getUsedBytes();
+        persister.save(Arrays.asList(a, codec.record(2), codec.record(4)));
+        persister.close();
+
+        // torn write inside the body of the second operation, the following ones are dropped too
+        writeInt(lastOp + 4 + BODY_HEADER_SIZE, 0x7fffffff);
+
+        assertEquals(Collections.singletonList(1), reopen());
+        appendAndCheck(Arrays.asList(1, 3));
+    }
+
+
+    @Test
+    public void notATornLog() throws IOException {
+        persister.save(Collections.singletonList(codec.record(1)));
+        persister.close();
+        writeInt(0, 0x12345678);
+
+        assertEquals(Collections.<Integer>emptyList(), reopen());
+        appendAndCheck(Collections.singletonList(3));
+    }
+
+
+    @Test
+    public void crashDuringCompactionBeforeRename() throws IOException {
+        persister.save(Arrays.asList(codec.record(1), codec.record(2)));
+        persister.close();
+
+        // partially written compacted file
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.write(new byte[]{0x50, 0x54, 0x54, 0x4c, 0, 1, 0, 0, 0, 0, 0, 100});
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(Arrays.asList(1, 2), reopen());
+        assertFalse(tmp.exists());
+    }
+
+
+    @Test
+    public void reopenAfterCompaction() throws IOException {
+        TornTransactionLogRecord kept = codec.record(1);
+        int maxUsed = saveUntilCompacted(kept);
+
+        // the same file a crash right after the rename of the compacted file leaves
+        assertEquals(Collections.singletonList(1), reopen());
+        assertTrue(persister.getUsedBytes() < maxUsed);
+        appendAndCheck(Arrays.asList(1, 3));
+    }
+
+
+    @Test
+    public void staleCompactedFileIsNotRecovered() throws IOException {
+        // left by an earlier compaction whose rename failed
+        MappedTornTransactionLogPersister stale =
+                new MappedTornTransactionLogPersister(new File(file.getPath() + ".tmp"), codec);
+        try {
+            stale.save(Arrays.asList(codec.record(7), codec.record(8)));
+        } finally {
+            stale.close();
+        }
+
+        saveUntilCompacted(codec.record(1));
+
+        assertEquals(Collections.singletonList(1), reopen());
+    }
+
+
+    /**
+     * Each round leaves an ADD and a REMOVE behind, until the compaction shrinks the file
+     *
+     * @return the most bytes used before the compaction
+     */
+    private int saveUntilCompacted(TornTransactionLogRecord kept) {
+        int deadOps = 0;
+        int maxUsed = 0;
+        for (int i = 10; persister.getUsedBytes() >= maxUsed; i++) {
+            maxUsed = persister.getUsedBytes();
+            persister.save(Arrays.asList(kept, codec.record(i)));
+            persister.save(Collections.singletonList(kept));
+            deadOps += 2;
+        }
+        assertTrue(deadOps > 100);
+
+        return maxUsed;
+    }
+
+
+    @Test
+    public void expireOlderThan() throws IOException {
+        TornTransactionLogRecord old = codec.record(1);
+        persister.save(Collections.singletonList(old));
+        long persistedAt = persister.getPersistedAt(old);
+
+        assertEquals(0, persister.expireOlderThan(persistedAt));
+        assertEquals(1, persister.expireOlderThan(persistedAt + 1));
+        assertEquals(Collections.<Integer>emptyList(), reopen());
+    }
+
+
+    @Test
+    public void gsonCodec() throws IOException {
+        File gsonFile = new File(folder.getRoot(), "gson.log");
+        MappedTornTransactionLogPersister p = new MappedTornTransactionLogPersister(gsonFile);
+        try {
+            p.save(Arrays.asList(codec.record(1), codec.record(2)));
+        } finally {
+            p.close();
+        }
+
+        p = new MappedTornTransactionLogPersister(gsonFile);
+        try {
+            assertEquals(2, p.load().size());
+        } finally {
+            p.close();
+        }
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void gsonCodecInvalidData() {
+        new GsonTornTransactionLogRecordCodec().decode("{\"".getBytes());
+    }
+
+
+    /**
+     * @return ids of the records loaded after reopening the file
+     */
+    private List<Integer> reopen() throws IOException {
+        persister.close();
+        persister = new MappedTornTransactionLogPersister(file, codec);
+
+        return codec.ids(persister.load());
+    }
+
+
+    /**
+     * Appends record 3 to the recovered log and checks it survives another reopen
+     */
+    private void appendAndCheck(List<Integer> expected) throws IOException {
+        List<TornTransactionLogRecord> log = new ArrayList<>(persister.load());
+        log.add(codec.record(3));
+        persister.save(log);
+
+        assertEquals(expected, reopen());
+    }
+
+
+    private void writeInt(int pos, int value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(pos);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    private static int opSize(boolean add) {
+        return 4 + BODY_HEADER_SIZE + (add ? 4 : 0) + 4;
+    }
+
+
+    /**
+     * Encodes a record as its id (4 bytes), the records themselves are empty
+     */
+    private static class IdCodec implements TornTransactionLogRecordCodec {
+        private final Map<TornTransactionLogRecord, Integer> ids = new IdentityHashMap<>();
+
+
+        synchronized TornTransactionLogRecord record(int id) {
+            TornTransactionLogRecord ret = TestStubs.stub(TornTransactionLogRecord.class);
+            ids.put(ret, id);
+
+            return ret;
+        }
+
+
+        synchronized List<Integer> ids(List<TornTransactionLogRecord> records) {
+            List<Integer> ret = new ArrayList<>();
+            for (TornTransactionLogRecord r : records) {
+                ret.add(ids.get(r));
+            }
+
+            return ret;
+        }
+
+
+        @Override
+        public synchronized byte[] encode(TornTransactionLogRecord record) {
+            return ByteBuffer.allocate(4).putInt(ids.get(record)).array();
+        }
+
+
+        @Override
+        public TornTransactionLogRecord decode(byte[] data) {
+            if (data.length != 4) {
+                throw new IllegalArgumentException("Invalid length: " + data.length);
+            }
+
+            return record(ByteBuffer.wrap(data).getInt());
+        }
+    }
+}
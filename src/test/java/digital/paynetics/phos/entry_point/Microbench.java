@@ -0,0 +1,61 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+
+/**
+ * Minimal microbenchmark harness for the <code>*Benchmark</code> classes. Those have a <code>main</code> method and
+ * are not run with the tests, run them from the IDE or with <code>java -cp</code> on a quiet machine.
+ * <p>
+ * The operation is run for the warm-up rounds (so the JIT compiles it), then for the measured rounds. The median and
+ * the best round are reported per operation.
+ */
+final class Microbench {
+    static volatile Object sink; // results are stored here, so the JIT cannot drop the work
+
+
+    private Microbench() {
+    }
+
+
+    interface Op {
+        /**
+         * @param i number of the operation within the round
+         * @return anything computed by the operation
+         */
+        Object run(int i) throws Exception;
+    }
+
+
+    /**
+     * @return median time of one operation in nanoseconds
+     */
+    static double run(String name, int warmUpRounds, int rounds, int opsPerRound, Op op) throws Exception {
+        for (int r = 0; r < warmUpRounds; r++) {
+            round(opsPerRound, op);
+        }
+
+        long[] nanos = new long[rounds];
+        for (int r = 0; r < rounds; r++) {
+            nanos[r] = round(opsPerRound, op);
+        }
+        Arrays.sort(nanos);
+
+        double median = (double) nanos[rounds / 2] / opsPerRound;
+        double best = (double) nanos[0] / opsPerRound;
+        System.out.println(String.format(Locale.ROOT, "%-50s %12.1f ns/op (best %.1f)", name, median, best));
+
+        return median;
+    }
+
+
+    private static long round(int opsPerRound, Op op) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < opsPerRound; i++) {
+            sink = op.run(i);
+        }
+
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,314 @@
+package digital.paynetics.phos.entry_point;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Provider;
+
+import digital.paynetics.phos.kernel.common.crypto.EncDec;
+import digital.paynetics.phos.kernel.common.emv.entry_point.EntryPoint;
+import digital.paynetics.phos.kernel.common.emv.entry_point.selection.ApplicationSelector;
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.emv.ui.EntryPointUiRequester;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+import digital.paynetics.phos.kernel.common.misc.CertificateData;
+import digital.paynetics.phos.kernel.common.misc.Currency;
+import digital.paynetics.phos.kernel.common.misc.NfcConnectionLostException;
+import digital.paynetics.phos.kernel.common.misc.PreprocessedApplication;
+import digital.paynetics.phos.kernel.common.misc.TerminalConfig;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+import digital.paynetics.phos.kernel.common.nfc.NfcManager;
+import digital.paynetics.phos.kernel.common.nfc.transceiver.Transceiver;
+import java8.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Several readers, each with its own sessions created by one {@link EntryPointSessionFactory}, tapping simulated cards
+ * concurrently while the configuration is republished. Checks that the sessions are isolated (a STOP signal given to
+ * one session never reaches the card of another, every session processes all of its taps) and that every tap is
+ * pre-processed with one consistent configuration.
+ * <p>
+ * Each transaction is a new session. The application selector exchanges a few commands with the card and finds no
+ * application, so the session goes back to waiting for the next tap. The first reader gives the STOP signal during
+ * the last tap of each transaction.
+ */
+public class MultiSessionThroughputTest {
+    private static final int READERS = 4;
+    private static final int TRANSACTIONS_PER_READER = 100;
+    private static final int TAPS_PER_TRANSACTION = 10;
+    private static final int APDUS_PER_TAP = 8;
+    private static final int CONFIGURATIONS = 4;
+    private static final int AIDS_PER_CONFIGURATION = 100; // AID numbers of a configuration, not all used
+
+    private final TerminalConfig terminalConfig = TestStubs.stub(TerminalConfig.class);
+    private final CertificateData certificateData = TestStubs.stub(CertificateData.class);
+    private final PosChangeableConfiguration[] configurations = new PosChangeableConfiguration[CONFIGURATIONS];
+    private final AtomicReference<String> error = new AtomicReference<>();
+
+
+    @Test
+    public void sessionsAreIsolated() throws InterruptedException {
+        for (int i = 0; i < CONFIGURATIONS; i++) {
+            configurations[i] = createConfiguration(i);
+        }
+
+        final EntryPointSessionFactory factory = TestStubs.sessionFactory(new EntryPointPreprocessorImpl2(),
+                new Provider<ApplicationSelector>() {
+                    @Override
+                    public ApplicationSelector get() {
+                        return TestStubs.stub(ApplicationSelector.class, new SimulatedSelector());
+                    }
+                });
+        factory.publishConfiguration(terminalConfig, certificateData, configurations[0]);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger publications = new AtomicInteger();
+
+        Thread publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                await(start);
+                int i = 0;
+                while (!done.get()) {
+                    i = (i + 1) % CONFIGURATIONS;
+                    factory.publishConfiguration(terminalConfig, certificateData, configurations[i]);
+                    publications.incrementAndGet();
+                    Thread.yield();
+                }
+            }
+        });
+
+        List<Reader> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            readers.add(new Reader(factory, i == 0, start));
+        }
+
+        publisher.start();
+        for (Reader r : readers) {
+            r.thread.start();
+        }
+        start.countDown();
+        for (Reader r : readers) {
+            r.thread.join(TimeUnit.MINUTES.toMillis(1));
+        }
+        done.set(true);
+        publisher.join();
+
+        assertNull(error.get(), error.get());
+        for (Reader r : readers) {
+            assertEquals(TRANSACTIONS_PER_READER * TAPS_PER_TRANSACTION, r.outcomes.get());
+            assertEquals(r.isStopping ? TRANSACTIONS_PER_READER : 0, r.closedCards.get());
+            assertEquals(r.isStopping ? TRANSACTIONS_PER_READER : 0, r.exits.get());
+        }
+        assertTrue(publications.get() > 0);
+    }
+
+
+    private PosChangeableConfiguration createConfiguration(int configuration) {
+        List<CardApplication> apps = new ArrayList<>();
+        List<CardAppConfiguration> cacs = new ArrayList<>();
+        // a different number of applications in each configuration
+        for (int i = 0; i <= configuration; i++) {
+            String aid = TestConfigurations.aid(configuration * AIDS_PER_CONFIGURATION + i);
+            apps.add(TestConfigurations.cardApplication(aid, KernelType.MASTERCARD));
+            cacs.add(TestConfigurations.cardAppConfiguration(aid, TransactionType.PURCHASE,
+                    TestConfigurations.entryPointTlvs(5000, 0, 3000)));
+        }
+
+        return new PosChangeableConfiguration(Arrays.asList(TransactionType.PURCHASE), apps, cacs, null, null);
+    }
+
+
+    /**
+     * Reports an error if the applications are not the ones of exactly one configuration
+     */
+    private void checkConsistent(List<PreprocessedApplication> apps) {
+        if (apps.isEmpty()) {
+            error.compareAndSet(null, "No applications pre-processed");
+            return;
+        }
+
+        int configuration = configurationOf(apps.get(0));
+        if (apps.size() != configuration + 1) {
+            error.compareAndSet(null, "Applications of several configurations pre-processed");
+            return;
+        }
+        for (PreprocessedApplication app : apps) {
+            if (configurationOf(app) != configuration) {
+                error.compareAndSet(null, "Applications of several configurations pre-processed");
+            }
+        }
+    }
+
+
+    private static int configurationOf(PreprocessedApplication app) {
+        String aid = app.getAppConfig().getApplicationId();
+        return Integer.parseInt(aid.substring(aid.length() - 6)) / AIDS_PER_CONFIGURATION;
+    }
+
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Exchanges {@link #APDUS_PER_TAP} commands with the card on init, then finds no application to select
+     */
+    private class SimulatedSelector implements InvocationHandler {
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("init")) {
+                checkConsistent((List<PreprocessedApplication>) args[0]);
+                SimulatedCard card = (SimulatedCard) Proxy.getInvocationHandler(args[1]);
+                for (int i = 0; i < APDUS_PER_TAP; i++) {
+                    card.exchange(i);
+                }
+
+                return Optional.empty();
+            }
+
+            return TestStubs.defaultValue(proxy, method, args);
+        }
+    }
+
+
+    /**
+     * One NFC reader doing its transactions one after another on its own thread. The taps are processed on the same
+     * thread (the default transaction executor of a session).
+     */
+    private class Reader {
+        final boolean isStopping;
+        final AtomicInteger outcomes = new AtomicInteger();
+        final AtomicInteger closedCards = new AtomicInteger();
+        final AtomicInteger exits = new AtomicInteger();
+        final Thread thread;
+        volatile EntryPointImpl session;
+
+
+        Reader(final EntryPointSessionFactory factory, final boolean isStopping, final CountDownLatch start) {
+            this.isStopping = isStopping;
+
+            final EntryPoint.Listener listener = TestStubs.stub(EntryPoint.Listener.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("onOutcome")) {
+                        outcomes.incrementAndGet();
+                    }
+
+                    return TestStubs.defaultValue(proxy, method, args);
+                }
+            });
+            final NfcManager nfcManager = TestStubs.stub(NfcManager.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("exit")) {
+                        exits.incrementAndGet();
+                    }
+
+                    return TestStubs.defaultValue(proxy, method, args);
+                }
+            });
+
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int i = 0; i < TRANSACTIONS_PER_READER; i++) {
+                        session = factory.createSession();
+                        try {
+                            session.init(listener,
+                                    TestStubs.stub(EntryPointUiRequester.class),
+                                    nfcManager,
+                                    terminalConfig,
+                                    certificateData,
+                                    TestStubs.stub(EncDec.class));
+                            session.startA_preProcessing(1000, 0, TestStubs.stub(Currency.class),
+                                    TransactionType.PURCHASE);
+                            for (int j = 0; j < TAPS_PER_TRANSACTION; j++) {
+                                boolean isStopped = Reader.this.isStopping && j == TAPS_PER_TRANSACTION - 1;
+                                SimulatedCard card = new SimulatedCard(Reader.this, isStopped);
+                                session.onNfcTag(TestStubs.stub(Transceiver.class, card));
+                                if (card.isClosed != isStopped) {
+                                    error.compareAndSet(null, "STOP signal reached another session");
+                                }
+                            }
+                        } catch (RuntimeException e) {
+                            error.compareAndSet(null, e.toString());
+                        } finally {
+                            session.close();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Answers each command with a fixed response after some CPU work standing in for the card. Once closed (by the
+     * STOP signal) the connection is lost.
+     */
+    private static class SimulatedCard implements InvocationHandler {
+        private final Reader reader;
+        private final boolean givesStopSignal;
+        volatile boolean isClosed;
+        private int checksum;
+
+
+        SimulatedCard(Reader reader, boolean givesStopSignal) {
+            this.reader = reader;
+            this.givesStopSignal = givesStopSignal;
+        }
+
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("close")) {
+                reader.closedCards.incrementAndGet();
+                isClosed = true;
+            }
+
+            return TestStubs.defaultValue(proxy, method, args);
+        }
+
+
+        byte[] exchange(int command) throws NfcConnectionLostException {
+            if (givesStopSignal && command == 1) {
+                // the POS gives the STOP signal while the card is being read
+                reader.session.stopSignal();
+            }
+            if (isClosed) {
+                throw new NfcConnectionLostException();
+            }
+
+            byte[] rsp = new byte[]{(byte) command, (byte) 0x90, 0x00};
+            for (int i = 0; i < 200; i++) {
+                checksum = checksum * 31 + rsp[i % rsp.length];
+            }
+            return rsp;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package digital.paynetics.phos.entry_point;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.nfc.transceiver.Transceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class NfcRoundTripStatsTest {
+    private static final int THREADS = 8;
+    private static final int SESSIONS_PER_THREAD = 2000;
+
+
+    @Test
+    public void positionalClassifier() {
+        NfcRoundTripStats.Classifier c = NfcRoundTripStats.POSITIONAL_CLASSIFIER;
+
+        assertEquals(ApduCategory.SELECT_PPSE, c.classify(null, 0, 6, KernelType.MASTERCARD));
+        assertEquals(ApduCategory.SELECT_AID, c.classify(null, 1, 6, KernelType.MASTERCARD));
+        assertEquals(ApduCategory.GPO, c.classify(null, 2, 6, KernelType.MASTERCARD));
+        assertEquals(ApduCategory.READ_RECORD, c.classify(null, 4, 6, KernelType.MASTERCARD));
+        assertEquals(ApduCategory.GENERATE_AC, c.classify(null, 5, 6, KernelType.MASTERCARD));
+        assertEquals(ApduCategory.READ_RECORD, c.classify(null, 5, 6, KernelType.VISA));
+    }
+
+
+    @Test
+    public void resumedSelectionSkipsPpse() {
+        NfcRoundTripStats stats = new NfcRoundTripStats();
+        List<Transceiver.StatItem> session = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            session.add(TestStubs.stub(Transceiver.StatItem.class));
+        }
+
+        stats.record("A0000000041010", KernelType.MASTERCARD, session, true);
+
+        assertNull(stats.getTotal(ApduCategory.SELECT_PPSE));
+        assertEquals(1, stats.getTotal(ApduCategory.SELECT_AID).getCount());
+        assertEquals(1, stats.getTotal(ApduCategory.GPO).getCount());
+        assertEquals(2, stats.getTotal(ApduCategory.READ_RECORD).getCount());
+        assertEquals(1, stats.getTotal(ApduCategory.GENERATE_AC).getCount());
+    }
+
+
+    @Test
+    public void concurrentSessionsOfNewAid() throws InterruptedException {
+        final NfcRoundTripStats stats = new NfcRoundTripStats();
+        final List<Transceiver.StatItem> session = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            session.add(TestStubs.stub(Transceiver.StatItem.class));
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    for (int j = 0; j < SESSIONS_PER_THREAD; j++) {
+                        stats.record("A0000000041010", KernelType.MASTERCARD, session);
+                    }
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        long sessions = THREADS * SESSIONS_PER_THREAD;
+        assertEquals(sessions, stats.get(ApduCategory.SELECT_PPSE, KernelType.MASTERCARD, "A0000000041010").getCount());
+        assertEquals(sessions * 2,
+                stats.get(ApduCategory.READ_RECORD, KernelType.MASTERCARD, "A0000000041010").getCount());
+        assertEquals(sessions, stats.getTotal(ApduCategory.GENERATE_AC).getCount());
+    }
+}
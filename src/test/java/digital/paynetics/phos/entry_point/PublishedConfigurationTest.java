@@ -0,0 +1,126 @@
+package digital.paynetics.phos.entry_point;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Provider;
+
+import digital.paynetics.phos.kernel.common.crypto.EncDec;
+import digital.paynetics.phos.kernel.common.emv.Outcome;
+import digital.paynetics.phos.kernel.common.emv.entry_point.EntryPoint;
+import digital.paynetics.phos.kernel.common.emv.entry_point.selection.ApplicationSelector;
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.emv.tag.EmvTag;
+import digital.paynetics.phos.kernel.common.emv.tag.Tlv;
+import digital.paynetics.phos.kernel.common.emv.ui.EntryPointUiRequester;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+import digital.paynetics.phos.kernel.common.misc.CertificateData;
+import digital.paynetics.phos.kernel.common.misc.Currency;
+import digital.paynetics.phos.kernel.common.misc.PreprocessedApplication;
+import digital.paynetics.phos.kernel.common.misc.TerminalConfig;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+import digital.paynetics.phos.kernel.common.nfc.NfcManager;
+import digital.paynetics.phos.kernel.common.nfc.transceiver.Transceiver;
+import java8.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * A tap after a configuration is published is pre-processed with the compiled application configurations of that
+ * configuration. The TLVs of the application configurations are replaced with an unparsable TTQ configuration after
+ * publishing, so a tap decoding them would drop all the applications.
+ */
+public class PublishedConfigurationTest {
+    private static final int AIDS = 3;
+
+    private final List<PreprocessedApplication> selected = new ArrayList<>();
+    private final TerminalConfig terminalConfig = TestStubs.stub(TerminalConfig.class);
+    private final CertificateData certificateData = TestStubs.stub(CertificateData.class);
+    private EntryPointSessionFactory factory;
+    private EntryPointImpl session;
+    private PosChangeableConfiguration configuration;
+
+
+    @Before
+    public void setUp() {
+        factory = TestStubs.sessionFactory(new EntryPointPreprocessorImpl2(), new Provider<ApplicationSelector>() {
+            @Override
+            public ApplicationSelector get() {
+                return TestStubs.stub(ApplicationSelector.class, new InvocationHandler() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("init")) {
+                            selected.addAll((List<PreprocessedApplication>) args[0]);
+                            // ends the tap
+                            return Optional.of(Outcome.createTryAnotherInterface(null));
+                        }
+
+                        return TestStubs.defaultValue(proxy, method, args);
+                    }
+                });
+            }
+        });
+        session = factory.createSession();
+        session.init(TestStubs.stub(EntryPoint.Listener.class),
+                TestStubs.stub(EntryPointUiRequester.class),
+                TestStubs.stub(NfcManager.class),
+                terminalConfig,
+                certificateData,
+                TestStubs.stub(EncDec.class));
+
+        List<CardApplication> apps = new ArrayList<>();
+        List<CardAppConfiguration> cacs = new ArrayList<>();
+        for (int i = 0; i < AIDS; i++) {
+            String aid = TestConfigurations.aid(i);
+            apps.add(TestConfigurations.cardApplication(aid, KernelType.MASTERCARD));
+            cacs.add(TestConfigurations.cardAppConfiguration(aid, TransactionType.PURCHASE,
+                    TestConfigurations.entryPointTlvs(5000, 0, 3000)));
+        }
+        configuration = new PosChangeableConfiguration(Arrays.asList(TransactionType.PURCHASE), apps, cacs, null,
+                null);
+    }
+
+
+    @Test
+    public void tapAfterFactoryPublication() {
+        factory.publishConfiguration(terminalConfig, certificateData, configuration);
+
+        tap();
+    }
+
+
+    @Test
+    public void tapAfterSessionPublication() {
+        session.publishConfiguration(terminalConfig, certificateData, configuration);
+
+        tap();
+    }
+
+
+    private void tap() {
+        for (CardAppConfiguration cac : configuration.getCardAppConfigurations()) {
+            List<Tlv> tlvs = cac.getTlvConfigData();
+            tlvs.clear();
+            tlvs.add(new Tlv(EmvTag.PHOS_TTQ_CONFIGURATION, 1, "[".getBytes()));
+        }
+
+        session.startA_preProcessing(1000, 0, TestStubs.stub(Currency.class), TransactionType.PURCHASE);
+        session.onNfcTag(TestStubs.stub(Transceiver.class));
+
+        assertEquals(AIDS, selected.size());
+        for (int i = 0; i < AIDS; i++) {
+            assertSame(configuration.getAppConfigurations(TransactionType.PURCHASE).get(i),
+                    selected.get(i).getAppConfig());
+        }
+    }
+}
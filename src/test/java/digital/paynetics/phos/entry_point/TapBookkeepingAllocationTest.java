@@ -0,0 +1,114 @@
+package digital.paynetics.phos.entry_point;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import digital.paynetics.phos.entry_point.EntryPointStateMachine.State;
+import digital.paynetics.phos.kernel.common.emv.Outcome;
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.nfc.transceiver.Transceiver;
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Allocation rate of the bookkeeping the entry point does on each tap in GC-free mode, as done by
+ * {@link EntryPointImpl}: session state machine, handing the torn transaction log to the kernel and taking its changes,
+ * transaction timestamp, metrics and NFC round-trip stats. A whole tap is not measured, the selector, the kernels and
+ * the reader allocate on their own.
+ */
+public class TapBookkeepingAllocationTest {
+    private static final int WARM_UP_TAPS = 20000;
+    private static final int TAPS = 100000;
+    private static final long MAX_BYTES = 64 * 1024; // for all the taps, measurement noise only
+
+    private final Object tag = new Object();
+    private final Object kernel = new Object();
+    private final EntryPointStateMachine<Object, Object> machine = new EntryPointStateMachine<>(
+            new EntryPointStateMachine.StopHandler<Object, Object>() {
+                @Override
+                public void close(Object tag) {
+                }
+
+
+                @Override
+                public boolean stop(Object kernel) {
+                    return true;
+                }
+            });
+    private final EntryPointStateMachine.TagProcessor<Object> processor =
+            new EntryPointStateMachine.TagProcessor<Object>() {
+                @Override
+                public void process(Object t, long session) {
+                    machine.transition(State.SELECTION, State.KERNEL_PROCESSING);
+                    machine.publishKernel(session, kernel);
+                    machine.transition(State.KERNEL_PROCESSING, State.WAITING_FOR_TAG);
+                }
+            };
+
+    private final TornTransactionLogWriteBehind tornTransactionLogWriteBehind =
+            new TornTransactionLogWriteBehind(new InMemoryTornTransactionLogPersister());
+    private final CopyOnFirstWriteList<TornTransactionLogRecord> kernelTornLog = new CopyOnFirstWriteList<>();
+    private List<TornTransactionLogRecord> residentTornLog = new ArrayList<>();
+    private final TransactionTimestampCache timestampCache = new TransactionTimestampCache();
+    private final TransactionMetrics metrics = new TransactionMetrics();
+    private final NfcRoundTripStats nfcRoundTripStats = new NfcRoundTripStats();
+    private final List<Transceiver.StatItem> nfcStats = new ArrayList<>();
+
+
+    @Test
+    public void bookkeepingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        for (int i = 0; i < 3; i++) {
+            residentTornLog.add(TestStubs.stub(TornTransactionLogRecord.class));
+        }
+        for (int i = 0; i < 6; i++) {
+            nfcStats.add(TestStubs.stub(Transceiver.StatItem.class));
+        }
+        machine.transition(State.IDLE, State.PRE_PROCESSING);
+        machine.transition(State.PRE_PROCESSING, State.WAITING_FOR_TAG);
+
+        for (int i = 0; i < WARM_UP_TAPS; i++) {
+            tap();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < TAPS; i++) {
+            tap();
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(allocated + " bytes allocated by " + TAPS + " taps", allocated < MAX_BYTES);
+    }
+
+
+    private void tap() {
+        machine.offerTag(tag);
+        machine.processTags(processor);
+
+        // the kernel leaves the log as is
+        residentTornLog = tornTransactionLogWriteBehind.applyEvictions(residentTornLog);
+        kernelTornLog.reset(residentTornLog);
+        residentTornLog = kernelTornLog.getCurrent();
+        TornTransactionLogChanges changes = TornTransactionLogChanges.of(kernelTornLog);
+        assertSame(TornTransactionLogChanges.NONE, changes);
+        tornTransactionLogWriteBehind.submit(changes, residentTornLog);
+        tornTransactionLogWriteBehind.awaitDurable();
+
+        timestampCache.get(1700000000000L);
+        metrics.record(TransactionPhase.KERNEL_PROCESSING, KernelType.MASTERCARD, Outcome.Type.APPROVED, 1500);
+        nfcRoundTripStats.record("A0000000041010", KernelType.MASTERCARD, nfcStats);
+    }
+}
@@ -0,0 +1,78 @@
+package digital.paynetics.phos.entry_point;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import digital.paynetics.phos.kernel.common.emv.kernel.common.KernelType;
+import digital.paynetics.phos.kernel.common.emv.tag.EmvTag;
+import digital.paynetics.phos.kernel.common.emv.tag.Tlv;
+import digital.paynetics.phos.kernel.common.misc.CardAppConfiguration;
+import digital.paynetics.phos.kernel.common.misc.CardApplication;
+import digital.paynetics.phos.kernel.common.misc.TransactionType;
+
+
+/**
+ * Builds configuration objects of the kernel library for tests and benchmarks. Those have no public constructors, so
+ * they are deserialized by Gson from configuration JSON, the same way a configuration received from the host is
+ * loaded.
+ */
+final class TestConfigurations {
+    private static final Gson GSON = new Gson();
+
+
+    private TestConfigurations() {
+    }
+
+
+    static String aid(int i) {
+        return String.format(Locale.ROOT, "A0000000%06d", i);
+    }
+
+
+    static CardApplication cardApplication(String aid, KernelType kernelType) {
+        JsonObject json = new JsonObject();
+        json.addProperty("applicationId", aid);
+        json.add("kernelType", GSON.toJsonTree(kernelType));
+
+        return GSON.fromJson(json, CardApplication.class);
+    }
+
+
+    static CardAppConfiguration cardAppConfiguration(String aid, TransactionType transactionType, List<Tlv> tlvs) {
+        JsonObject json = new JsonObject();
+        json.addProperty("applicationId", aid);
+        json.add("transactionType", GSON.toJsonTree(transactionType));
+        json.add("tlvConfigData", GSON.toJsonTree(tlvs));
+
+        return GSON.fromJson(json, CardAppConfiguration.class);
+    }
+
+
+    /**
+     * @return entry point TLVs with the given limits (in minor units) and an empty TTQ configuration
+     */
+    static List<Tlv> entryPointTlvs(int contactlessTransactionLimit, int floorLimit, int cvmRequiredLimit) {
+        return new ArrayList<>(Arrays.asList(
+                bcd(EmvTag.READER_CONTACTLESS_TRANSACTION_LIMIT_NO_OD_CVM, contactlessTransactionLimit),
+                bcd(EmvTag.READER_CONTACTLESS_FLOOR_LIMIT, floorLimit),
+                bcd(EmvTag.TERMINAL_FLOOR_LIMIT, floorLimit),
+                bcd(EmvTag.READER_CVM_REQUIRED_LIMIT, cvmRequiredLimit),
+                new Tlv(EmvTag.PHOS_TTQ_CONFIGURATION, 2, "{}".getBytes())));
+    }
+
+
+    private static Tlv bcd(EmvTag tag, int value) {
+        byte[] v = new byte[6];
+        for (int i = v.length - 1; i >= 0; i--) {
+            v[i] = (byte) ((value % 10) | ((value / 10 % 10) << 4));
+            value /= 100;
+        }
+
+        return new Tlv(tag, v.length, v);
+    }
+}
@@ -0,0 +1,141 @@
+package digital.paynetics.phos.entry_point;
+
+import com.google.gson.Gson;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Provider;
+
+import digital.paynetics.phos.kernel.common.emv.entry_point.misc.IntermediateOutcomeStore;
+import digital.paynetics.phos.kernel.common.emv.entry_point.misc.MessageStore;
+import digital.paynetics.phos.kernel.common.emv.entry_point.preprocessing.EntryPointPreprocessor;
+import digital.paynetics.phos.kernel.common.emv.entry_point.selection.ApplicationSelector;
+import digital.paynetics.phos.kernel.common.emv.kernel.common.CommonDolDataPreparer;
+import digital.paynetics.phos.kernel.common.misc.TimeProvider;
+import digital.paynetics.phos.kernel.mastercard.MastercardKernel;
+import digital.paynetics.phos.kernel.mastercard.misc.MastercardMagstripeFailedCounter;
+import digital.paynetics.phos.kernel.mastercard.misc.MessageStoreMc;
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLog;
+import digital.paynetics.phos.kernel.visa.VisaKernel;
+import java8.util.Optional;
+
+
+/**
+ * Stub collaborators for driving {@link EntryPointImpl} in tests and benchmarks without a reader, a card or kernels
+ */
+final class TestStubs {
+    private static final Gson GSON = new Gson();
+    private static final InvocationHandler DEFAULTS = new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            return defaultValue(proxy, method, args);
+        }
+    };
+
+
+    private TestStubs() {
+    }
+
+
+    /**
+     * @return for an interface a stub whose methods do nothing and return the default value of their return type (see
+     * {@link #defaultValue}), for an enum its first constant, for a class (e.g. a value class of the kernel library
+     * without a public constructor) an instance with all the fields having their default values
+     */
+    static <T> T stub(Class<T> type) {
+        if (type.isInterface()) {
+            return stub(type, DEFAULTS);
+        } else if (type.isEnum()) {
+            return type.getEnumConstants()[0];
+        } else {
+            return GSON.fromJson("{}", type);
+        }
+    }
+
+
+    /**
+     * @param type    interface
+     * @param handler answers the calls, may delegate to {@link #defaultValue} for the ones it does not care about
+     */
+    static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+
+    /**
+     * @return provider of a new stub on each call
+     */
+    static <T> Provider<T> stubProvider(final Class<T> type) {
+        return new Provider<T>() {
+            @Override
+            public T get() {
+                return stub(type);
+            }
+        };
+    }
+
+
+    /**
+     * Identity for <code>equals</code> and <code>hashCode</code>, otherwise <code>false</code>, zero, an empty
+     * {@link Optional}, an empty {@link List} or null
+     */
+    static Object defaultValue(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        Class<?> type = method.getReturnType();
+        if (name.equals("equals") && args != null && args.length == 1) {
+            return proxy == args[0];
+        } else if (name.equals("hashCode") && args == null) {
+            return System.identityHashCode(proxy);
+        } else if (name.equals("toString") && args == null) {
+            return "stub " + method.getDeclaringClass().getSimpleName();
+        } else if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == Optional.class) {
+            return Optional.empty();
+        } else if (type == List.class) {
+            return new ArrayList<>();
+        } else {
+            return null;
+        }
+    }
+
+
+    /**
+     * @return factory with stubs for everything but the pre-processor and the application selector, sessions
+     * persisting their torn transaction logs in memory
+     */
+    static EntryPointSessionFactory sessionFactory(EntryPointPreprocessor entryPointPreprocessor,
+                                                   Provider<ApplicationSelector> applicationSelectorProvider) {
+
+        return new EntryPointSessionFactory(entryPointPreprocessor,
+                applicationSelectorProvider,
+                stub(TimeProvider.class),
+                stub(CommonDolDataPreparer.class),
+                stubProvider(MastercardKernel.class),
+                stubProvider(VisaKernel.class),
+                stubProvider(MastercardMagstripeFailedCounter.class),
+                stubProvider(IntermediateOutcomeStore.class),
+                stubProvider(MessageStore.class),
+                stubProvider(MessageStoreMc.class),
+                stubProvider(TornTransactionLog.class),
+                new Provider<TornTransactionLogPersister>() {
+                    @Override
+                    public TornTransactionLogPersister get() {
+                        return new InMemoryTornTransactionLogPersister();
+                    }
+                },
+                new TransactionMetrics(),
+                new NfcRoundTripStats(),
+                false,
+                true,
+                true);
+    }
+}
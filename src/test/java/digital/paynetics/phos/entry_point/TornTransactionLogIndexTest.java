@@ -0,0 +1,219 @@
+package digital.paynetics.phos.entry_point;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class TornTransactionLogIndexTest {
+    private static final long NOW = 1000000;
+
+    private final Map<TornTransactionLogRecord, Integer> cards = Collections.synchronizedMap(
+            new IdentityHashMap<TornTransactionLogRecord, Integer>());
+    private final TornRecordKeyExtractor keyExtractor = new TornRecordKeyExtractor() {
+        @Override
+        public byte[] getPan(TornTransactionLogRecord record) {
+            return ("54133300890200" + cards.get(record)).getBytes();
+        }
+
+
+        @Override
+        public int getPanSequenceNumber(TornTransactionLogRecord record) {
+            return 1;
+        }
+    };
+
+
+    @Test
+    public void sameKeyKeepsBothRecords() {
+        TornTransactionLogIndex index = new TornTransactionLogIndex(keyExtractor);
+        TornTransactionLogRecord first = record(7);
+        TornTransactionLogRecord second = record(7);
+        index.add(first, 10);
+        index.add(second, 20);
+
+        assertEquals(2, index.size());
+        assertSame(second, index.find(key(7)));
+        assertEquals(Collections.singletonList(first), index.selectEvictions(NOW, 0, 1));
+
+        index.remove(second);
+
+        assertSame(first, index.find(key(7)));
+        assertEquals(1, index.size());
+    }
+
+
+    @Test
+    public void removeOfUnknownRecordKeepsEntry() {
+        TornTransactionLogIndex index = new TornTransactionLogIndex(keyExtractor);
+        TornTransactionLogRecord indexed = record(3);
+        index.add(indexed, 10);
+
+        index.remove(record(3));
+
+        assertSame(indexed, index.find(key(3)));
+        index.remove(indexed);
+        assertNull(index.find(key(3)));
+        assertEquals(0, index.size());
+    }
+
+
+    @Test
+    public void ageSurvivesReset() {
+        final TornTransactionLogRecord old = record(1);
+        final TornTransactionLogRecord fresh = record(2);
+        final long now = System.currentTimeMillis();
+        FakePersister persister = new FakePersister();
+        persister.persistedAt.put(old, now - 60 * 60 * 1000);
+        persister.persistedAt.put(fresh, now);
+        TornTransactionLogWriteBehind writeBehind = new TornTransactionLogWriteBehind(persister);
+        writeBehind.setKeyExtractor(keyExtractor);
+        writeBehind.setCompaction(10 * 60 * 1000, 0);
+
+        List<TornTransactionLogRecord> log = Arrays.asList(old, fresh);
+        writeBehind.reset(log);
+        writeBehind.submit(log, log); // compaction is due after init
+        writeBehind.close();
+
+        assertEquals(Collections.singletonList(fresh), writeBehind.applyEvictions(log));
+    }
+
+
+    /**
+     * Threads adding and removing records with colliding keys, as the kernel and the compaction do
+     */
+    @Test
+    public void concurrentUpdates() throws InterruptedException {
+        final TornTransactionLogIndex index = new TornTransactionLogIndex(keyExtractor);
+        final int threads = 4;
+        final int perThread = 20000;
+        final List<List<TornTransactionLogRecord>> kept = new ArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final List<TornTransactionLogRecord> mine = new ArrayList<>();
+            kept.add(mine);
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<TornTransactionLogRecord> added = new ArrayList<>();
+                    for (int j = 0; j < perThread; j++) {
+                        added.add(record(j % 5)); // few keys, so the chains collide
+                    }
+
+                    await(start);
+                    for (int j = 0; j < perThread; j++) {
+                        index.add(added.get(j), j);
+                        if (j % 3 != 0) {
+                            index.remove(added.get(j));
+                        } else {
+                            mine.add(added.get(j));
+                        }
+                        index.find(key(j % 5));
+                    }
+                }
+            }));
+        }
+        for (Thread t : workers) {
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        Set<TornTransactionLogRecord> expected = Collections.newSetFromMap(
+                new IdentityHashMap<TornTransactionLogRecord, Boolean>());
+        for (List<TornTransactionLogRecord> l : kept) {
+            expected.addAll(l);
+        }
+        List<TornTransactionLogRecord> all = index.selectEvictions(Long.MAX_VALUE, 1, 0);
+
+        assertEquals(expected.size(), index.size());
+        assertEquals(expected.size(), all.size());
+        assertTrue(expected.containsAll(all));
+    }
+
+
+    private TornTransactionLogRecord record(int card) {
+        TornTransactionLogRecord ret = TestStubs.stub(TornTransactionLogRecord.class);
+        cards.put(ret, card);
+
+        return ret;
+    }
+
+
+    private static TornRecordKey key(int card) {
+        return TornRecordKey.of(("54133300890200" + card).getBytes(), 1);
+    }
+
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static class FakePersister implements IncrementalTornTransactionLogPersister {
+        final Map<TornTransactionLogRecord, Long> persistedAt = new IdentityHashMap<>();
+
+
+        @Override
+        public List<TornTransactionLogRecord> load() {
+            return new ArrayList<>(persistedAt.keySet());
+        }
+
+
+        @Override
+        public void save(List<TornTransactionLogRecord> logRecords) {
+        }
+
+
+        @Override
+        public void clear() {
+            persistedAt.clear();
+        }
+
+
+        @Override
+        public void append(TornTransactionLogRecord record) {
+            persistedAt.put(record, System.currentTimeMillis());
+        }
+
+
+        @Override
+        public void remove(TornTransactionLogRecord record) {
+            persistedAt.remove(record);
+        }
+
+
+        @Override
+        public long getPersistedAt(TornTransactionLogRecord record) {
+            Long ret = persistedAt.get(record);
+            return ret != null ? ret : -1;
+        }
+
+
+        @Override
+        public int expireOlderThan(long timestampMillis) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package digital.paynetics.phos.entry_point;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import digital.paynetics.phos.kernel.mastercard.torn.TornTransactionLogRecord;
+
+
+/**
+ * Per-tap overhead of the torn transaction log on the processing thread with a large resident log: handing the log to
+ * the kernel, computing the changes the kernel made, submitting them and waiting until they are durable. The
+ * persister does nothing, so only the entry point's own work is measured. Copying the whole log, as done on each tap
+ * before, is measured for comparison.
+ */
+public final class TornTransactionLogTapBenchmark {
+    private static final int LOG_SIZE = 5000;
+
+
+    private TornTransactionLogTapBenchmark() {
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        Microbench.run("kernel leaves the log as is", 3, 5, 1000, new Tap() {
+            @Override
+            void kernel(List<TornTransactionLogRecord> log) {
+                log.size();
+            }
+        });
+        Microbench.run("kernel adds a record", 3, 5, 1000, new Tap() {
+            @Override
+            void kernel(List<TornTransactionLogRecord> log) {
+                log.add(TestStubs.stub(TornTransactionLogRecord.class));
+                // keeps the size constant
+                log.remove(0);
+            }
+        });
+        Microbench.run("kernel removes a record from the middle", 3, 5, 1000, new Tap() {
+            @Override
+            void kernel(List<TornTransactionLogRecord> log) {
+                log.remove(log.size() / 2);
+                log.add(TestStubs.stub(TornTransactionLogRecord.class));
+            }
+        });
+
+        final List<TornTransactionLogRecord> log = newLog();
+        Microbench.run("copy of the whole log (for comparison)", 3, 5, 1000, new Microbench.Op() {
+            @Override
+            public Object run(int i) {
+                return new ArrayList<>(log);
+            }
+        });
+    }
+
+
+    private static List<TornTransactionLogRecord> newLog() {
+        List<TornTransactionLogRecord> ret = new ArrayList<>();
+        for (int i = 0; i < LOG_SIZE; i++) {
+            ret.add(TestStubs.stub(TornTransactionLogRecord.class));
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * Same steps as EntryPointImpl on each Mastercard tap
+     */
+    private abstract static class Tap implements Microbench.Op {
+        private final TornTransactionLogWriteBehind writeBehind = new TornTransactionLogWriteBehind(new NoOpPersister());
+        private final CopyOnFirstWriteList<TornTransactionLogRecord> kernelLog = new CopyOnFirstWriteList<>();
+        private List<TornTransactionLogRecord> resident = newLog();
+
+
+        abstract void kernel(List<TornTransactionLogRecord> log);
+
+
+        @Override
+        public Object run(int i) {
+            resident = writeBehind.applyEvictions(resident);
+            kernelLog.reset(resident);
+            kernel(kernelLog);
+            resident = kernelLog.getCurrent();
+            writeBehind.submit(TornTransactionLogChanges.of(kernelLog), resident);
+            writeBehind.awaitDurable();
+
+            return resident;
+        }
+    }
+
+
+    private static class NoOpPersister implements IncrementalTornTransactionLogPersister {
+        @Override
+        public List<TornTransactionLogRecord> load() {
+            return new ArrayList<>();
+        }
+
+
+        @Override
+        public void save(List<TornTransactionLogRecord> logRecords) {
+        }
+
+
+        @Override
+        public void clear() {
+        }
+
+
+        @Override
+        public void append(TornTransactionLogRecord record) {
+        }
+
+
+        @Override
+        public void remove(TornTransactionLogRecord record) {
+        }
+
+
+        @Override
+        public long getPersistedAt(TornTransactionLogRecord record) {
+            return -1;
+        }
+
+
+        @Override
+        public int expireOlderThan(long timestampMillis) {
+            return 0;
+        }
+    }
+}